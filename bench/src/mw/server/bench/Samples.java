@@ -0,0 +1,142 @@
+package mw.server.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import mw.server.message.Message;
+import mw.server.plugin.message.NMEAMessageHandler;
+
+/**
+ * @author thuss
+ *
+ * The sample logs the benchmarks replay and the in-memory streams they
+ * are replayed through. The logs are read from the samples directory,
+ * relative to the top of the tree where the bench target runs, or from
+ * the directory named by the mw.samples system property.
+ */
+public class Samples {
+
+	/**
+	 * Instrument data from a sailing boat, about 370 sentences
+	 */
+	public static final String NMEA = "nmea.log";
+
+	/**
+	 * Instrument and GPS data captured from RPN clients, about 5800
+	 * sentences
+	 */
+	public static final String RPN = "rpnnmea.log";
+
+	/**
+	 * Read a whole sample log
+	 *
+	 * @param name The log, e.g. Samples.NMEA
+	 * @return byte[] The content with its line ends
+	 * @throws IOException The log couldn't be read
+	 */
+	public static byte[] load(String name) throws IOException {
+		String dir = System.getProperty("mw.samples", "samples");
+		InputStream in = new FileInputStream(dir + "/" + name);
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				content.write(buffer, 0, read);
+			}
+			return content.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Split a sample log into its non empty lines
+	 *
+	 * @param name The log, e.g. Samples.NMEA
+	 * @return byte[][] The lines without their line ends
+	 * @throws IOException The log couldn't be read
+	 */
+	public static byte[][] lines(String name) throws IOException {
+		byte[] content = load(name);
+		List lines = new ArrayList();
+		int start = 0;
+		for (int i = 0; i <= content.length; i++) {
+			if (i == content.length || content[i] == '\r' || content[i] == '\n') {
+				if (i > start) {
+					byte[] line = new byte[i - start];
+					System.arraycopy(content, start, line, 0, line.length);
+					lines.add(line);
+				}
+				start = i + 1;
+			}
+		}
+		return (byte[][]) lines.toArray(new byte[lines.size()][]);
+	}
+
+	/**
+	 * Turn every line of a sample log into a message, the way a serial
+	 * port mediator would with the checksums checked and tagged
+	 *
+	 * @param name The log, e.g. Samples.RPN
+	 * @param sender The id of the sending mediator
+	 * @return Message[] The messages, each holding one reference
+	 * @throws IOException The log couldn't be read
+	 */
+	public static Message[] messages(String name, int sender) throws IOException {
+		byte[][] lines = lines(name);
+		NMEAMessageHandler mh = new NMEAMessageHandler();
+		Message[] messages = new Message[lines.length];
+		for (int i = 0; i < lines.length; i++) {
+			messages[i] = mh.createMessage(sender, "Samples", lines[i]);
+		}
+		return messages;
+	}
+
+	/**
+	 * Returns a stream that replays the data over and over without
+	 * ever blocking or ending, like a busy serial port
+	 *
+	 * @param data The data to replay
+	 * @return InputStream
+	 */
+	public static InputStream replay(final byte[] data) {
+		return new InputStream() {
+			int pos = 0;
+			public int read() {
+				int b = data[pos] & 0xff;
+				pos = (pos + 1) % data.length;
+				return b;
+			}
+			public int read(byte[] b, int off, int len) {
+				int n = Math.min(len, data.length - pos);
+				System.arraycopy(data, pos, b, off, n);
+				pos = (pos + n) % data.length;
+				return n;
+			}
+			public int available() {
+				return data.length - pos;
+			}
+		};
+	}
+
+	/**
+	 * Returns a stream that throws away everything written to it, like
+	 * a client socket that is always ready
+	 *
+	 * @return OutputStream
+	 */
+	public static OutputStream discard() {
+		return new OutputStream() {
+			public void write(int b) {
+			}
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+	}
+}
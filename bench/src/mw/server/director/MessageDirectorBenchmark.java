@@ -0,0 +1,139 @@
+package mw.server.director;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mw.server.bench.Samples;
+import mw.server.message.Message;
+import mw.server.plugin.mediator.ConnectionDirectorMediator;
+
+/**
+ * @author thuss
+ *
+ * The director distributing the sentences of samples/rpnnmea.log to 1
+ * to 1000 listening mediators, in batches of BATCH like the director
+ * thread does when busy, reported per sentence. The listeners take the
+ * message and drop it, so this measures the director's side of the fan
+ * out: the subscription lookup, the duplicate check and the call per
+ * recipient. Listeners either take everything or subscribe to a few
+ * sentence types. Duplicate suppression is off since the log is
+ * replayed far faster than it was recorded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx32m")
+public class MessageDirectorBenchmark {
+
+	/**
+	 * Number of sentences distributed per call
+	 */
+	public static final int BATCH = 64;
+
+	/**
+	 * Number of listening mediators
+	 */
+	@Param({ "1", "10", "100", "1000" })
+	public int listeners;
+
+	/**
+	 * The sentence types each listener subscribes to, or all
+	 */
+	@Param({ "all", "RMC,GGA,MWV" })
+	public String subscriptions;
+
+	/**
+	 * The director
+	 */
+	public MessageDirector director;
+
+	/**
+	 * The sentences of the log
+	 */
+	public Message[] messages;
+
+	/**
+	 * The batch handed to the director, reused
+	 */
+	public List batch = new ArrayList();
+
+	/**
+	 * Index of the next sentence
+	 */
+	public int next = 0;
+
+	/**
+	 * A listening mediator that takes each message without keeping it
+	 */
+	public static class SinkMediator extends ConnectionDirectorMediator {
+
+		/**
+		 * Number of messages received
+		 */
+		public long received = 0;
+
+		/**
+		 * @see mw.server.mediator.Mediator#sendMessage(Message)
+		 */
+		public void sendMessage(Message msg) {
+			received++;
+		}
+	}
+
+	/**
+	 * Register the listeners and give the sentences their priorities
+	 */
+	@Setup
+	public void setup() throws IOException {
+		director = new MessageDirector();
+		director.duplicates.setWindow(0);
+		int sender = director.getNewMediatorId();
+		for (int i = 0; i < listeners; i++) {
+			SinkMediator med = new SinkMediator();
+			med.setId(director.getNewMediatorId());
+			med.setName("Sink" + i);
+			if (!subscriptions.equals("all")) {
+				med.setSubscriptions(subscriptions);
+			}
+			director.registerMediator(med);
+		}
+		messages = Samples.messages(Samples.RPN, sender);
+		for (int i = 0; i < messages.length; i++) {
+			messages[i].setPriority(director.priorities.lookup(messages[i].getTypeCode()));
+		}
+	}
+
+	/**
+	 * Distribute a batch of sentences. Each one is retained first since
+	 * the director lets go of the sender's reference.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void distributeMessages() {
+		batch.clear();
+		for (int i = 0; i < BATCH; i++) {
+			Message msg = messages[next];
+			next = (next + 1) % messages.length;
+			msg.retain();
+			batch.add(msg);
+		}
+		director.distributeMessages(batch);
+	}
+}
@@ -0,0 +1,112 @@
+package mw.server.message;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mw.server.bench.Samples;
+
+/**
+ * @author thuss
+ *
+ * Comparing messages and suppressing duplicates, over the sentences of
+ * samples/rpnnmea.log. Every sentence is loaded twice so equals can be
+ * measured on the same content in different messages (the worst case,
+ * comparing every byte) as well as on different sentences. Each call
+ * to the duplicate filter advances the clock by a millisecond, so with
+ * the default 100ms window it remembers the last 100 sentences.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx32m")
+public class MessageBenchmark {
+
+	/**
+	 * The sentences of the log
+	 */
+	public Message[] messages;
+
+	/**
+	 * The same sentences again, as if from a second port
+	 */
+	public Message[] copies;
+
+	/**
+	 * The director's duplicate filter
+	 */
+	public DuplicateFilter duplicates = new DuplicateFilter(1024, 100);
+
+	/**
+	 * The fake clock of the duplicate filter in milliseconds
+	 */
+	public long now = 1;
+
+	/**
+	 * Index of the next sentence
+	 */
+	public int next = 0;
+
+	/**
+	 * Load the sentences twice
+	 */
+	@Setup
+	public void setup() throws IOException {
+		messages = Samples.messages(Samples.RPN, 1);
+		copies = Samples.messages(Samples.RPN, 2);
+	}
+
+	/**
+	 * Compare a sentence with its copy
+	 */
+	@Benchmark
+	public boolean equalsSame() {
+		int i = next;
+		next = (i + 1) % messages.length;
+		return messages[i].equals(copies[i]);
+	}
+
+	/**
+	 * Compare a sentence with the one after it
+	 */
+	@Benchmark
+	public boolean equalsOther() {
+		int i = next;
+		next = (i + 1) % messages.length;
+		return messages[i].equals(messages[next]);
+	}
+
+	/**
+	 * Check each sentence once, as with a single source
+	 */
+	@Benchmark
+	public boolean isDuplicate() {
+		int i = next;
+		next = (i + 1) % messages.length;
+		return duplicates.isDuplicate(messages[i], now++);
+	}
+
+	/**
+	 * Check each sentence and then its copy, as with two ports bridged
+	 * to the same instruments where every other check is a duplicate
+	 */
+	@Benchmark
+	public boolean isDuplicateTwoPorts() {
+		int i = next >> 1;
+		Message msg = (next & 1) == 0 ? messages[i] : copies[i];
+		next = (next + 1) % (messages.length * 2);
+		return duplicates.isDuplicate(msg, now++);
+	}
+}
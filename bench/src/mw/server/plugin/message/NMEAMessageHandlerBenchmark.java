@@ -0,0 +1,99 @@
+package mw.server.plugin.message;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mw.server.bench.Samples;
+import mw.server.message.Message;
+
+/**
+ * @author thuss
+ *
+ * Turning the lines of samples/rpnnmea.log into messages with each
+ * checksum mode. createMessageSlice is the path the mediators use,
+ * copying the line into a shared ingest buffer and taking the message
+ * from the pool, and createMessageCopy the older path that allocates
+ * both. The message is released straight away, as if every client had
+ * already written it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx32m")
+public class NMEAMessageHandlerBenchmark {
+
+	/**
+	 * The checksum mode, off, tag or drop
+	 */
+	@Param({ "off", "tag", "drop" })
+	public String checksum;
+
+	/**
+	 * The pooled handler used by the mediators
+	 */
+	public NMEAMessageHandler handler;
+
+	/**
+	 * The lines of the log
+	 */
+	public byte[][] lines;
+
+	/**
+	 * Index of the next line
+	 */
+	public int next = 0;
+
+	/**
+	 * Configure the handler and load the lines
+	 */
+	@Setup
+	public void setup() throws IOException {
+		handler = new PooledNMEAMessageHandler();
+		handler.setParameters("checksum=" + checksum);
+		lines = Samples.lines(Samples.RPN);
+	}
+
+	/**
+	 * Create a message from a slice of the read buffer
+	 */
+	@Benchmark
+	public Message createMessageSlice() {
+		byte[] line = lines[next];
+		next = (next + 1) % lines.length;
+		Message msg = handler.createMessage(1, "Bench", line, 0, line.length);
+		if (msg != null) {
+			msg.release();
+		}
+		return msg;
+	}
+
+	/**
+	 * Create a message from a copy of the line
+	 */
+	@Benchmark
+	public Message createMessageCopy() {
+		byte[] line = lines[next];
+		next = (next + 1) % lines.length;
+		byte[] content = new byte[line.length];
+		System.arraycopy(line, 0, content, 0, line.length);
+		Message msg = handler.createMessage(1, "Bench", content);
+		if (msg != null) {
+			msg.release();
+		}
+		return msg;
+	}
+}
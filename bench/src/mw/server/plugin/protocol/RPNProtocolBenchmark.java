@@ -0,0 +1,96 @@
+package mw.server.plugin.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mw.server.bench.Samples;
+import mw.server.message.Message;
+
+/**
+ * @author thuss
+ *
+ * Framing sentences from samples/rpnnmea.log as RPN NOTIFY requests for
+ * a subscribed client writing to a socket that is always ready.
+ * writeOutgoingMessage is what each client pays per sentence, with the
+ * frame shared between clients or, with maxbatch above 1, copied into
+ * a batch. encodeFrame is the cost of building one NOTIFY.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx32m")
+public class RPNProtocolBenchmark {
+
+	/**
+	 * Sentences per NOTIFY
+	 */
+	@Param({ "1", "16" })
+	public int maxbatch;
+
+	/**
+	 * The protocol of the subscribed client
+	 */
+	public RPNProtocol protocol;
+
+	/**
+	 * The sentences to write
+	 */
+	public Message[] messages;
+
+	/**
+	 * Index of the next sentence
+	 */
+	public int next = 0;
+
+	/**
+	 * Subscribe the client the way an RPN client does
+	 */
+	@Setup
+	public void setup() throws IOException {
+		protocol = new RPNProtocol();
+		protocol.setParameters("maxbatch=" + maxbatch);
+		byte[] request = "SUBSCRIBE /nmea HTTP/1.1\r\nHost: bench\r\n\r\n".getBytes();
+		protocol.startProtocol(new ByteArrayInputStream(request), Samples.discard());
+		for (int i = 0; i < 3 && !protocol.subscribed; i++) {
+			protocol.readIncomingSlice(true);
+		}
+		if (!protocol.subscribed) {
+			throw new IOException("RPN subscription failed");
+		}
+		messages = Samples.messages(Samples.RPN, 1);
+	}
+
+	/**
+	 * Write one sentence to the client
+	 */
+	@Benchmark
+	public void writeOutgoingMessage() throws IOException {
+		protocol.writeOutgoingMessage(messages[next]);
+		next = (next + 1) % messages.length;
+	}
+
+	/**
+	 * Build the NOTIFY for one sentence
+	 */
+	@Benchmark
+	public byte[] encodeFrame() {
+		Message msg = messages[next];
+		next = (next + 1) % messages.length;
+		return protocol.encodeFrame(msg.getBuffer(), msg.getOffset(), msg.getLength());
+	}
+}
@@ -0,0 +1,67 @@
+package mw.server.plugin.protocol;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mw.server.bench.Samples;
+
+/**
+ * @author thuss
+ *
+ * Reading sentences off a serial port with RawNMEAProtocol, replaying
+ * samples/nmea.log from memory so only the line framing is measured.
+ * readIncomingData copies each line into a new array while
+ * readIncomingSlice, which the mediators use, hands out the line in
+ * place.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx32m")
+public class RawNMEAProtocolBenchmark {
+
+	/**
+	 * The protocol reading the replayed log
+	 */
+	public RawNMEAProtocol protocol;
+
+	/**
+	 * Start the protocol on an endless replay of the log
+	 */
+	@Setup
+	public void setup() throws IOException {
+		protocol = new RawNMEAProtocol();
+		protocol.setLinediscard(false);
+		protocol.startProtocol(Samples.replay(Samples.load(Samples.NMEA)),
+			Samples.discard());
+	}
+
+	/**
+	 * Read one line into a new array
+	 */
+	@Benchmark
+	public byte[] readIncomingData() throws IOException {
+		return protocol.readIncomingData(false);
+	}
+
+	/**
+	 * Read one line in place
+	 */
+	@Benchmark
+	public int readIncomingSlice() throws IOException {
+		return protocol.readIncomingSlice(false);
+	}
+}
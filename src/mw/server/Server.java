@@ -13,6 +13,7 @@ import mw.server.connection.MultiConnectionLayer;
 import mw.server.connection.SingleConnectionLayer;
 import mw.server.director.MessageDirector;
 import mw.server.mediator.Mediator;
+import mw.server.metrics.MetricsRegistry;
 
 /**
  * @author thuss
@@ -109,11 +110,13 @@ public class Server {
 			Configuration config = Configuration.getInstance();
 			config.parseConfiguration(configfile);
 			List mediators = config.getMediators();
-			config = null;
-			configfile = null;
 
 			// Get the director
 			MessageDirector director = MessageDirector.getInstance();
+			director.configure(config.getFeatures());
+			MetricsRegistry.getInstance().configure(config.getFeatures());
+			config = null;
+			configfile = null;
 
 			// Start each of the mediators
 			Mediator med = null;
@@ -7,14 +7,18 @@ import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import mw.server.connection.ConnectionLayer;
+import mw.server.decoder.DecoderRegistry;
+import mw.server.decoder.SentenceDecoder;
 import mw.server.director.MessageDirector;
 import mw.server.mediator.Mediator;
 import mw.server.message.MessageHandler;
 import mw.server.protocol.ProtocolHandler;
+import mw.server.queue.OverflowPolicy;
 
 import org.kxml.kdom.Document;
 import org.kxml.kdom.Element;
@@ -68,6 +72,16 @@ public class Configuration {
 	 */
 	protected HashMap protocolhandlers;
 
+	/**
+	 * HashMap of available overflow policies keyed by name
+	 */
+	protected HashMap overflowpolicies = new HashMap();
+
+	/**
+	 * HashMap of sentence decoders keyed by sentence type
+	 */
+	protected HashMap decoders = new HashMap();
+
 	/**
 	 * Protected constructor since only the configuration class
 	 * can instantiate itself. This is because it's a singleton.
@@ -153,6 +167,11 @@ public class Configuration {
 				messagehandlers = buildImplMap(elem);
 			} else if (name.equals("protocolhandlers")) {
 				protocolhandlers = buildImplMap(elem);
+			} else if (name.equals("overflowpolicies")) {
+				overflowpolicies = buildImplMap(elem);
+			} else if (name.equals("decoders")) {
+				decoders = buildImplMap(elem);
+				registerDecoders(decoders);
 			} else if (name.equals("mediator")) {
 				mediators.add(buildMediator(elem));
 			} else if (name.equals("mediators")) {
@@ -186,6 +205,15 @@ public class Configuration {
 		String name = elem.getValue("name");
 		String type = elem.getValue("type");
 		String restart = elem.getValue("restart");
+		String dedupwindow = elem.getValue("dedupwindow");
+		String subscribe = elem.getValue("subscribe");
+		String talkers = elem.getValue("talkers");
+		String queuesize = elem.getValue("queuesize");
+		String overflow = elem.getValue("overflow");
+		String queuemode = elem.getValue("queuemode");
+		String ratelimit = elem.getValue("ratelimit");
+		String ratelimitmode = elem.getValue("ratelimitmode");
+		String threads = elem.getValue("threads");
 		if (name != null && type != null) {
 			// Make sure the xml attributes are correct
 			Class medclass = (Class) availablemediators.get(type);
@@ -231,6 +259,33 @@ public class Configuration {
 			if (restart != null && restart.equalsIgnoreCase("true")) {
 				med.setRestart(true);
 			}
+			if (dedupwindow != null) {
+				med.setDedupWindow(Long.parseLong(dedupwindow));
+			}
+			med.setSubscriptions(subscribe);
+			med.setTalkers(talkers);
+			med.setRateLimit(ratelimit, 
+				ratelimitmode != null && ratelimitmode.equalsIgnoreCase("conflate"));
+			if (threads != null) {
+				med.setThreads(threads);
+			}
+			if (queuemode != null) {
+				med.setQueueMode(queuemode);
+			}
+			if (queuesize != null) {
+				med.setQueueSize(Integer.parseInt(queuesize));
+			}
+			if (overflow != null) {
+				Class policyclass = (Class) overflowpolicies.get(overflow);
+				if (policyclass == null) {
+					throw new RuntimeException(
+						"No overflowpolicy found of type "
+							+ overflow
+							+ " in configuration file "
+							+ configfile);
+				}
+				med.setOverflowPolicy((OverflowPolicy) policyclass.newInstance());
+			}
 		} else {
 			throw new RuntimeException(
 				"Attributes name and type are "
@@ -278,20 +333,9 @@ public class Configuration {
 			// Since connectionlayers can have parameters we need to check
 			// for those as well. If no params are present it will use the
 			// default parameter settings of the connectionlayer.
-			for (int i = 0; i < elem.getChildCount(); i++) {
-				Element child = elem.getElement(i);
-				if (child == null)
-					continue;
-				if (child.getName().equals("parameters")
-					&& child.getChildCount() == 1) {
-					cl.setParameters(child.getChild(0).toString());
-				} else {
-					throw new RuntimeException(
-						"Unexpected or invalid element "
-							+ child
-							+ " in configuration file "
-							+ configfile);
-				}
+			String params = getParameters(elem);
+			if (params != null) {
+				cl.setParameters(params);
 			}
 			handler = cl;
 		} else if (elem.getName().equals("messagehandler")) {
@@ -303,7 +347,13 @@ public class Configuration {
 						+ " in configuration file "
 						+ configfile);
 			}
-			handler = handlerclass.newInstance();
+			MessageHandler mh = (MessageHandler) handlerclass.newInstance();
+			// Message handlers take parameters too (e.g. checksum checks)
+			String params = getParameters(elem);
+			if (params != null) {
+				mh.setParameters(params);
+			}
+			handler = mh;
 		} else if (elem.getName().equals("protocolhandler")) {
 			handlerclass = (Class) protocolhandlers.get(type);
 			if (handlerclass == null) {
@@ -313,7 +363,13 @@ public class Configuration {
 						+ " in configuration file "
 						+ configfile);
 			}
-			handler = handlerclass.newInstance();
+			ProtocolHandler ph = (ProtocolHandler) handlerclass.newInstance();
+			// Protocol handlers take parameters too (e.g. the flush policy)
+			String params = getParameters(elem);
+			if (params != null) {
+				ph.setParameters(params);
+			}
+			handler = ph;
 		} else {
 			throw new RuntimeException(
 				"Unknown handler "
@@ -325,6 +381,32 @@ public class Configuration {
 		return handler;
 	}
 	
+	/**
+	 * Get the text of a handler's optional parameters child element
+	 * 
+	 * @param elem The handler element
+	 * @return String The parameters or null if there are none
+	 */
+	protected String getParameters(Element elem) {
+		String params = null;
+		for (int i = 0; i < elem.getChildCount(); i++) {
+			Element child = elem.getElement(i);
+			if (child == null)
+				continue;
+			if (child.getName().equals("parameters")
+				&& child.getChildCount() == 1) {
+				params = child.getChild(0).toString();
+			} else {
+				throw new RuntimeException(
+					"Unexpected or invalid element "
+						+ child
+						+ " in configuration file "
+						+ configfile);
+			}
+		}
+		return params;
+	}
+
 	protected HashMap buildFeatureMap(Element elem) {
 		HashMap map = new HashMap();
 		Element child = null;
@@ -354,6 +436,25 @@ public class Configuration {
 		return map;
 	}
 
+	/**
+	 * Method registerDecoders instantiates the sentence decoders and
+	 * registers them with the DecoderRegistry under their sentence type.
+	 * 
+	 * @param map The sentence type -> decoder class mappings
+	 * @throws IllegalAccessException Not allowed to access the specified class
+	 * @throws InstantiationException Error instantiating the specified class
+	 */
+	protected void registerDecoders(HashMap map)
+		throws IllegalAccessException, InstantiationException {
+		DecoderRegistry registry = DecoderRegistry.getInstance();
+		Iterator types = map.keySet().iterator();
+		while (types.hasNext()) {
+			String type = (String) types.next();
+			Class decoderclass = (Class) map.get(type);
+			registry.register(type, (SentenceDecoder) decoderclass.newInstance());
+		}
+	}
+
 	/**
 	 * Method buildImplMap takes a group of impl elements from
 	 * the configuration file (say connectionlayers) and builds
@@ -434,4 +535,20 @@ public class Configuration {
 		return protocolhandlers;
 	}
 
+	/**
+	 * Returns the overflowpolicies.
+	 * @return HashMap
+	 */
+	public HashMap getOverflowpolicies() {
+		return overflowpolicies;
+	}
+
+	/**
+	 * Returns the decoders.
+	 * @return HashMap
+	 */
+	public HashMap getDecoders() {
+		return decoders;
+	}
+
 }
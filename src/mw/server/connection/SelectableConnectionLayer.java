@@ -0,0 +1,30 @@
+package mw.server.connection;
+
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * @author thuss
+ *
+ * Connection Layer for a multipoint connection whose connections are
+ * served by a few selector threads instead of a thread each.
+ */
+public interface SelectableConnectionLayer extends MultiConnectionLayer {
+
+	/**
+	 * Returns the channel to accept incoming connections on
+	 * @return ServerSocketChannel The listening channel
+	 */
+	public ServerSocketChannel getServerSocketChannel();
+
+	/**
+	 * Returns how many selector threads serve the connections
+	 * @return int The number of selector threads
+	 */
+	public int getEventLoops();
+
+	/**
+	 * Returns the size of each connection's write buffer in bytes
+	 * @return int The write buffer size
+	 */
+	public int getWriteBufferSize();
+}
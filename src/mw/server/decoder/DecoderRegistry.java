@@ -0,0 +1,92 @@
+package mw.server.decoder;
+
+import mw.server.plugin.message.NMEAMessage;
+
+/**
+ * @author thuss
+ *
+ * Registry of the sentence decoders keyed by sentence type code, which
+ * NMEAMessage.getRecord uses to decode a sentence the first time its
+ * record is asked for. There are only ever a few decoders so they are
+ * kept in small arrays that are scanned. Decoders are registered from
+ * the configuration file before any mediator starts, after which the
+ * registry is only read.
+ */
+public class DecoderRegistry {
+
+	/**
+	 * The registry singleton
+	 */
+	protected static DecoderRegistry registry = new DecoderRegistry();
+
+	/**
+	 * The sentence type code of each decoder
+	 */
+	protected volatile int[] codes = new int[0];
+
+	/**
+	 * The decoders
+	 */
+	protected volatile SentenceDecoder[] decoders = new SentenceDecoder[0];
+
+	/**
+	 * Get the instance of the registry
+	 * 
+	 * @return DecoderRegistry
+	 */
+	public static DecoderRegistry getInstance() {
+		return registry;
+	}
+
+	/**
+	 * Register the decoder for a sentence type, replacing any decoder
+	 * already registered for it
+	 * 
+	 * @param type The 3 character sentence type (e.g. RMC)
+	 * @param decoder The decoder
+	 */
+	public synchronized void register(String type, SentenceDecoder decoder) {
+		int code = NMEAMessage.typeCode(type);
+		for (int i = 0; i < codes.length; i++) {
+			if (codes[i] == code) {
+				decoders[i] = decoder;
+				return;
+			}
+		}
+		int[] newcodes = new int[codes.length + 1];
+		SentenceDecoder[] newdecoders = new SentenceDecoder[codes.length + 1];
+		System.arraycopy(codes, 0, newcodes, 0, codes.length);
+		System.arraycopy(decoders, 0, newdecoders, 0, codes.length);
+		newcodes[codes.length] = code;
+		newdecoders[codes.length] = decoder;
+		// Publish the decoders first so lookup never finds a code
+		// without its decoder
+		decoders = newdecoders;
+		codes = newcodes;
+	}
+
+	/**
+	 * Find the decoder for a sentence type
+	 * 
+	 * @param code The sentence type code
+	 * @return SentenceDecoder The decoder or null if there is none
+	 */
+	public SentenceDecoder lookup(int code) {
+		int[] c = codes;
+		for (int i = 0; i < c.length; i++) {
+			if (c[i] == code) {
+				return decoders[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of registered decoders
+	 * 
+	 * @return int
+	 */
+	public int size() {
+		return codes.length;
+	}
+}
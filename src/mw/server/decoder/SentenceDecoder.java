@@ -0,0 +1,28 @@
+package mw.server.decoder;
+
+import mw.server.plugin.message.NMEAMessage;
+
+/**
+ * @author thuss
+ *
+ * A sentence decoder turns one sentence type into a SentenceRecord using
+ * the field accessors of NMEAMessage. Decoders are configured by sentence
+ * type in the decoders section of the configuration file and a single
+ * instance is shared by every message of that type, so implementations
+ * must not keep per message state.
+ */
+public interface SentenceDecoder {
+
+	/**
+	 * Decode a sentence. Called at most once for each content of a
+	 * message, with the message's monitor held.
+	 * 
+	 * @param msg The sentence to decode
+	 * @param reuse The record the message held for its last sentence, 
+	 * which should be refilled if it is the record type this decoder 
+	 * returns, or null
+	 * @return SentenceRecord The record or null if the sentence can't be
+	 * decoded
+	 */
+	public SentenceRecord decode(NMEAMessage msg, SentenceRecord reuse);
+}
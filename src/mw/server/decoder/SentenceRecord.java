@@ -0,0 +1,13 @@
+package mw.server.decoder;
+
+/**
+ * @author thuss
+ *
+ * The fields of one sentence type (e.g. RMC) decoded into primitives by
+ * a SentenceDecoder. A record is cached on the message it was decoded
+ * from and refilled when a pooled message gets a new sentence of the
+ * same type, so it is only valid while a reference to the message is
+ * held and must not be changed by whoever reads it.
+ */
+public interface SentenceRecord {
+}
@@ -3,13 +3,19 @@ package mw.server.director;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
 
 import org.apache.log4j.Logger;
 
 import mw.server.display.DisplayLED;
+import mw.server.message.DuplicateFilter;
 import mw.server.message.Message;
 
 import mw.server.mediator.Mediator;
+import mw.server.metrics.Clock;
+import mw.server.metrics.DirectorMetrics;
+import mw.server.metrics.MetricsRegistry;
 
 /**
  * @author thuss
@@ -30,7 +36,13 @@ public class MessageDirector implements Runnable {
 	/**
 	 * When this gets set to true the director thread terminates
 	 */
-	protected boolean terminate = false;
+	protected volatile boolean terminate = false;
+	
+	/**
+	 * When true the director sleeps until a mediator hands it a message,
+	 * otherwise it falls back to the original polling loop.
+	 */
+	protected boolean signalled = true;
 	
 	protected Logger log = Logger.getLogger(MessageDirector.class);
 
@@ -53,10 +65,44 @@ public class MessageDirector implements Runnable {
 	 */
 	protected List listeningmediators = Collections.synchronizedList(new ArrayList());
 
+	/**
+	 * Index from message type to the listening mediators subscribed
+	 * to it. It is rebuilt whenever a listener registers or leaves.
+	 */
+	protected volatile SubscriptionIndex subscriptions = 
+		new SubscriptionIndex(new ArrayList());
+
 	/** 
 	 * The queue of messages waiting for the director to handle
 	 */
-	protected List messages = Collections.synchronizedList(new ArrayList());
+	protected MessageQueue messages = new MessageQueue(1024);
+
+	/**
+	 * The list the director drains pending messages into. Only the
+	 * director thread touches it so it is reused for every batch.
+	 */
+	protected List pendingmsgs = new ArrayList();
+
+	/**
+	 * The priority class of each sentence type
+	 */
+	protected PriorityTable priorities = new PriorityTable();
+
+	/**
+	 * Suppresses messages another source sent within the dedup window
+	 */
+	protected DuplicateFilter duplicates = new DuplicateFilter(1024, 100);
+
+	/**
+	 * Records how long distributing each batch takes
+	 */
+	protected DirectorMetrics metrics = 
+		MetricsRegistry.getInstance().getDirectorMetrics(this);
+
+	/**
+	 * Number of dropped messages already reported in the log
+	 */
+	protected long reportedDrops = 0;
 
 	/**
 	 * The current highest unique mediator id issued. This is used
@@ -80,6 +126,43 @@ public class MessageDirector implements Runnable {
 		return md;
 	}
 
+	/**
+	 * Configure the director from the enabled features. The "director"
+	 * feature takes options such as mode=signalled or mode=polling,
+	 * queuesize=1024 and dedupwindow=100 (milliseconds, 0 turns duplicate
+	 * suppression off). The "priorities" feature sets the priority class
+	 * of sentence types, e.g. high=APB,RMB,XTE:low=GSV. This must be
+	 * called before any mediator starts.
+	 * 
+	 * @param features The enabled features from the configuration file
+	 */
+	public void configure(Map features) {
+		if (features != null && features.containsKey("priorities")) {
+			priorities = new PriorityTable((String) features.get("priorities"));
+		}
+		if (features == null || !features.containsKey("director"))
+			return;
+		String options = (String) features.get("director");
+		if (options == null)
+			return;
+		StringTokenizer strtok = new StringTokenizer(options, ":");
+		StringTokenizer strtok2 = null;
+		while (strtok.hasMoreTokens()) {
+			String nexttok = strtok.nextToken();
+			strtok2 = new StringTokenizer(nexttok, "=");
+			String param = strtok2.nextToken();
+			if (param.equalsIgnoreCase("mode") && strtok2.hasMoreTokens()) {
+				signalled = !strtok2.nextToken().equalsIgnoreCase("polling");
+			} else if (param.equalsIgnoreCase("queuesize") && strtok2.hasMoreTokens()) {
+				messages = new MessageQueue(Integer.parseInt(strtok2.nextToken()));
+			} else if (param.equalsIgnoreCase("dedupwindow") && strtok2.hasMoreTokens()) {
+				duplicates.setWindow(Long.parseLong(strtok2.nextToken()));
+			} else {
+				log.warn("Director: ignoring unrecognized option " + nexttok);
+			}
+		}
+	}
+
 	/**
 	 * A mediator calls this method to register itself to
 	 * receive messages.
@@ -88,7 +171,10 @@ public class MessageDirector implements Runnable {
 	 */
 	public void registerMediator(Mediator med) {
 			if (med.isListener()) {
-				listeningmediators.add(med);
+				synchronized (listeningmediators) {
+					listeningmediators.add(med);
+					subscriptions = new SubscriptionIndex(listeningmediators);
+				}
 			} else {
 				passivemediators.add(med);
 			}
@@ -102,7 +188,10 @@ public class MessageDirector implements Runnable {
 	 */
 	public void unregisterMediator(Mediator med) {
 			if (med.isListener()) {
-				listeningmediators.remove(med);
+				synchronized (listeningmediators) {
+					listeningmediators.remove(med);
+					subscriptions = new SubscriptionIndex(listeningmediators);
+				}
 			} else {
 				passivemediators.remove(med);
 			}
@@ -111,26 +200,30 @@ public class MessageDirector implements Runnable {
 	/**
 	 * Send a message to the director (this class). This
 	 * method puts the message on a queue to be processed
-	 * later in the directors thread.
+	 * later in the directors thread. The message is given
+	 * the priority of its type and goes in that priority's
+	 * lane, and if the lane is full the message is dropped.
+	 * The director takes over the caller's reference to the
+	 * message and releases it once it is distributed.
 	 * 
 	 * @param msg The message to send to the director
 	 */
 	public void sendMessage(Message msg) {
-		// If we already have the msg pending don't send a dup
-		if (!messages.contains(msg)) {
-			messages.add(msg);
-		} 
+		msg.setPriority(priorities.lookup(msg.getTypeCode()));
+		if (!messages.offer(msg)) {
+			msg.release();
+		}
 	}
 
 	/**
 	 * Get messages that are pending handling by the director.
-	 * This method avoids an extra synchronization call by
-	 * pointing a new variable at the old arraylist and then
-	 * creating a new arraylist (which is an atomic operation)
+	 * The messages are moved out of the queue into a list that
+	 * is reused by the director thread, so the returned list is
+	 * only valid until the next call.
 	 */
 	protected List getPendingMessages() {
-		List pendingmsgs = messages;
-		messages = Collections.synchronizedList(new ArrayList());
+		pendingmsgs.clear();
+		messages.drainTo(pendingmsgs);
 		return pendingmsgs;
 	}
 
@@ -141,11 +234,7 @@ public class MessageDirector implements Runnable {
 	 * @return boolean True if there are messages pending
 	 */
 	protected boolean pendingMessages() {
-		if (messages.size() > 0) {
-			return true;
-		} else {
-			return false;
-		}
+		return !messages.isEmpty();
 	}
 
 	/**
@@ -166,11 +255,62 @@ public class MessageDirector implements Runnable {
 	 */
 	public void setTerminate(boolean terminate) {
 		this.terminate = terminate;
+		messages.wakeup();
+	}
+
+	/**
+	 * Block until a mediator sends a message or the director is told
+	 * to terminate. Messages offered between the pendingMessages check
+	 * and the wait are not missed because the queue notifies us while
+	 * holding the same monitor we wait on.
+	 */
+	protected void waitForMessages() {
+		while (!terminate && !pendingMessages()) {
+			messages.waitForMessages();
+		}
+	}
+
+	/**
+	 * Returns the number of duplicate messages the director suppressed
+	 * 
+	 * @return long
+	 */
+	public long getSuppressed() {
+		return duplicates.getSuppressed();
+	}
+
+	/**
+	 * Returns the number of messages waiting for the director
+	 * 
+	 * @return int
+	 */
+	public int getQueueDepth() {
+		return messages.size();
 	}
 
 	/**
-	 * This method distibutes the messages to all registered
-	 * listening mediators.
+	 * Returns the number of messages dropped because the queue was full
+	 * 
+	 * @return long
+	 */
+	public long getQueueDropped() {
+		return messages.getDropped();
+	}
+
+	/**
+	 * Returns the number of mediators listening for messages
+	 * 
+	 * @return int
+	 */
+	public int getListenerCount() {
+		return listeningmediators.size();
+	}
+
+	/**
+	 * This method distibutes the messages to the registered
+	 * listening mediators subscribed to each message's type.
+	 * Messages another source already sent within the dedup window
+	 * are skipped.
 	 * 
 	 * @param msgs The messages to distribute
 	 */
@@ -178,15 +318,24 @@ public class MessageDirector implements Runnable {
 		// Loop over the messages
 		Mediator med = null;
 		Message msg = null;
+		Mediator[] recipients = null;
+		SubscriptionIndex index = subscriptions;
+		long now = System.currentTimeMillis();
 		for (int i = 0; i < msgs.size(); i++) {
 			msg = (Message) msgs.get(i);
-			for (int j = 0; j < listeningmediators.size(); j++) {
-				med = (Mediator) listeningmediators.get(j);
-				// We skip the sending mediator
-				if (msg.getSenderId() != med.getId()) {
-					med.sendMessage(msg);
+			if (!duplicates.isDuplicate(msg, now)) {
+				recipients = index.lookup(msg.getTypeCode());
+				for (int j = 0; j < recipients.length; j++) {
+					med = recipients[j];
+					// We skip the sending mediator
+					if (msg.getSenderId() != med.getId()) {
+						med.sendMessage(msg);
+					}
 				}
 			}
+			metrics.recordDispatch(msg, Clock.nanoTime());
+			// The mediators retained what they kept, so let go of the sender's reference
+			msg.release();
 		}
 	}
 
@@ -195,7 +344,8 @@ public class MessageDirector implements Runnable {
 	 */
 	public void run() {
 		// Let everyone know we've started
-		log.info("Director: started");
+		log.info("Director: started in " + 
+				(signalled ? "signalled" : "polling") + " mode");
 		log.info("Server started");
 		// Flash the LED to signal that the server started
 		DisplayLED led = DisplayLED.getInstance();
@@ -204,25 +354,48 @@ public class MessageDirector implements Runnable {
 		// Begin the main loop
 		List pendingMsgs = null;
 		while (!terminate) {
+			// Park until a mediator hands us work
+			if (signalled) {
+				waitForMessages();
+			}
 			// See if we have incoming messages	
 			if (pendingMessages()) {
+				long started = Clock.nanoTime();
 				pendingMsgs = getPendingMessages();
 				distributeMessages(pendingMsgs);
+				metrics.recordLoop(pendingMsgs.size(), Clock.nanoTime() - started);
+				pendingMsgs.clear();
 				pendingMsgs = null;
-				// Now sleep for a moment
-				try {
-					// System.gc();
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
+				reportDrops();
+				// In polling mode sleep for a moment to batch up messages
+				if (!signalled) {
+					try {
+						// System.gc();
+						Thread.sleep(100);
+					} catch (InterruptedException e) {
+					}
 				}
 			}
 		}
-		log.info("Director: stopped");
+		log.info("Director: stopped, suppressed " + getSuppressed() + 
+				" duplicate messages");
 
 		// We've been told to terminate	so terminate mediators
 		terminateMediators();
 	}
 
+	/**
+	 * Log how many messages the full queue rejected since we last looked
+	 */
+	protected void reportDrops() {
+		long dropped = messages.getDropped();
+		if (dropped != reportedDrops) {
+			log.warn("Director: queue of " + messages.getCapacity() + 
+					" is full, dropped " + (dropped - reportedDrops) + " messages");
+			reportedDrops = dropped;
+		}
+	}
+
 	/**
 	 * Terminates all mediators registered with the director
 	 */
@@ -252,5 +425,6 @@ public class MessageDirector implements Runnable {
 		// the lists are there to handle it.
 		listeningmediators = new ArrayList();
 		passivemediators = new ArrayList();
+		subscriptions = new SubscriptionIndex(listeningmediators);
 	}
 }
@@ -0,0 +1,173 @@
+package mw.server.director;
+
+import java.util.List;
+
+import mw.server.message.Message;
+
+/**
+ * @author thuss
+ *
+ * Bounded multi producer, single consumer ring buffer of messages. Every
+ * mediator thread offers messages and only the director thread drains
+ * them. The rings are allocated once so handing a message over does not
+ * allocate anything. A full ring rejects new messages and counts them as
+ * dropped rather than growing without limit.
+ *
+ * There is one ring (lane) per priority class, so a flood of bulk
+ * traffic can't fill up the lane of high priority messages, and the
+ * director drains the high priority lane first.
+ *
+ * The server has to run on a 1.4 JRE which has no compare-and-set, so
+ * producers claim a slot while holding the queue's monitor. The critical
+ * section is a couple of field updates and the same monitor is used to
+ * wake the director when the queue goes from empty to non empty.
+ */
+public class MessageQueue {
+
+	/**
+	 * The preallocated slots of each priority lane
+	 */
+	protected Message[][] rings;
+
+	/**
+	 * Index of the oldest message in each lane
+	 */
+	protected int[] heads;
+
+	/**
+	 * Number of messages in each lane
+	 */
+	protected int[] counts;
+
+	/**
+	 * Number of messages in all lanes
+	 */
+	protected volatile int count = 0;
+
+	/**
+	 * Number of messages rejected because their lane was full
+	 */
+	protected long dropped = 0;
+
+	/**
+	 * Set by wakeup so a waiting consumer returns even if empty
+	 */
+	protected boolean woken = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity The maximum number of messages each lane can hold
+	 */
+	public MessageQueue(int capacity) {
+		rings = new Message[Message.PRIORITIES][capacity];
+		heads = new int[Message.PRIORITIES];
+		counts = new int[Message.PRIORITIES];
+	}
+
+	/**
+	 * Add a message to the tail of the lane for its priority.
+	 *
+	 * @param msg The message to add
+	 * @return boolean False if the lane was full and the message dropped
+	 */
+	public synchronized boolean offer(Message msg) {
+		int lane = msg.getPriority();
+		Message[] ring = rings[lane];
+		if (counts[lane] == ring.length) {
+			dropped++;
+			return false;
+		}
+		ring[(heads[lane] + counts[lane]) % ring.length] = msg;
+		counts[lane]++;
+		count++;
+		// Only an empty queue can have a consumer waiting on it
+		if (count == 1) {
+			notify();
+		}
+		return true;
+	}
+
+	/**
+	 * Move every waiting message to the end of the given list, high
+	 * priority lanes first and in the order they were offered within a
+	 * lane. The list is owned by the consumer so it can be cleared and
+	 * reused between calls.
+	 *
+	 * @param dest The list to add the messages to
+	 * @return int The number of messages moved
+	 */
+	public synchronized int drainTo(List dest) {
+		int n = count;
+		for (int lane = 0; lane < rings.length; lane++) {
+			Message[] ring = rings[lane];
+			for (int i = counts[lane]; i > 0; i--) {
+				dest.add(ring[heads[lane]]);
+				ring[heads[lane]] = null;
+				heads[lane] = (heads[lane] + 1) % ring.length;
+			}
+			counts[lane] = 0;
+		}
+		count = 0;
+		return n;
+	}
+
+	/**
+	 * Block the consumer until a message is offered or wakeup is called.
+	 * Returns straight away if messages are already waiting.
+	 */
+	public synchronized void waitForMessages() {
+		if (count == 0 && !woken) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+			}
+		}
+		woken = false;
+	}
+
+	/**
+	 * Wake the consumer if it is waiting (e.g. to terminate)
+	 */
+	public synchronized void wakeup() {
+		woken = true;
+		notifyAll();
+	}
+
+	/**
+	 * Returns true if no messages are waiting. The count is volatile so
+	 * reading it without the monitor always sees the latest offer.
+	 *
+	 * @return boolean True if the ring is empty
+	 */
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Returns the number of messages waiting in all lanes
+	 *
+	 * @return int
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of messages dropped because a lane was full
+	 *
+	 * @return long
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Returns the capacity of each lane
+	 *
+	 * @return int
+	 */
+	public int getCapacity() {
+		return rings[0].length;
+	}
+}
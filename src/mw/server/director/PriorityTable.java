@@ -0,0 +1,119 @@
+package mw.server.director;
+
+import java.util.StringTokenizer;
+
+import mw.server.message.Message;
+import mw.server.plugin.message.NMEAMessage;
+
+/**
+ * @author thuss
+ *
+ * Maps sentence type codes to priority classes. It is configured with
+ * the "priorities" feature, e.g. options="high=APB,RMB,XTE:low=GSV", and
+ * any type not listed is PRIORITY_NORMAL. Without the feature only APB
+ * is high priority, which is what isMandatory used to hardcode.
+ */
+public class PriorityTable {
+
+	/**
+	 * Open addressing table of type codes, 0 marks an empty entry
+	 */
+	protected int[] codes = new int[64];
+
+	/**
+	 * The priority of the type code in the same entry
+	 */
+	protected int[] priorities = new int[64];
+
+	/**
+	 * Constructor with the default of APB being high priority
+	 */
+	public PriorityTable() {
+		put(NMEAMessage.typeCode("APB"), Message.PRIORITY_HIGH);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param options The priorities feature options (e.g. high=APB:low=GSV)
+	 */
+	public PriorityTable(String options) {
+		StringTokenizer strtok = new StringTokenizer(options, ":");
+		while (strtok.hasMoreTokens()) {
+			String nexttok = strtok.nextToken();
+			int eq = nexttok.indexOf('=');
+			if (eq < 0) {
+				throw new RuntimeException("Invalid priorities option " + nexttok);
+			}
+			String level = nexttok.substring(0, eq);
+			int priority;
+			if (level.equalsIgnoreCase("high")) {
+				priority = Message.PRIORITY_HIGH;
+			} else if (level.equalsIgnoreCase("normal")) {
+				priority = Message.PRIORITY_NORMAL;
+			} else if (level.equalsIgnoreCase("low")) {
+				priority = Message.PRIORITY_LOW;
+			} else {
+				throw new RuntimeException("Unknown priority " + level);
+			}
+			StringTokenizer types = new StringTokenizer(nexttok.substring(eq + 1), ", ");
+			while (types.hasMoreTokens()) {
+				put(NMEAMessage.typeCode(types.nextToken()), priority);
+			}
+		}
+	}
+
+	/**
+	 * Returns the priority class of a message type
+	 *
+	 * @param code The message type code
+	 * @return int The priority class
+	 */
+	public int lookup(int code) {
+		if (code != 0) {
+			int entry = entry(code);
+			while (codes[entry] != 0) {
+				if (codes[entry] == code) {
+					return priorities[entry];
+				}
+				entry = (entry + 1) & (codes.length - 1);
+			}
+		}
+		return Message.PRIORITY_NORMAL;
+	}
+
+	/**
+	 * Set the priority of a message type
+	 */
+	protected void put(int code, int priority) {
+		int entry = entry(code);
+		while (codes[entry] != 0 && codes[entry] != code) {
+			entry = (entry + 1) & (codes.length - 1);
+		}
+		if (codes[entry] == 0 && full()) {
+			throw new RuntimeException("Too many prioritised sentence types");
+		}
+		codes[entry] = code;
+		priorities[entry] = priority;
+	}
+
+	/**
+	 * Returns true if the table is half full
+	 */
+	protected boolean full() {
+		int used = 0;
+		for (int i = 0; i < codes.length; i++) {
+			if (codes[i] != 0) {
+				used++;
+			}
+		}
+		return used * 2 >= codes.length;
+	}
+
+	/**
+	 * Returns the starting entry for a type code
+	 */
+	protected int entry(int code) {
+		return (code ^ (code >>> 7) ^ (code >>> 14)) & (codes.length - 1);
+	}
+}
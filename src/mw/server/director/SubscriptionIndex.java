@@ -0,0 +1,122 @@
+package mw.server.director;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mw.server.mediator.Mediator;
+
+/**
+ * @author thuss
+ *
+ * Immutable index from message type code to the listening mediators that
+ * want that type, so the director finds the recipients of a message with
+ * one lookup instead of asking every listener. Mediators without
+ * subscriptions get every message and are included in every entry.
+ * The director builds a new index whenever a mediator registers or
+ * unregisters.
+ */
+public class SubscriptionIndex {
+
+	/**
+	 * Mediators that subscribe to every message type
+	 */
+	protected Mediator[] everything;
+
+	/**
+	 * Open addressing table of type codes, 0 marks an empty slot
+	 */
+	protected int[] codes;
+
+	/**
+	 * The recipients for the type code in the same slot
+	 */
+	protected Mediator[][] recipients;
+
+	/**
+	 * Mask to turn a type code into a slot index
+	 */
+	protected int mask;
+
+	/**
+	 * Build the index for the given listening mediators
+	 *
+	 * @param listeners The listening mediators
+	 */
+	public SubscriptionIndex(List listeners) {
+		// Collect the wildcard mediators and the distinct type codes
+		List wildcard = new ArrayList();
+		List typed = new ArrayList();
+		List distinct = new ArrayList();
+		for (int i = 0; i < listeners.size(); i++) {
+			Mediator med = (Mediator) listeners.get(i);
+			int[] subs = med.getSubscriptions();
+			if (subs == null) {
+				wildcard.add(med);
+			} else {
+				typed.add(med);
+				for (int j = 0; j < subs.length; j++) {
+					Integer code = new Integer(subs[j]);
+					if (!distinct.contains(code)) {
+						distinct.add(code);
+					}
+				}
+			}
+		}
+		everything = (Mediator[]) wildcard.toArray(new Mediator[wildcard.size()]);
+
+		// Size the table so it is never more than half full
+		int slots = 16;
+		while (slots < distinct.size() * 2) {
+			slots <<= 1;
+		}
+		codes = new int[slots];
+		recipients = new Mediator[slots][];
+		mask = slots - 1;
+		for (int i = 0; i < distinct.size(); i++) {
+			int code = ((Integer) distinct.get(i)).intValue();
+			List meds = new ArrayList(wildcard);
+			for (int j = 0; j < typed.size(); j++) {
+				Mediator med = (Mediator) typed.get(j);
+				int[] subs = med.getSubscriptions();
+				for (int k = 0; k < subs.length; k++) {
+					if (subs[k] == code) {
+						meds.add(med);
+						break;
+					}
+				}
+			}
+			int slot = slot(code);
+			while (codes[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			codes[slot] = code;
+			recipients[slot] = (Mediator[]) meds.toArray(new Mediator[meds.size()]);
+		}
+	}
+
+	/**
+	 * Find the mediators that should receive messages of a type
+	 *
+	 * @param code The message type code
+	 * @return Mediator[] The recipients, never null
+	 */
+	public Mediator[] lookup(int code) {
+		if (code != 0) {
+			int slot = slot(code);
+			while (codes[slot] != 0) {
+				if (codes[slot] == code) {
+					return recipients[slot];
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+		return everything;
+	}
+
+	/**
+	 * Returns the starting slot for a type code
+	 */
+	protected int slot(int code) {
+		return (code ^ (code >>> 7) ^ (code >>> 14)) & mask;
+	}
+}
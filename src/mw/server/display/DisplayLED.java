@@ -63,7 +63,7 @@ public class DisplayLED implements Runnable {
 		// Get the configuration to see if this is enabled
 		Configuration config = Configuration.getInstance();
 		Map features = config.getFeatures();
-		if (features.containsKey("errorled")) {
+		if (features != null && features.containsKey("errorled")) {
 			String options = (String)features.get("errorled");
 			if (options != null) {
 				filename = options;
@@ -5,6 +5,7 @@ import mw.server.director.MessageDirector;
 import mw.server.message.Message;
 import mw.server.message.MessageHandler;
 import mw.server.protocol.ProtocolHandler;
+import mw.server.queue.OverflowPolicy;
 
 /**
  * @author thuss
@@ -37,6 +38,13 @@ public interface Mediator extends Runnable {
 		MessageHandler mh,
 		MessageDirector md);
 
+	/**
+	 * Hand a message from the director to the mediator. A mediator that
+	 * keeps the message after returning must retain it, and release it
+	 * once written or dropped.
+	 * 
+	 * @param msg The message
+	 */
 	public void sendMessage(Message msg);
 
 	/** 
@@ -77,6 +85,74 @@ public interface Mediator extends Runnable {
 	 */
 	public void setRestart(boolean restart);
 
+	/**
+	 * Set how long in milliseconds a message from the director is
+	 * remembered to suppress duplicates. 0 turns suppression off.
+	 * @param window The dedup window in milliseconds
+	 */
+	public void setDedupWindow(long window);
+
+	/**
+	 * Set how many messages from the director may wait to be written
+	 * before the overflow policy starts dropping them.
+	 * @param capacity The size of the outbound queue
+	 */
+	public void setQueueSize(int capacity);
+
+	/**
+	 * Set what to do with messages from the director when the outbound
+	 * queue is full.
+	 * @param policy The overflow policy
+	 */
+	public void setOverflowPolicy(OverflowPolicy policy);
+
+	/**
+	 * Set how the outbound queue holds messages. "fifo" (the default)
+	 * keeps every message in order, "latest" only keeps the newest
+	 * message of each sentence type so slow clients skip stale data.
+	 * @param mode The queue mode
+	 */
+	public void setQueueMode(String mode);
+
+	/**
+	 * Limit how often sentence types are written, e.g. "GSV<=0.2Hz,MWV<=2Hz".
+	 * Excess sentences are dropped, or with conflate the newest one is
+	 * written once the rate allows. Null removes any limits.
+	 * @param rules The rate limit rules
+	 * @param conflate True to conflate excess sentences instead of dropping
+	 */
+	public void setRateLimit(String rules, boolean conflate);
+
+	/**
+	 * Set what kind of thread serves each connection of a multipoint
+	 * layer. "platform" (the default) polls on an ordinary thread,
+	 * "virtual" blocks on virtual threads if the JVM has them.
+	 * @param mode The thread mode
+	 */
+	public void setThreads(String mode);
+
+	/**
+	 * Returns the message type codes this mediator subscribes to, or
+	 * null if it wants every message. The director reads this when the
+	 * mediator registers.
+	 * @return int[] The subscribed type codes
+	 */
+	public int[] getSubscriptions();
+
+	/**
+	 * Set the message types this mediator subscribes to as a comma
+	 * separated list (e.g. RMC,GGA,MWV). Null subscribes to everything.
+	 * @param types The message types to subscribe to
+	 */
+	public void setSubscriptions(String types);
+
+	/**
+	 * Set the talkers this mediator accepts messages from as a comma
+	 * separated list (e.g. GP,II). Null accepts every talker.
+	 * @param talkers The talkers to accept
+	 */
+	public void setTalkers(String talkers);
+
 	/**
 	 * Returns the id.
 	 * @return int
@@ -0,0 +1,152 @@
+package mw.server.message;
+
+/**
+ * @author thuss
+ *
+ * Bounded, time windowed set of message fingerprints used to suppress
+ * duplicate messages (e.g. the same sentence arriving from two ports).
+ * A message is a duplicate if a message with the same content, sent by
+ * a different mediator, was seen less than window milliseconds ago. A
+ * source repeating an unchanged reading is not a duplicate, it is a
+ * fresh update. The table is a fixed size open addressing array, so a
+ * lookup is a handful of probes instead of comparing against every
+ * pending message, and once the table is full the oldest entry in the
+ * probe run is overwritten.
+ *
+ * Messages are pooled and reused, so instead of keeping them the table
+ * keeps the 64 bit fingerprint each message works out when its content
+ * is set, and its length. Two different sentences only collide with odds
+ * of about one in 2^64 per pair. The filter is not thread safe and
+ * should only be used by a single thread.
+ */
+public class DuplicateFilter {
+
+	/**
+	 * How many slots are probed for a hash before overwriting the oldest
+	 */
+	protected static final int PROBES = 8;
+
+	/**
+	 * The content fingerprints of the messages seen
+	 */
+	protected long[] prints;
+
+	/**
+	 * The lengths of the messages seen
+	 */
+	protected int[] lengths;
+
+	/**
+	 * The mediator each message was first seen from
+	 */
+	protected int[] senders;
+
+	/**
+	 * When each message was last seen from its first sender, 0 for an
+	 * empty slot
+	 */
+	protected long[] stamps;
+
+	/**
+	 * Mask to turn a hash into a slot index
+	 */
+	protected int mask;
+
+	/**
+	 * The window in milliseconds, 0 turns duplicate suppression off
+	 */
+	protected long window;
+
+	/**
+	 * Number of messages suppressed as duplicates
+	 */
+	protected long suppressed = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param size Number of slots, rounded up to a power of two
+	 * @param window How long in milliseconds a message is remembered
+	 */
+	public DuplicateFilter(int size, long window) {
+		int slots = PROBES;
+		while (slots < size) {
+			slots <<= 1;
+		}
+		prints = new long[slots];
+		lengths = new int[slots];
+		senders = new int[slots];
+		stamps = new long[slots];
+		mask = slots - 1;
+		this.window = window;
+	}
+
+	/**
+	 * Check whether the message was already seen from another mediator
+	 * inside the window and if not remember it.
+	 *
+	 * @param msg The message to check
+	 * @param now The current time in milliseconds
+	 * @return boolean True if the message is a duplicate and should be dropped
+	 */
+	public boolean isDuplicate(Message msg, long now) {
+		if (window <= 0) {
+			return false;
+		}
+		long print = msg.getFingerprint();
+		int length = msg.getLength();
+		int sender = msg.getSenderId();
+		int hash = (int) (print ^ (print >>> 32));
+		int start = (hash ^ (hash >>> 16)) & mask;
+		int victim = start;
+		for (int probe = 0; probe < PROBES; probe++) {
+			int i = (start + probe) & mask;
+			if (stamps[i] != 0 && now - stamps[i] < window
+				&& prints[i] == print && lengths[i] == length) {
+				if (senders[i] != sender) {
+					suppressed++;
+					return true;
+				}
+				// The same source sent it again, so it's a new reading
+				stamps[i] = now == 0 ? 1 : now;
+				return false;
+			}
+			// Reuse the slot that was filled longest ago (or never)
+			if (stamps[i] < stamps[victim]) {
+				victim = i;
+			}
+		}
+		prints[victim] = print;
+		lengths[victim] = length;
+		senders[victim] = sender;
+		stamps[victim] = now == 0 ? 1 : now;
+		return false;
+	}
+
+	/**
+	 * Returns the number of messages suppressed as duplicates
+	 *
+	 * @return long
+	 */
+	public long getSuppressed() {
+		return suppressed;
+	}
+
+	/**
+	 * Returns the window in milliseconds
+	 *
+	 * @return long
+	 */
+	public long getWindow() {
+		return window;
+	}
+
+	/**
+	 * Sets the window in milliseconds, 0 turns suppression off
+	 *
+	 * @param window The window to set
+	 */
+	public void setWindow(long window) {
+		this.window = window;
+	}
+}
@@ -0,0 +1,54 @@
+package mw.server.message;
+
+/**
+ * @author thuss
+ *
+ * The bytes a protocol framed a message into, cached on the message so
+ * every client using that protocol shares one encoding. Frames are
+ * never changed once created and form a short list per message.
+ */
+public class EncodedFrame {
+
+	/**
+	 * The protocol the frame was encoded for
+	 */
+	protected final Object protocol;
+
+	/**
+	 * The framed bytes, shared read only
+	 */
+	protected final byte[] bytes;
+
+	/**
+	 * The next frame cached on the same message
+	 */
+	protected final EncodedFrame next;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param protocol The protocol the frame was encoded for
+	 * @param bytes The framed bytes
+	 * @param next The next frame in the list
+	 */
+	public EncodedFrame(Object protocol, byte[] bytes, EncodedFrame next) {
+		this.protocol = protocol;
+		this.bytes = bytes;
+		this.next = next;
+	}
+
+	/**
+	 * Find the frame for a protocol in the list starting here
+	 * 
+	 * @param key The protocol
+	 * @return byte[] The framed bytes or null if not cached
+	 */
+	public byte[] find(Object key) {
+		for (EncodedFrame frame = this; frame != null; frame = frame.next) {
+			if (frame.protocol == key) {
+				return frame.bytes;
+			}
+		}
+		return null;
+	}
+}
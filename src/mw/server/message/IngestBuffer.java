@@ -0,0 +1,104 @@
+package mw.server.message;
+
+/**
+ * @author thuss
+ *
+ * A chunk of memory that incoming messages are copied into back to back,
+ * so each message is a slice of the chunk instead of an array of its
+ * own. The message handler filling the chunk holds one reference to it
+ * and every message in it holds another. When the last one is released
+ * the chunk is emptied and goes back to its pool. Only the holder of
+ * the filling reference may append.
+ */
+public class IngestBuffer {
+
+	/**
+	 * The bytes of the messages
+	 */
+	protected byte[] data;
+
+	/**
+	 * Number of bytes used
+	 */
+	protected int used = 0;
+
+	/**
+	 * Number of references still held
+	 */
+	protected int refs = 0;
+
+	/**
+	 * The pool the buffer goes back to, or null to let it be collected
+	 */
+	protected IngestPool pool;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param size The number of bytes the buffer holds
+	 * @param pool The pool to recycle it to, or null
+	 */
+	public IngestBuffer(int size, IngestPool pool) {
+		data = new byte[size];
+		this.pool = pool;
+	}
+
+	/**
+	 * Copy bytes to the end of the buffer
+	 *
+	 * @param src The array holding the bytes
+	 * @param off Where the bytes start
+	 * @param len How many bytes to copy
+	 * @return int Where in the buffer they were copied to, or -1 if they
+	 * don't fit
+	 */
+	public int append(byte[] src, int off, int len) {
+		if (used + len > data.length) {
+			return -1;
+		}
+		int at = used;
+		System.arraycopy(src, off, data, at, len);
+		used += len;
+		return at;
+	}
+
+	/**
+	 * Returns the array messages are copied into
+	 *
+	 * @return byte[]
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * Take a reference to the buffer
+	 */
+	public synchronized void retain() {
+		refs++;
+	}
+
+	/**
+	 * Give up a reference, recycling the buffer when it was the last
+	 */
+	public void release() {
+		synchronized (this) {
+			if (refs <= 0 || --refs > 0) {
+				return;
+			}
+			used = 0;
+		}
+		if (pool != null) {
+			pool.recycle(this);
+		}
+	}
+
+	/**
+	 * Returns the number of references still held
+	 *
+	 * @return int
+	 */
+	public synchronized int getReferences() {
+		return refs;
+	}
+}
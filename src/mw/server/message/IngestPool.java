@@ -0,0 +1,118 @@
+package mw.server.message;
+
+/**
+ * @author thuss
+ *
+ * Bounded pool of IngestBuffers shared by every message handler. When
+ * the pool is empty a new buffer is allocated, and when it is full a
+ * recycled buffer is left to the garbage collector, so the pool grows to
+ * what the server needs in steady state and no further.
+ */
+public class IngestPool {
+
+	/**
+	 * The pool used by the message handlers
+	 */
+	protected static IngestPool instance = new IngestPool(4096, 256);
+
+	/**
+	 * The free buffers
+	 */
+	protected IngestBuffer[] free;
+
+	/**
+	 * Number of free buffers
+	 */
+	protected int count = 0;
+
+	/**
+	 * The size of each buffer in bytes
+	 */
+	protected int size;
+
+	/**
+	 * Number of buffers allocated because the pool was empty
+	 */
+	protected long allocated = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param size The size of each buffer in bytes
+	 * @param capacity The most free buffers kept
+	 */
+	public IngestPool(int size, int capacity) {
+		this.size = size;
+		free = new IngestBuffer[capacity];
+	}
+
+	/**
+	 * Returns the shared pool
+	 *
+	 * @return IngestPool
+	 */
+	public static IngestPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Take an empty buffer from the pool. The caller holds the first
+	 * reference to it and must release it when done filling it.
+	 *
+	 * @return IngestBuffer
+	 */
+	public IngestBuffer acquire() {
+		IngestBuffer buffer = null;
+		synchronized (this) {
+			if (count > 0) {
+				buffer = free[--count];
+				free[count] = null;
+			} else {
+				allocated++;
+			}
+		}
+		if (buffer == null) {
+			buffer = new IngestBuffer(size, this);
+		}
+		buffer.retain();
+		return buffer;
+	}
+
+	/**
+	 * Put a buffer nobody references back in the pool
+	 *
+	 * @param buffer The empty buffer
+	 */
+	public synchronized void recycle(IngestBuffer buffer) {
+		if (count < free.length) {
+			free[count++] = buffer;
+		}
+	}
+
+	/**
+	 * Returns the size of each buffer in bytes
+	 *
+	 * @return int
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of free buffers
+	 *
+	 * @return int
+	 */
+	public synchronized int getFree() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of buffers allocated because the pool was empty
+	 *
+	 * @return long
+	 */
+	public synchronized long getAllocated() {
+		return allocated;
+	}
+}
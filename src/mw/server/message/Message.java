@@ -1,5 +1,7 @@
 package mw.server.message;
 
+import mw.server.metrics.Clock;
+
 /**
  * @author thuss
  *
@@ -7,16 +9,98 @@ package mw.server.message;
  * implementation should include. Specific message implementations
  * may require additional methods. For example NMEA may require
  * a getMessageType method.
+ * 
+ * A message is a slice (offset and length) of an array. Messages read
+ * from a connection are slices of a pooled IngestBuffer, so no array is
+ * allocated per sentence. Such a message is reference counted: whoever
+ * passes it on to another thread retains it first, and everyone holding
+ * it releases it when done. When the count drops to 0 the message lets
+ * go of its ingest buffer, which goes back to the pool once all the
+ * messages in it are released, and a message taken from a MessagePool
+ * goes back to that pool.
  */
 public abstract class Message {
+
+	/**
+	 * Priority class for messages that must go ahead of everything else
+	 * (e.g. autopilot steering data)
+	 */
+	public static final int PRIORITY_HIGH = 0;
+
+	/**
+	 * Priority class for most messages
+	 */
+	public static final int PRIORITY_NORMAL = 1;
+
+	/**
+	 * Priority class for bulk messages that may wait (e.g. satellites)
+	 */
+	public static final int PRIORITY_LOW = 2;
+
+	/**
+	 * The number of priority classes
+	 */
+	public static final int PRIORITIES = 3;
 	
 //	protected boolean delivered = false;
 
 	/**
-	 * The message
+	 * The array holding the message
 	 */
 	protected byte[] message;
 
+	/**
+	 * Where the message starts in the array
+	 */
+	protected int offset = 0;
+
+	/**
+	 * The length of the message
+	 */
+	protected int length = 0;
+
+	/**
+	 * The pooled buffer the array belongs to, or null if it isn't pooled
+	 */
+	protected IngestBuffer ingest = null;
+
+	/**
+	 * Number of holders that still have to release the message
+	 */
+	protected int refs = 1;
+
+	/**
+	 * The pool the message goes back to when released, or null
+	 */
+	protected MessagePool pool = null;
+
+	/**
+	 * Where the message was taken from its pool, when the pool is
+	 * detecting leaks
+	 */
+	protected Throwable origin = null;
+
+	/**
+	 * FNV-1a offset basis
+	 */
+	protected static final long FNV_BASIS = 0xcbf29ce484222325L;
+
+	/**
+	 * FNV-1a prime
+	 */
+	protected static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * 64 bit FNV-1a fingerprint of the message content, computed once
+	 * when it is set
+	 */
+	protected long fingerprint;
+
+	/**
+	 * Hash of the message content, folded from the fingerprint
+	 */
+	protected int hash;
+
 	/**
 	 * The unique id of the mediator sending the message
 	 */
@@ -26,7 +110,45 @@ public abstract class Message {
 	 * The unique name of the mediator sending the message
 	 */
 	protected String senderName;
+
+	/**
+	 * When the content was set, in Clock nanoseconds, to measure how
+	 * long the message takes to get through the server
+	 */
+	protected long ingesttime = 0;
+
+	/**
+	 * The priority class, assigned by the director from its sentence type
+	 */
+	protected int priority = PRIORITY_NORMAL;
+
+	/**
+	 * Frames already encoded for protocols, shared by every client
+	 */
+	protected volatile EncodedFrame frames = null;
 	
+	/**
+	 * Returns the frame already encoded for a protocol
+	 * 
+	 * @param protocol The protocol key (e.g. the handler's class)
+	 * @return byte[] The frame, which must not be changed, or null
+	 */
+	public byte[] getFrame(Object protocol) {
+		EncodedFrame head = frames;
+		return head == null ? null : head.find(protocol);
+	}
+
+	/**
+	 * Cache the frame encoded for a protocol. Threads racing to cache a
+	 * frame may lose one, which only costs encoding it again.
+	 * 
+	 * @param protocol The protocol key (e.g. the handler's class)
+	 * @param frame The encoded frame
+	 */
+	public void putFrame(Object protocol, byte[] frame) {
+		frames = new EncodedFrame(protocol, frame, frames);
+	}
+
 	/**
 	 * Method to determine if this message can be skipped 
 	 * when we need to drop excess messages or if it's
@@ -34,27 +156,193 @@ public abstract class Message {
 	 * @return If this message MUST be delivered
 	 */
 	public boolean isMandatory() {
-		if (message.length > 7 &&
-			message[3] == 'A' && message[4] == 'P' && message[5] == 'B') {
-				return true;
-		}
-		return false;
+		return priority == PRIORITY_HIGH;
+	}
+
+	/**
+	 * Returns when the message's content was set, which for a message
+	 * read from a connection is right after its line was read
+	 * @return long Clock nanoseconds
+	 */
+	public long getIngestTime() {
+		return ingesttime;
+	}
+
+	/**
+	 * Sets when the message came in, e.g. for a message forwarded from
+	 * elsewhere
+	 * @param ingesttime Clock nanoseconds
+	 */
+	public void setIngestTime(long ingesttime) {
+		this.ingesttime = ingesttime;
+	}
+
+	/**
+	 * Returns the priority class (e.g. PRIORITY_HIGH)
+	 * @return int
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Sets the priority class
+	 * @param priority The priority to set (e.g. PRIORITY_HIGH)
+	 */
+	public void setPriority(int priority) {
+		this.priority = priority;
 	}
 	
 	/**
-	 * Returns the message.
+	 * Returns a code identifying the type of message which the director
+	 * uses to route it to subscribers. 0 means the message has no type
+	 * and only goes to mediators that subscribe to everything.
+	 * @return int The type code
+	 */
+	public int getTypeCode() {
+		return 0;
+	}
+
+	/**
+	 * Returns a code identifying the device that sent the message
+	 * (e.g. the NMEA talker id) or 0 if unknown.
+	 * @return int The talker code
+	 */
+	public int getTalkerCode() {
+		return 0;
+	}
+
+	/**
+	 * Returns the message. A message that is a slice of a larger array
+	 * is copied out, so the hot paths use getBuffer, getOffset and
+	 * getLength instead.
 	 * @return byte[]
 	 */
 	public byte[] getMessage() {
+		if (offset == 0 && length == message.length) {
+			return message;
+		}
+		byte[] copy = new byte[length];
+		System.arraycopy(message, offset, copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * Returns the array holding the message, which must not be changed
+	 * @return byte[]
+	 */
+	public byte[] getBuffer() {
 		return message;
 	}
 
+	/**
+	 * Returns where the message starts in getBuffer()
+	 * @return int
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Returns the length of the message
+	 * @return int
+	 */
+	public int getLength() {
+		return length;
+	}
+
 	/**
 	 * Sets the message.
 	 * @param message The message to set
 	 */
 	public void setMessage(byte[] message) {
-		this.message = message;
+		setContent(null, message, 0, message.length);
+	}
+
+	/**
+	 * Sets the message to a slice of a pooled ingest buffer, which the
+	 * message retains until it is released.
+	 * @param buffer The ingest buffer holding the message
+	 * @param offset Where the message starts
+	 * @param length The length of the message
+	 */
+	public void setMessage(IngestBuffer buffer, int offset, int length) {
+		buffer.retain();
+		setContent(buffer, buffer.getData(), offset, length);
+	}
+
+	/**
+	 * Point the message at its new content, letting go of the old ingest
+	 * buffer, and work out the fingerprint and hash
+	 */
+	protected void setContent(IngestBuffer buffer, byte[] data, int off, int len) {
+		if (ingest != null) {
+			ingest.release();
+		}
+		ingest = buffer;
+		message = data;
+		offset = off;
+		length = len;
+		long print = FNV_BASIS;
+		for (int i = off; i < off + len; i++) {
+			print = (print ^ (data[i] & 0xff)) * FNV_PRIME;
+		}
+		fingerprint = print;
+		hash = (int) (print ^ (print >>> 32));
+		frames = null;
+		ingesttime = Clock.nanoTime();
+		parse();
+	}
+
+	/**
+	 * Called whenever the content is set, so subclasses can work out
+	 * what they need from it (e.g. the sentence type)
+	 */
+	protected void parse() {
+	}
+
+	/**
+	 * Take another reference to the message, before handing it to
+	 * another holder (e.g. a client's outbound queue)
+	 */
+	public synchronized void retain() {
+		refs++;
+	}
+
+	/**
+	 * Give up a reference to the message. The last release lets go of
+	 * the ingest buffer and returns a pooled message to its pool, after
+	 * which the message must not be used.
+	 */
+	public void release() {
+		IngestBuffer buffer = null;
+		synchronized (this) {
+			if (refs <= 0) {
+				if (pool != null) {
+					pool.releasedTwice(this);
+				}
+				return;
+			}
+			if (--refs > 0) {
+				return;
+			}
+			buffer = ingest;
+			ingest = null;
+		}
+		if (buffer != null) {
+			buffer.release();
+		}
+		if (pool != null) {
+			pool.recycle(this);
+		}
+	}
+
+	/**
+	 * Returns the number of holders that have not released the message
+	 * @return int
+	 */
+	public synchronized int getReferences() {
+		return refs;
 	}
 
 	/**
@@ -102,6 +390,27 @@ public abstract class Message {
 //		}
 //	}
 	
+	/**
+	 * Returns the 64 bit FNV-1a fingerprint of the message content,
+	 * computed once when the message is set so duplicate checks don't
+	 * have to read the content again. Two different messages only share
+	 * one with odds of about one in 2^64.
+	 * 
+	 * @return long
+	 */
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Returns the hash of the message content, which is computed once
+	 * when the message is set.
+	 * @see java.lang.Object#hashCode()
+	 */
+	public int hashCode() {
+		return hash;
+	}
+
 	/**
 	 * We override this method so that you can do List.contains
 	 * to see if the same message is already in a list
@@ -115,12 +424,16 @@ public abstract class Message {
 		
 		// If it an instance of the same object
 		if (obj instanceof Message) {
-			byte[] message2 = ((Message)obj).getMessage();
-			// If both byte arrays are the same length
-			if (message.length == message2.length) {
-				// Test each byte in the array for equality
-				for (int i = message.length - 1; i > -1; i--) {
-					if (message[i] != message2[i]) {
+			// Different content hashes can't be the same message
+			if (hash != ((Message)obj).hash) {
+				return false;
+			}
+			Message other = (Message)obj;
+			// If both slices are the same length
+			if (length == other.length) {
+				// Test each byte in the slices for equality
+				for (int i = length - 1; i > -1; i--) {
+					if (message[offset + i] != other.message[other.offset + i]) {
 						return false;
 					}
 				}
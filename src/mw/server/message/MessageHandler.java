@@ -4,7 +4,8 @@ package mw.server.message;
  * @author thuss
  *
  * Methods all message handlers must implement. Currently the message handler is only 
- * responsible for creating a message.
+ * responsible for creating a message, and may check the content first and
+ * drop it by returning null.
  */
 public interface MessageHandler {
 
@@ -16,8 +17,48 @@ public interface MessageHandler {
 	 * @param sender_id The unique id of the mediator
 	 * @param sender_name The unique name of the mediator
 	 * @param content The messag content
-	 * @return Message
+	 * @return Message The message, or null if the content was dropped
 	 */
 	public Message createMessage(int sender_id, String sender_name, byte[] content);
 
+	/**
+	 * Builds a message from a slice of an array that is only valid for
+	 * this call (e.g. a protocol's read buffer), so the handler must copy
+	 * the content. The caller owns the one reference the new message
+	 * holds, and hands it on to the director with it.
+	 * 
+	 * @param sender_id The unique id of the mediator
+	 * @param sender_name The unique name of the mediator
+	 * @param buffer The array holding the content
+	 * @param offset Where the content starts
+	 * @param length The length of the content
+	 * @return Message The message, or null if the content was dropped
+	 */
+	public Message createMessage(int sender_id, String sender_name, 
+		byte[] buffer, int offset, int length);
+
+	/**
+	 * The parameter string to pass the message handler (e.g.
+	 * checksum=drop), from the parameters child of its element in the
+	 * configuration file
+	 * 
+	 * @param params The parameters
+	 */
+	public void setParameters(String params);
+
+	/**
+	 * Returns the parameter string, so a handler cloned for a new
+	 * connection can be set up the same way
+	 * 
+	 * @return String The parameters or null
+	 */
+	public String getParameters();
+
+	/**
+	 * Let go of anything the handler holds on to between messages (e.g.
+	 * a pooled buffer it copies content into). Called by the thread that
+	 * creates the messages once it stops, the handler isn't used again.
+	 */
+	public void close();
+
 }
@@ -0,0 +1,233 @@
+package mw.server.message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author thuss
+ *
+ * Bounded pool of Message objects, so a busy source doesn't allocate a
+ * message per sentence. A message taken from the pool holds one
+ * reference, and goes back to the pool when the last holder releases
+ * it (see Message.release). When the pool is empty a new message is
+ * allocated, and when it is full a released message is left to the
+ * garbage collector.
+ * 
+ * With leak detection on, the pool remembers where each message it
+ * hands out was taken, so checkLeaks can report the messages that were
+ * never released and releasing a message twice is logged. That costs
+ * a stack trace per message, so it is meant for tests. It can also be
+ * turned on with -Dmw.server.leakdetection=true.
+ */
+public class MessagePool {
+
+	protected static Logger log = Logger.getLogger(MessagePool.class);
+
+	/**
+	 * The class of the pooled messages
+	 */
+	protected Class type;
+
+	/**
+	 * The free messages
+	 */
+	protected Message[] free;
+
+	/**
+	 * Number of free messages
+	 */
+	protected int count = 0;
+
+	/**
+	 * Number of messages handed out
+	 */
+	protected long acquired = 0;
+
+	/**
+	 * Number of messages given back
+	 */
+	protected long recycled = 0;
+
+	/**
+	 * Number of messages allocated because the pool was empty
+	 */
+	protected long allocated = 0;
+
+	/**
+	 * Number of releases of messages that were already released
+	 */
+	protected long doublereleases = 0;
+
+	/**
+	 * True to remember where each message was taken
+	 */
+	protected boolean leakdetection = 
+		Boolean.getBoolean("mw.server.leakdetection");
+
+	/**
+	 * The messages handed out and not yet back, with leak detection on
+	 */
+	protected List outstanding = new ArrayList();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param type The class of the pooled messages (e.g. NMEAMessage)
+	 * @param capacity The most free messages kept
+	 */
+	public MessagePool(Class type, int capacity) {
+		this.type = type;
+		free = new Message[capacity];
+	}
+
+	/**
+	 * Take a message from the pool. The caller holds its one reference.
+	 * 
+	 * @return Message
+	 */
+	public Message acquire() {
+		Message msg = null;
+		synchronized (this) {
+			acquired++;
+			if (count > 0) {
+				msg = free[--count];
+				free[count] = null;
+			} else {
+				allocated++;
+			}
+		}
+		if (msg == null) {
+			try {
+				msg = (Message) type.newInstance();
+			} catch (Exception e) {
+				throw new RuntimeException("Can't create " + type.getName() + 
+					": " + e);
+			}
+			msg.pool = this;
+		}
+		synchronized (msg) {
+			msg.refs = 1;
+		}
+		if (leakdetection) {
+			msg.origin = new Throwable("Message taken from the pool here");
+			synchronized (this) {
+				outstanding.add(msg);
+			}
+		}
+		return msg;
+	}
+
+	/**
+	 * Put a message nobody references back in the pool. Called by
+	 * Message.release.
+	 * 
+	 * @param msg The released message
+	 */
+	public void recycle(Message msg) {
+		msg.frames = null;
+		msg.message = null;
+		msg.senderName = null;
+		synchronized (this) {
+			recycled++;
+			if (leakdetection) {
+				forget(msg);
+			}
+			if (count < free.length) {
+				free[count++] = msg;
+			}
+		}
+	}
+
+	/**
+	 * Count a release of a message that was already released, which
+	 * means somebody used it without holding a reference
+	 * 
+	 * @param msg The message
+	 */
+	public void releasedTwice(Message msg) {
+		synchronized (this) {
+			doublereleases++;
+		}
+		if (leakdetection) {
+			log.warn("Message released twice", 
+				new Throwable("Released again here"));
+		}
+	}
+
+	/**
+	 * Remove a message from the outstanding list. Messages compare by
+	 * content so it is found by identity.
+	 */
+	protected void forget(Message msg) {
+		for (int i = outstanding.size() - 1; i >= 0; i--) {
+			if (outstanding.get(i) == msg) {
+				outstanding.remove(i);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Log every message taken from the pool since leak detection was
+	 * turned on that hasn't been released yet, with where it was taken
+	 * 
+	 * @return int The number of messages not released
+	 */
+	public synchronized int checkLeaks() {
+		for (int i = 0; i < outstanding.size(); i++) {
+			Message msg = (Message) outstanding.get(i);
+			log.warn("Message not released, " + msg.getReferences() + 
+				" references left", msg.origin);
+		}
+		return outstanding.size();
+	}
+
+	/**
+	 * Turn leak detection on or off. Only messages taken while it is on
+	 * are tracked.
+	 * 
+	 * @param leakdetection True to track messages
+	 */
+	public synchronized void setLeakDetection(boolean leakdetection) {
+		this.leakdetection = leakdetection;
+		outstanding.clear();
+	}
+
+	/**
+	 * Returns the number of messages handed out and not yet back
+	 * 
+	 * @return long
+	 */
+	public synchronized long getOutstanding() {
+		return acquired - recycled;
+	}
+
+	/**
+	 * Returns the number of messages allocated because the pool was empty
+	 * 
+	 * @return long
+	 */
+	public synchronized long getAllocated() {
+		return allocated;
+	}
+
+	/**
+	 * Returns the number of releases of already released messages
+	 * 
+	 * @return long
+	 */
+	public synchronized long getDoubleReleases() {
+		return doublereleases;
+	}
+
+	/**
+	 * Returns the number of free messages
+	 * 
+	 * @return int
+	 */
+	public synchronized int getFree() {
+		return count;
+	}
+}
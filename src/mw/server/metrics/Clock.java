@@ -0,0 +1,54 @@
+package mw.server.metrics;
+
+/**
+ * @author thuss
+ *
+ * Monotonic clock for measuring how long things take. On a JVM with
+ * System.nanoTime it is used, otherwise the clock falls back to the
+ * millisecond wall clock. The nanoTime implementation lives in its own
+ * class which is only loaded once we know the method exists, so the
+ * server still runs on older JREs.
+ */
+public abstract class Clock {
+
+	/**
+	 * The clock in use
+	 */
+	protected static Clock clock = create();
+
+	/**
+	 * Returns the current time of the clock in nanoseconds. Only the
+	 * difference between two readings means anything.
+	 * 
+	 * @return long
+	 */
+	public static long nanoTime() {
+		return clock.nanos();
+	}
+
+	/**
+	 * Returns whether the clock has better than millisecond resolution
+	 * 
+	 * @return boolean
+	 */
+	public static boolean isPrecise() {
+		return !(clock instanceof MillisClock);
+	}
+
+	/**
+	 * Returns the current time in nanoseconds
+	 */
+	protected abstract long nanos();
+
+	/**
+	 * Pick the nanoTime clock if the JVM has it
+	 */
+	protected static Clock create() {
+		try {
+			System.class.getMethod("nanoTime", new Class[0]);
+			return (Clock) Class.forName("mw.server.metrics.NanoClock").newInstance();
+		} catch (Throwable t) {
+			return new MillisClock();
+		}
+	}
+}
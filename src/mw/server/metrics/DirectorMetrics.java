@@ -0,0 +1,200 @@
+package mw.server.metrics;
+
+import mw.server.director.MessageDirector;
+import mw.server.message.Message;
+
+/**
+ * @author thuss
+ *
+ * Loop timing of the director plus its queue and duplicate figures,
+ * and how long each message took from being read to being dispatched
+ * in a LatencyHistogram per priority class. Only the director thread
+ * records, so the counters are plain volatile fields.
+ */
+public class DirectorMetrics implements DirectorMetricsMBean {
+
+	/**
+	 * The director whose queue figures we report
+	 */
+	protected MessageDirector director;
+
+	/**
+	 * Batches distributed
+	 */
+	protected volatile long loops = 0;
+
+	/**
+	 * Messages distributed
+	 */
+	protected volatile long messages = 0;
+
+	/**
+	 * Nanoseconds the last batch took
+	 */
+	protected volatile long lastloop = 0;
+
+	/**
+	 * Nanoseconds the longest batch took
+	 */
+	protected volatile long maxloop = 0;
+
+	/**
+	 * Nanoseconds all batches took
+	 */
+	protected volatile long totalloop = 0;
+
+	/**
+	 * Latency from ingest to dispatch of each priority class
+	 */
+	protected LatencyHistogram[] latency = 
+		MediatorMetrics.newHistograms();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param director The director whose queue figures we report
+	 */
+	public DirectorMetrics(MessageDirector director) {
+		this.director = director;
+	}
+
+	/**
+	 * Record a distributed batch. Only the director thread may call this.
+	 * 
+	 * @param count The number of messages in the batch
+	 * @param nanos How long it took in Clock nanoseconds
+	 */
+	public void recordLoop(int count, long nanos) {
+		loops++;
+		messages += count;
+		lastloop = nanos;
+		totalloop += nanos;
+		if (nanos > maxloop) {
+			maxloop = nanos;
+		}
+	}
+
+	/**
+	 * Record how long a message took from being read to being handed
+	 * to every mediator. Only the director thread may call this.
+	 * 
+	 * @param msg The message just distributed
+	 * @param now The current Clock time in nanoseconds
+	 */
+	public void recordDispatch(Message msg, long now) {
+		latency[msg.getPriority()].record(now - msg.getIngestTime());
+	}
+
+	/**
+	 * Returns the dispatch latencies of a priority class
+	 * 
+	 * @param priority The priority class, e.g. Message.PRIORITY_HIGH
+	 * @return LatencyHistogram
+	 */
+	public LatencyHistogram getLatency(int priority) {
+		return latency[priority];
+	}
+
+	/**
+	 * Returns a dispatch latency percentile of each priority class
+	 */
+	protected long[] percentiles(double fraction) {
+		long[] values = new long[latency.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = latency[i].percentile(fraction);
+		}
+		return values;
+	}
+
+	/**
+	 * @see mw.server.metrics.DirectorMetricsMBean#getDispatchP50Micros()
+	 */
+	public long[] getDispatchP50Micros() {
+		return percentiles(0.5);
+	}
+
+	/**
+	 * @see mw.server.metrics.DirectorMetricsMBean#getDispatchP99Micros()
+	 */
+	public long[] getDispatchP99Micros() {
+		return percentiles(0.99);
+	}
+
+	/**
+	 * @see mw.server.metrics.DirectorMetricsMBean#getDispatchP999Micros()
+	 */
+	public long[] getDispatchP999Micros() {
+		return percentiles(0.999);
+	}
+
+	/**
+	 * @see mw.server.metrics.DirectorMetricsMBean#getLoops()
+	 */
+	public long getLoops() {
+		return loops;
+	}
+
+	/**
+	 * @see mw.server.metrics.DirectorMetricsMBean#getMessages()
+	 */
+	public long getMessages() {
+		return messages;
+	}
+
+	/**
+	 * @see mw.server.metrics.DirectorMetricsMBean#getLastLoopMicros()
+	 */
+	public long getLastLoopMicros() {
+		return lastloop / 1000;
+	}
+
+	/**
+	 * @see mw.server.metrics.DirectorMetricsMBean#getMaxLoopMicros()
+	 */
+	public long getMaxLoopMicros() {
+		return maxloop / 1000;
+	}
+
+	/**
+	 * @see mw.server.metrics.DirectorMetricsMBean#getMeanLoopMicros()
+	 */
+	public long getMeanLoopMicros() {
+		long n = loops;
+		return n == 0 ? 0 : totalloop / n / 1000;
+	}
+
+	/**
+	 * @see mw.server.metrics.DirectorMetricsMBean#getQueueDepth()
+	 */
+	public long getQueueDepth() {
+		return director.getQueueDepth();
+	}
+
+	/**
+	 * @see mw.server.metrics.DirectorMetricsMBean#getQueueDropped()
+	 */
+	public long getQueueDropped() {
+		return director.getQueueDropped();
+	}
+
+	/**
+	 * @see mw.server.metrics.DirectorMetricsMBean#getDuplicates()
+	 */
+	public long getDuplicates() {
+		return director.getSuppressed();
+	}
+
+	/**
+	 * @see mw.server.metrics.DirectorMetricsMBean#getListeners()
+	 */
+	public long getListeners() {
+		return director.getListenerCount();
+	}
+
+	/**
+	 * @see mw.server.metrics.DirectorMetricsMBean#resetMaxLoop()
+	 */
+	public void resetMaxLoop() {
+		maxloop = 0;
+	}
+}
@@ -0,0 +1,103 @@
+package mw.server.metrics;
+
+/**
+ * @author thuss
+ *
+ * Management interface of DirectorMetrics
+ */
+public interface DirectorMetricsMBean {
+
+	/**
+	 * Returns the number of batches the director distributed
+	 * 
+	 * @return long
+	 */
+	public long getLoops();
+
+	/**
+	 * Returns the number of messages the director distributed
+	 * 
+	 * @return long
+	 */
+	public long getMessages();
+
+	/**
+	 * Returns how long the last batch took to distribute
+	 * 
+	 * @return long Microseconds
+	 */
+	public long getLastLoopMicros();
+
+	/**
+	 * Returns the longest a batch took to distribute
+	 * 
+	 * @return long Microseconds
+	 */
+	public long getMaxLoopMicros();
+
+	/**
+	 * Returns the average time a batch took to distribute
+	 * 
+	 * @return long Microseconds
+	 */
+	public long getMeanLoopMicros();
+
+	/**
+	 * Returns the median time from a message being read to the director
+	 * having handed it to every mediator, for each priority class (high,
+	 * normal, low)
+	 * 
+	 * @return long[] Microseconds
+	 */
+	public long[] getDispatchP50Micros();
+
+	/**
+	 * Returns the 99th percentile of the time from read to dispatch, for
+	 * each priority class
+	 * 
+	 * @return long[] Microseconds
+	 */
+	public long[] getDispatchP99Micros();
+
+	/**
+	 * Returns the 99.9th percentile of the time from read to dispatch,
+	 * for each priority class
+	 * 
+	 * @return long[] Microseconds
+	 */
+	public long[] getDispatchP999Micros();
+
+	/**
+	 * Returns the number of messages waiting for the director
+	 * 
+	 * @return long
+	 */
+	public long getQueueDepth();
+
+	/**
+	 * Returns the number of messages dropped because the director's
+	 * queue was full
+	 * 
+	 * @return long
+	 */
+	public long getQueueDropped();
+
+	/**
+	 * Returns the number of messages suppressed as duplicates
+	 * 
+	 * @return long
+	 */
+	public long getDuplicates();
+
+	/**
+	 * Returns the number of mediators listening for messages
+	 * 
+	 * @return long
+	 */
+	public long getListeners();
+
+	/**
+	 * Forget the longest batch time so a new peak can be seen
+	 */
+	public void resetMaxLoop();
+}
@@ -0,0 +1,124 @@
+package mw.server.metrics;
+
+import java.lang.reflect.Method;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author thuss
+ *
+ * Registers MBeans with the platform MBean server. JMX is only reached
+ * through reflection and only from this class, so the server still
+ * compiles and runs on JREs without java.lang.management, where
+ * registering just logs a warning once.
+ */
+public class JmxExporter {
+
+	protected static Logger log = Logger.getLogger(JmxExporter.class);
+
+	/**
+	 * The platform MBean server or null if there is none
+	 */
+	protected static Object server = null;
+
+	/**
+	 * MBeanServer.registerMBean(Object, ObjectName)
+	 */
+	protected static Method register = null;
+
+	/**
+	 * MBeanServer.unregisterMBean(ObjectName)
+	 */
+	protected static Method unregister = null;
+
+	/**
+	 * ObjectName.quote(String)
+	 */
+	protected static Method quote = null;
+
+	/**
+	 * The ObjectName class
+	 */
+	protected static Class objectname = null;
+
+	/**
+	 * Whether we looked for the MBean server yet
+	 */
+	protected static boolean looked = false;
+
+	/**
+	 * Register an MBean
+	 * 
+	 * @param type The type part of its name, e.g. Mediator
+	 * @param name The name part of its name, e.g. NMEAonCOM1
+	 * @param mbean The standard MBean
+	 * @return boolean True if it was registered
+	 */
+	public static synchronized boolean register(String type, String name, 
+		Object mbean) {
+		if (!find()) {
+			return false;
+		}
+		try {
+			register.invoke(server, new Object[] { mbean, objectName(type, name) });
+			return true;
+		} catch (Exception e) {
+			log.warn("Can't register " + type + " " + name + " with JMX: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Unregister an MBean registered earlier
+	 * 
+	 * @param type The type part of its name
+	 * @param name The name part of its name
+	 */
+	public static synchronized void unregister(String type, String name) {
+		if (!find()) {
+			return;
+		}
+		try {
+			unregister.invoke(server, new Object[] { objectName(type, name) });
+		} catch (Exception e) {
+			log.warn("Can't unregister " + type + " " + name + " from JMX: " + e);
+		}
+	}
+
+	/**
+	 * Build the ObjectName mw.server:type=type,name="name"
+	 */
+	protected static Object objectName(String type, String name) 
+		throws Exception {
+		String quoted = (String) quote.invoke(null, new Object[] { name });
+		return objectname.getConstructor(new Class[] { String.class })
+			.newInstance(new Object[] { "mw.server:type=" + type + ",name=" + quoted });
+	}
+
+	/**
+	 * Look up the platform MBean server the first time
+	 * 
+	 * @return boolean True if there is one
+	 */
+	protected static boolean find() {
+		if (!looked) {
+			looked = true;
+			try {
+				server = Class.forName("java.lang.management.ManagementFactory")
+					.getMethod("getPlatformMBeanServer", new Class[0])
+					.invoke(null, new Object[0]);
+				Class mbeanserver = Class.forName("javax.management.MBeanServer");
+				objectname = Class.forName("javax.management.ObjectName");
+				register = mbeanserver.getMethod("registerMBean", 
+					new Class[] { Object.class, objectname });
+				unregister = mbeanserver.getMethod("unregisterMBean", 
+					new Class[] { objectname });
+				quote = objectname.getMethod("quote", new Class[] { String.class });
+			} catch (Throwable t) {
+				server = null;
+				log.warn("JMX needs Java 5 or later, metrics are not exported");
+			}
+		}
+		return server != null;
+	}
+}
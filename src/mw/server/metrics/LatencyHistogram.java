@@ -0,0 +1,200 @@
+package mw.server.metrics;
+
+/**
+ * @author thuss
+ *
+ * Fixed memory histogram of latencies in microseconds with logarithmic
+ * buckets. Values below 16us get a bucket each, above that every power
+ * of two is split into 8 buckets, so a percentile is within 12.5% of
+ * the true value, and the top bucket holds everything from about 9
+ * hours up. Recording is an array increment without allocation or
+ * locks, so only one thread may record into a histogram. Readers on
+ * other threads see counts that may be a moment out of date.
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Bits of each power of two used to pick a sub bucket
+	 */
+	protected static final int SUBBITS = 3;
+
+	/**
+	 * Sub buckets per power of two
+	 */
+	protected static final int SUB = 1 << SUBBITS;
+
+	/**
+	 * The highest power of two with its own buckets
+	 */
+	protected static final int MAXEXP = 35;
+
+	/**
+	 * Number of buckets
+	 */
+	public static final int BUCKETS = (MAXEXP - SUBBITS + 2) * SUB;
+
+	/**
+	 * The count of each bucket
+	 */
+	protected long[] counts = new long[BUCKETS];
+
+	/**
+	 * Total number of values recorded
+	 */
+	protected volatile long count = 0;
+
+	/**
+	 * Record a latency
+	 * 
+	 * @param nanos The latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		counts[bucket(nanos / 1000)]++;
+		count++;
+	}
+
+	/**
+	 * Add the counts of another histogram to this one
+	 * 
+	 * @param other The histogram to add
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+	}
+
+	/**
+	 * Forget everything recorded
+	 */
+	public void clear() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+	}
+
+	/**
+	 * Returns the number of values recorded
+	 * 
+	 * @return long
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the latency a fraction of the values are at or below,
+	 * e.g. 0.99 for the 99th percentile
+	 * 
+	 * @param fraction The fraction between 0 and 1
+	 * @return long The upper bound of the bucket holding that value in
+	 * microseconds, 0 if nothing was recorded
+	 */
+	public long percentile(double fraction) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * total);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	/**
+	 * Returns the bucket of a value in microseconds
+	 * 
+	 * @param micros The value
+	 * @return int The bucket index
+	 */
+	protected static int bucket(long micros) {
+		if (micros < 2 * SUB) {
+			return micros < 0 ? 0 : (int) micros;
+		}
+		// Find the highest set bit
+		int e = 0;
+		long x = micros;
+		if (x >= 1L << 32) {
+			x >>>= 32;
+			e += 32;
+		}
+		if (x >= 1L << 16) {
+			x >>>= 16;
+			e += 16;
+		}
+		if (x >= 1L << 8) {
+			x >>>= 8;
+			e += 8;
+		}
+		if (x >= 1L << 4) {
+			x >>>= 4;
+			e += 4;
+		}
+		if (x >= 1L << 2) {
+			x >>>= 2;
+			e += 2;
+		}
+		if (x >= 1L << 1) {
+			e += 1;
+		}
+		if (e > MAXEXP) {
+			return BUCKETS - 1;
+		}
+		return (e - SUBBITS + 1) * SUB + (int) ((micros >> (e - SUBBITS)) & (SUB - 1));
+	}
+
+	/**
+	 * Returns the highest value in microseconds that falls in a bucket
+	 * 
+	 * @param i The bucket index
+	 * @return long
+	 */
+	protected static long upperBound(int i) {
+		if (i < 2 * SUB) {
+			return i;
+		}
+		int e = i / SUB + SUBBITS - 1;
+		long lower = (long) (SUB + i % SUB) << (e - SUBBITS);
+		return lower + (1L << (e - SUBBITS)) - 1;
+	}
+
+	/**
+	 * Test method which checks every value lands in a bucket whose
+	 * bounds hold it and prints the percentiles of a known spread
+	 * @param args Not used
+	 */
+	public static void main(String[] args) {
+		for (long v = 0; v < 1L << 36; v = v < 100000 ? v + 1 : v * 3 / 2) {
+			int b = bucket(v);
+			long low = b == 0 ? 0 : upperBound(b - 1) + 1;
+			if (v > upperBound(BUCKETS - 2)) {
+				continue;
+			}
+			if (v < low || v > upperBound(b)) {
+				System.out.println("FAILED: " + v + " in bucket " + b + " [" + 
+					low + ", " + upperBound(b) + "]");
+				return;
+			}
+		}
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 1; i <= 100000; i++) {
+			h.record(i * 1000L);
+		}
+		System.out.println(BUCKETS + " buckets, 1..100000us uniform: p50=" + 
+			h.percentile(0.5) + " p99=" + h.percentile(0.99) + " p999=" + 
+			h.percentile(0.999));
+	}
+}
@@ -0,0 +1,522 @@
+package mw.server.metrics;
+
+import mw.server.message.Message;
+
+/**
+ * @author thuss
+ *
+ * Counters and gauges of one mediator. Each thread that moves messages
+ * gets its own MediatorMetrics, attached as a child of the mediator's,
+ * and only that thread counts into it (the reader counts in and the 
+ * writer counts out), so counting is a plain volatile increment without
+ * locks. Reading a figure adds up the children and the totals of the
+ * children that have been detached, which is the only place that locks.
+ * The queue and drop figures are read from each one's MetricsSource.
+ * 
+ * The writer also records how long each message took from being read
+ * to being handed to the protocol handler, in a LatencyHistogram per
+ * priority class.
+ */
+public class MediatorMetrics implements MediatorMetricsMBean {
+
+	/**
+	 * Index of the messages read
+	 */
+	public static final int MESSAGES_IN = 0;
+
+	/**
+	 * Index of the bytes read
+	 */
+	public static final int BYTES_IN = 1;
+
+	/**
+	 * Index of the messages written
+	 */
+	public static final int MESSAGES_OUT = 2;
+
+	/**
+	 * Index of the bytes written
+	 */
+	public static final int BYTES_OUT = 3;
+
+	/**
+	 * Index of the connections opened
+	 */
+	public static final int CONNECTS = 4;
+
+	/**
+	 * Index of the connections closed
+	 */
+	public static final int DISCONNECTS = 5;
+
+	/**
+	 * Index of the duplicates suppressed
+	 */
+	public static final int DUPLICATES = 6;
+
+	/**
+	 * Index of the messages the overflow policy dropped
+	 */
+	public static final int QUEUE_DROPPED = 7;
+
+	/**
+	 * Index of the messages the rate limits dropped
+	 */
+	public static final int RATE_LIMITED = 8;
+
+	/**
+	 * Index of the messages dropped for a busy serial link
+	 */
+	public static final int LINE_DROPS = 9;
+
+	/**
+	 * Index of the lines that failed their checks
+	 */
+	public static final int BAD_SENTENCES = 10;
+
+	/**
+	 * Index of the messages waiting, which isn't kept once a child
+	 * is detached
+	 */
+	public static final int QUEUE_DEPTH = 11;
+
+	/**
+	 * Number of figures
+	 */
+	public static final int FIGURES = 12;
+
+	/**
+	 * The name of the mediator or connection
+	 */
+	protected String name;
+
+	/**
+	 * Where the queue and drop figures come from, null for none
+	 */
+	protected MetricsSource source;
+
+	/**
+	 * The metrics this one is attached to, null for a mediator's
+	 */
+	protected MediatorMetrics parent = null;
+
+	/**
+	 * The attached children, replaced whenever one comes or goes
+	 */
+	protected volatile MediatorMetrics[] children = new MediatorMetrics[0];
+
+	/**
+	 * The totals of detached children, indexed like the figures
+	 */
+	protected long[] retired = new long[FIGURES];
+
+	/**
+	 * The latest activity of detached children
+	 */
+	protected long retiredactivity = 0;
+
+	/**
+	 * Latency from ingest to write of each priority class
+	 */
+	protected LatencyHistogram[] latency = newHistograms();
+
+	/**
+	 * Latencies of detached children
+	 */
+	protected LatencyHistogram[] retiredlatency = null;
+
+	/**
+	 * Where the latencies are added up for reading, null until then
+	 */
+	protected LatencyHistogram scratch = null;
+
+	/**
+	 * Messages read
+	 */
+	protected volatile long messagesin = 0;
+
+	/**
+	 * Bytes read
+	 */
+	protected volatile long bytesin = 0;
+
+	/**
+	 * Messages written
+	 */
+	protected volatile long messagesout = 0;
+
+	/**
+	 * Bytes written
+	 */
+	protected volatile long bytesout = 0;
+
+	/**
+	 * Connections opened
+	 */
+	protected volatile long connects = 0;
+
+	/**
+	 * Connections closed
+	 */
+	protected volatile long disconnects = 0;
+
+	/**
+	 * When a message was last read or written
+	 */
+	protected volatile long lastactivity = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param name The name of the mediator or connection
+	 * @param source Where the queue and drop figures come from or null
+	 */
+	public MediatorMetrics(String name, MetricsSource source) {
+		this.name = name;
+		this.source = source;
+	}
+
+	/**
+	 * Create metrics for a connection or thread of this mediator and
+	 * attach them
+	 * 
+	 * @param childname The name of the connection
+	 * @param childsource Where its queue and drop figures come from
+	 * @return MediatorMetrics The attached child
+	 */
+	public MediatorMetrics newChild(String childname, MetricsSource childsource) {
+		MediatorMetrics child = new MediatorMetrics(childname, childsource);
+		child.parent = this;
+		synchronized (this) {
+			MediatorMetrics[] c = new MediatorMetrics[children.length + 1];
+			System.arraycopy(children, 0, c, 0, children.length);
+			c[children.length] = child;
+			children = c;
+		}
+		return child;
+	}
+
+	/**
+	 * Detach from the parent once the thread counting into these metrics
+	 * is done, adding what was counted to the parent's totals
+	 */
+	public void detach() {
+		if (parent != null) {
+			parent.retire(this);
+			parent = null;
+		}
+	}
+
+	/**
+	 * Remove a child and keep its totals
+	 */
+	protected synchronized void retire(MediatorMetrics child) {
+		MediatorMetrics[] c = children;
+		for (int i = 0; i < c.length; i++) {
+			if (c[i] == child) {
+				MediatorMetrics[] n = new MediatorMetrics[c.length - 1];
+				System.arraycopy(c, 0, n, 0, i);
+				System.arraycopy(c, i + 1, n, i, c.length - i - 1);
+				for (int j = 0; j < QUEUE_DEPTH; j++) {
+					retired[j] += child.get(j);
+				}
+				retiredactivity = Math.max(retiredactivity, child.getLastActivity());
+				if (retiredlatency == null) {
+					retiredlatency = newHistograms();
+				}
+				for (int j = 0; j < Message.PRIORITIES; j++) {
+					child.collectLatency(j, retiredlatency[j]);
+				}
+				children = n;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Count a message read. Only the reading thread may call this.
+	 * 
+	 * @param bytes The length of the message with its line end
+	 * @param now The current time in milliseconds
+	 */
+	public void countIn(int bytes, long now) {
+		messagesin++;
+		bytesin += bytes;
+		lastactivity = now;
+	}
+
+	/**
+	 * Count messages written. Only the writing thread may call this.
+	 * 
+	 * @param messages The number of messages written
+	 * @param bytes The bytes the protocol sent for them, framing included
+	 * @param now The current time in milliseconds
+	 */
+	public void countOut(int messages, long bytes, long now) {
+		messagesout += messages;
+		bytesout += bytes;
+		lastactivity = now;
+	}
+
+	/**
+	 * Record how long a message took from being read to being written.
+	 * Only the writing thread may call this.
+	 * 
+	 * @param msg The message just handed to the protocol handler
+	 * @param now The current Clock time in nanoseconds
+	 */
+	public void recordWrite(Message msg, long now) {
+		latency[msg.getPriority()].record(now - msg.getIngestTime());
+	}
+
+	/**
+	 * Add the write latencies of a priority class of this mediator and
+	 * every connection it served to a histogram
+	 * 
+	 * @param priority The priority class, e.g. Message.PRIORITY_HIGH
+	 * @param into The histogram to add to
+	 */
+	public synchronized void collectLatency(int priority, LatencyHistogram into) {
+		into.add(latency[priority]);
+		if (retiredlatency != null) {
+			into.add(retiredlatency[priority]);
+		}
+		MediatorMetrics[] c = children;
+		for (int i = 0; i < c.length; i++) {
+			c[i].collectLatency(priority, into);
+		}
+	}
+
+	/**
+	 * Returns a write latency percentile of each priority class
+	 * 
+	 * @param fraction The fraction, e.g. 0.99
+	 * @return long[] Microseconds, indexed by priority
+	 */
+	protected synchronized long[] percentiles(double fraction) {
+		if (scratch == null) {
+			scratch = new LatencyHistogram();
+		}
+		long[] values = new long[Message.PRIORITIES];
+		for (int i = 0; i < values.length; i++) {
+			scratch.clear();
+			collectLatency(i, scratch);
+			values[i] = scratch.percentile(fraction);
+		}
+		return values;
+	}
+
+	/**
+	 * Create a histogram for each priority class
+	 */
+	protected static LatencyHistogram[] newHistograms() {
+		LatencyHistogram[] h = new LatencyHistogram[Message.PRIORITIES];
+		for (int i = 0; i < h.length; i++) {
+			h[i] = new LatencyHistogram();
+		}
+		return h;
+	}
+
+	/**
+	 * Count a connection opened. Only the thread serving it may call this.
+	 */
+	public void connected() {
+		connects++;
+	}
+
+	/**
+	 * Count a connection closed. Only the thread serving it may call this.
+	 */
+	public void disconnected() {
+		disconnects++;
+	}
+
+	/**
+	 * Returns a figure of this mediator and every connection it served
+	 * 
+	 * @param figure The index of the figure, e.g. MESSAGES_IN
+	 * @return long
+	 */
+	public synchronized long get(int figure) {
+		long total = own(figure) + (figure < QUEUE_DEPTH ? retired[figure] : 0);
+		MediatorMetrics[] c = children;
+		for (int i = 0; i < c.length; i++) {
+			total += c[i].get(figure);
+		}
+		return total;
+	}
+
+	/**
+	 * Returns a figure of this one alone
+	 */
+	protected long own(int figure) {
+		if (figure == MESSAGES_IN) {
+			return messagesin;
+		} else if (figure == BYTES_IN) {
+			return bytesin;
+		} else if (figure == MESSAGES_OUT) {
+			return messagesout;
+		} else if (figure == BYTES_OUT) {
+			return bytesout;
+		} else if (figure == CONNECTS) {
+			return connects;
+		} else if (figure == DISCONNECTS) {
+			return disconnects;
+		} else if (source == null) {
+			return 0;
+		} else if (figure == DUPLICATES) {
+			return source.getSuppressed();
+		} else if (figure == QUEUE_DROPPED) {
+			return source.getQueueDropped();
+		} else if (figure == RATE_LIMITED) {
+			return source.getRateLimited();
+		} else if (figure == LINE_DROPS) {
+			return source.getLineDrops();
+		} else if (figure == BAD_SENTENCES) {
+			return source.getBadSentences();
+		} else if (figure == QUEUE_DEPTH) {
+			return source.getQueueDepth();
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the attached children
+	 * 
+	 * @return MediatorMetrics[]
+	 */
+	public MediatorMetrics[] getChildren() {
+		return children;
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getName()
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getMessagesIn()
+	 */
+	public long getMessagesIn() {
+		return get(MESSAGES_IN);
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getBytesIn()
+	 */
+	public long getBytesIn() {
+		return get(BYTES_IN);
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getMessagesOut()
+	 */
+	public long getMessagesOut() {
+		return get(MESSAGES_OUT);
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getBytesOut()
+	 */
+	public long getBytesOut() {
+		return get(BYTES_OUT);
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getDuplicates()
+	 */
+	public long getDuplicates() {
+		return get(DUPLICATES);
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getQueueDropped()
+	 */
+	public long getQueueDropped() {
+		return get(QUEUE_DROPPED);
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getRateLimited()
+	 */
+	public long getRateLimited() {
+		return get(RATE_LIMITED);
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getLineDrops()
+	 */
+	public long getLineDrops() {
+		return get(LINE_DROPS);
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getBadSentences()
+	 */
+	public long getBadSentences() {
+		return get(BAD_SENTENCES);
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getQueueDepth()
+	 */
+	public long getQueueDepth() {
+		return get(QUEUE_DEPTH);
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getLastActivity()
+	 */
+	public synchronized long getLastActivity() {
+		long last = Math.max(lastactivity, retiredactivity);
+		MediatorMetrics[] c = children;
+		for (int i = 0; i < c.length; i++) {
+			last = Math.max(last, c[i].getLastActivity());
+		}
+		return last;
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getWriteP50Micros()
+	 */
+	public long[] getWriteP50Micros() {
+		return percentiles(0.5);
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getWriteP99Micros()
+	 */
+	public long[] getWriteP99Micros() {
+		return percentiles(0.99);
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getWriteP999Micros()
+	 */
+	public long[] getWriteP999Micros() {
+		return percentiles(0.999);
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getConnects()
+	 */
+	public long getConnects() {
+		return get(CONNECTS);
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getDisconnects()
+	 */
+	public long getDisconnects() {
+		return get(DISCONNECTS);
+	}
+
+	/**
+	 * @see mw.server.metrics.MediatorMetricsMBean#getConnected()
+	 */
+	public long getConnected() {
+		return get(CONNECTS) - get(DISCONNECTS);
+	}
+}
@@ -0,0 +1,140 @@
+package mw.server.metrics;
+
+/**
+ * @author thuss
+ *
+ * Management interface of MediatorMetrics. The counters of a mediator
+ * include those of every connection it serves, current and past.
+ */
+public interface MediatorMetricsMBean {
+
+	/**
+	 * Returns the name of the mediator
+	 * 
+	 * @return String
+	 */
+	public String getName();
+
+	/**
+	 * Returns the number of messages read and sent to the director
+	 * 
+	 * @return long
+	 */
+	public long getMessagesIn();
+
+	/**
+	 * Returns the number of bytes of those messages, counting CR LF
+	 * 
+	 * @return long
+	 */
+	public long getBytesIn();
+
+	/**
+	 * Returns the number of messages written, once per connection
+	 * 
+	 * @return long
+	 */
+	public long getMessagesOut();
+
+	/**
+	 * Returns the number of bytes of those messages, counting CR LF
+	 * 
+	 * @return long
+	 */
+	public long getBytesOut();
+
+	/**
+	 * Returns the number of messages suppressed as duplicates
+	 * 
+	 * @return long
+	 */
+	public long getDuplicates();
+
+	/**
+	 * Returns the number of messages the overflow policy dropped
+	 * 
+	 * @return long
+	 */
+	public long getQueueDropped();
+
+	/**
+	 * Returns the number of messages the rate limits dropped
+	 * 
+	 * @return long
+	 */
+	public long getRateLimited();
+
+	/**
+	 * Returns the number of low priority messages dropped for a busy
+	 * serial link
+	 * 
+	 * @return long
+	 */
+	public long getLineDrops();
+
+	/**
+	 * Returns the number of incoming lines that failed their checks
+	 * 
+	 * @return long
+	 */
+	public long getBadSentences();
+
+	/**
+	 * Returns the number of messages waiting to be written
+	 * 
+	 * @return long
+	 */
+	public long getQueueDepth();
+
+	/**
+	 * Returns when a message was last read or written, 0 for never
+	 * 
+	 * @return long Milliseconds since 1970
+	 */
+	public long getLastActivity();
+
+	/**
+	 * Returns the median time from a message being read to it being
+	 * written, for each priority class (high, normal, low)
+	 * 
+	 * @return long[] Microseconds
+	 */
+	public long[] getWriteP50Micros();
+
+	/**
+	 * Returns the 99th percentile of the time from read to write, for
+	 * each priority class
+	 * 
+	 * @return long[] Microseconds
+	 */
+	public long[] getWriteP99Micros();
+
+	/**
+	 * Returns the 99.9th percentile of the time from read to write, for
+	 * each priority class
+	 * 
+	 * @return long[] Microseconds
+	 */
+	public long[] getWriteP999Micros();
+
+	/**
+	 * Returns the number of connections opened
+	 * 
+	 * @return long
+	 */
+	public long getConnects();
+
+	/**
+	 * Returns the number of connections closed
+	 * 
+	 * @return long
+	 */
+	public long getDisconnects();
+
+	/**
+	 * Returns the number of connections open now
+	 * 
+	 * @return long
+	 */
+	public long getConnected();
+}
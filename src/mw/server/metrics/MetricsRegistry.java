@@ -0,0 +1,151 @@
+package mw.server.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import mw.server.director.MessageDirector;
+
+/**
+ * @author thuss
+ *
+ * Keeps the metrics of the director and of every running mediator, and
+ * when the "jmx" feature is enabled exports them as MBeans named
+ * mw.server:type=Mediator,name=... and mw.server:type=Director. When
+ * the "statushttp" feature is enabled it also starts a StatusServer.
+ */
+public class MetricsRegistry {
+
+	protected static Logger log = Logger.getLogger(MetricsRegistry.class);
+
+	/**
+	 * The registry singleton
+	 */
+	protected static MetricsRegistry registry = new MetricsRegistry();
+
+	/**
+	 * The metrics of each running mediator, replaced whenever one comes
+	 * or goes so readers can walk it without copying
+	 */
+	protected volatile MediatorMetrics[] mediators = new MediatorMetrics[0];
+
+	/**
+	 * The director's metrics
+	 */
+	protected DirectorMetrics director = null;
+
+	/**
+	 * When true metrics are exported as MBeans
+	 */
+	protected boolean jmx = false;
+
+	/**
+	 * The HTTP status listener, null unless the feature is enabled
+	 */
+	protected StatusServer status = null;
+
+	/**
+	 * Get the instance of the registry
+	 * 
+	 * @return MetricsRegistry
+	 */
+	public static MetricsRegistry getInstance() {
+		return registry;
+	}
+
+	/**
+	 * Configure the registry from the enabled features. This must be
+	 * called before any mediator starts.
+	 * 
+	 * @param features The enabled features from the configuration file
+	 */
+	public synchronized void configure(Map features) {
+		jmx = features != null && features.containsKey("jmx");
+		if (jmx && director != null) {
+			JmxExporter.register("Director", "MessageDirector", director);
+		}
+		if (features != null && features.containsKey("statushttp") && status == null) {
+			try {
+				status = new StatusServer(this, (String) features.get("statushttp"));
+				Thread thread = new Thread(status, "StatusHttp");
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				log.warn("Can't start the HTTP status listener: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the director's metrics, creating them the first time
+	 * 
+	 * @param md The director
+	 * @return DirectorMetrics
+	 */
+	public synchronized DirectorMetrics getDirectorMetrics(MessageDirector md) {
+		if (director == null) {
+			director = new DirectorMetrics(md);
+			if (jmx) {
+				JmxExporter.register("Director", "MessageDirector", director);
+			}
+		}
+		return director;
+	}
+
+	/**
+	 * Add the metrics of a mediator that started
+	 * 
+	 * @param metrics The mediator's metrics
+	 */
+	public synchronized void register(MediatorMetrics metrics) {
+		MediatorMetrics[] m = new MediatorMetrics[mediators.length + 1];
+		System.arraycopy(mediators, 0, m, 0, mediators.length);
+		m[mediators.length] = metrics;
+		mediators = m;
+		if (jmx) {
+			JmxExporter.register("Mediator", metrics.getName(), metrics);
+		}
+	}
+
+	/**
+	 * Remove the metrics of a mediator that stopped
+	 * 
+	 * @param metrics The mediator's metrics
+	 */
+	public synchronized void unregister(MediatorMetrics metrics) {
+		MediatorMetrics[] m = mediators;
+		for (int i = 0; i < m.length; i++) {
+			if (m[i] == metrics) {
+				MediatorMetrics[] n = new MediatorMetrics[m.length - 1];
+				System.arraycopy(m, 0, n, 0, i);
+				System.arraycopy(m, i + 1, n, i, m.length - i - 1);
+				mediators = n;
+				if (jmx) {
+					JmxExporter.unregister("Mediator", metrics.getName());
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the metrics of the running mediators. The array must not
+	 * be changed.
+	 * 
+	 * @return MediatorMetrics[]
+	 */
+	public MediatorMetrics[] getMediators() {
+		return mediators;
+	}
+
+	/**
+	 * Returns the director's metrics or null if the director hasn't
+	 * started
+	 * 
+	 * @return DirectorMetrics
+	 */
+	public synchronized DirectorMetrics getDirectorMetrics() {
+		return director;
+	}
+}
@@ -0,0 +1,55 @@
+package mw.server.metrics;
+
+/**
+ * @author thuss
+ *
+ * Something whose queue and drop figures MediatorMetrics reports, e.g.
+ * a mediator or a SelectorLoop. The figures are read from other threads
+ * (JMX or the status page) so they may be a moment out of date.
+ */
+public interface MetricsSource {
+
+	/**
+	 * Returns the number of messages waiting to be written
+	 * 
+	 * @return int
+	 */
+	public int getQueueDepth();
+
+	/**
+	 * Returns the number of messages the overflow policy dropped
+	 * 
+	 * @return long
+	 */
+	public long getQueueDropped();
+
+	/**
+	 * Returns the number of messages suppressed as duplicates
+	 * 
+	 * @return long
+	 */
+	public long getSuppressed();
+
+	/**
+	 * Returns the number of messages the rate limits dropped
+	 * 
+	 * @return long
+	 */
+	public long getRateLimited();
+
+	/**
+	 * Returns the number of low priority messages dropped because a
+	 * serial link was busy
+	 * 
+	 * @return long
+	 */
+	public long getLineDrops();
+
+	/**
+	 * Returns the number of incoming lines that failed the message
+	 * handler's checks
+	 * 
+	 * @return long
+	 */
+	public long getBadSentences();
+}
@@ -0,0 +1,16 @@
+package mw.server.metrics;
+
+/**
+ * @author thuss
+ *
+ * Clock for JVMs without System.nanoTime, with millisecond resolution
+ */
+public class MillisClock extends Clock {
+
+	/**
+	 * @see mw.server.metrics.Clock#nanos()
+	 */
+	protected long nanos() {
+		return System.currentTimeMillis() * 1000000;
+	}
+}
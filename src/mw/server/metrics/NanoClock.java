@@ -0,0 +1,17 @@
+package mw.server.metrics;
+
+/**
+ * @author thuss
+ *
+ * Clock reading System.nanoTime. Only Clock loads this class, and only
+ * on a JVM that has the method.
+ */
+public class NanoClock extends Clock {
+
+	/**
+	 * @see mw.server.metrics.Clock#nanos()
+	 */
+	protected long nanos() {
+		return System.nanoTime();
+	}
+}
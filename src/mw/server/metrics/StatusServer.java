@@ -0,0 +1,629 @@
+package mw.server.metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.StringTokenizer;
+
+import org.apache.log4j.Logger;
+
+import mw.server.message.Message;
+
+/**
+ * @author thuss
+ *
+ * Tiny HTTP listener for the "statushttp" feature so a server running
+ * headless can be watched without JMX. GET /metrics returns the director,
+ * mediator and connection metrics in Prometheus text format and GET
+ * /status returns the mediators, their connections and queue depths as
+ * JSON. Requests are served one at a time on a single daemon thread.
+ * Pages are rendered into byte buffers that are kept between requests
+ * and numbers are written digit by digit, so apart from the accepted
+ * socket a scrape allocates nothing. The options look like
+ * "port=8080:bind=127.0.0.1", the default is port 8080 on every
+ * interface.
+ */
+public class StatusServer implements Runnable {
+
+	protected static Logger log = Logger.getLogger(StatusServer.class);
+
+	/**
+	 * Prometheus names of the mediator figures, indexed like the
+	 * MediatorMetrics figures
+	 */
+	protected static final String[] NAMES = { "messages_in_total",
+		"bytes_in_total", "messages_out_total", "bytes_out_total",
+		"connects_total", "disconnects_total", "duplicates_total",
+		"queue_dropped_total", "rate_limited_total", "line_drops_total",
+		"bad_sentences_total", "queue_depth" };
+
+	/**
+	 * Help text of the mediator figures
+	 */
+	protected static final String[] HELP = { "Messages read",
+		"Bytes read", "Messages written", "Bytes written",
+		"Connections opened", "Connections closed",
+		"Messages suppressed as duplicates",
+		"Messages the outbound queue overflow policy dropped",
+		"Messages the rate limits dropped",
+		"Messages dropped for a busy serial link",
+		"Lines that failed their checks", "Messages waiting to be written" };
+
+	/**
+	 * JSON names of the mediator figures
+	 */
+	protected static final String[] KEYS = { "messagesIn", "bytesIn",
+		"messagesOut", "bytesOut", "connects", "disconnects", "duplicates",
+		"queueDropped", "rateLimited", "lineDrops", "badSentences",
+		"queueDepth" };
+
+	/**
+	 * Label values of the priority classes, indexed by priority
+	 */
+	protected static final String[] PRIORITIES = { "high", "normal", "low" };
+
+	/**
+	 * The reported latency quantiles
+	 */
+	protected static final double[] FRACTIONS = { 0.5, 0.99, 0.999 };
+
+	/**
+	 * Label values of the reported latency quantiles
+	 */
+	protected static final String[] QUANTILES = { "0.5", "0.99", "0.999" };
+
+	/**
+	 * How long to wait for a request in milliseconds
+	 */
+	protected static final int TIMEOUT = 2000;
+
+	/**
+	 * Where the metrics come from
+	 */
+	protected MetricsRegistry registry;
+
+	/**
+	 * The listening socket
+	 */
+	protected ServerSocket server;
+
+	/**
+	 * The request being read, only the request line is looked at
+	 */
+	protected byte[] request = new byte[1024];
+
+	/**
+	 * The response headers
+	 */
+	protected byte[] head = new byte[256];
+
+	/**
+	 * The response body, grown if a page doesn't fit and kept
+	 */
+	protected byte[] body = new byte[16384];
+
+	/**
+	 * Length of the response body
+	 */
+	protected int length = 0;
+
+	/**
+	 * Where the write latencies of a mediator are added up
+	 */
+	protected LatencyHistogram scratch = new LatencyHistogram();
+
+	/**
+	 * Constructor, opens the listening socket.
+	 *
+	 * @param registry Where the metrics come from
+	 * @param options The feature options (e.g. port=8080:bind=127.0.0.1)
+	 * @throws IOException The port couldn't be opened
+	 */
+	public StatusServer(MetricsRegistry registry, String options) throws IOException {
+		this.registry = registry;
+		int port = 8080;
+		String bind = null;
+		if (options != null) {
+			StringTokenizer strtok = new StringTokenizer(options, ":");
+			StringTokenizer strtok2 = null;
+			while (strtok.hasMoreTokens()) {
+				String nexttok = strtok.nextToken();
+				strtok2 = new StringTokenizer(nexttok, "=");
+				String param = strtok2.nextToken();
+				if (param.equalsIgnoreCase("port") && strtok2.hasMoreTokens()) {
+					port = Integer.parseInt(strtok2.nextToken());
+				} else if (param.equalsIgnoreCase("bind") && strtok2.hasMoreTokens()) {
+					bind = strtok2.nextToken();
+				} else {
+					log.warn("Status: ignoring unrecognized option " + nexttok);
+				}
+			}
+		}
+		server = new ServerSocket(port, 5,
+			bind == null ? null : InetAddress.getByName(bind));
+	}
+
+	/**
+	 * Serve requests until the listening socket fails
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		log.info("Status: listening on port " + server.getLocalPort());
+		while (!server.isClosed()) {
+			Socket socket = null;
+			try {
+				socket = server.accept();
+				socket.setSoTimeout(TIMEOUT);
+				serve(socket.getInputStream(), socket.getOutputStream());
+			} catch (IOException e) {
+				log.debug("Status: " + e);
+			} finally {
+				if (socket != null) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read one request and write the response
+	 *
+	 * @param in The request
+	 * @param out Where to write the response
+	 * @throws IOException Reading or writing failed
+	 */
+	public void serve(InputStream in, OutputStream out) throws IOException {
+		int n = readRequest(in);
+		length = 0;
+		if (!matches(n, 0, "GET ")) {
+			text("Only GET is supported\n");
+			respond(out, "405 Method Not Allowed", "text/plain");
+		} else if (isPath(n, "/metrics")) {
+			renderMetrics();
+			respond(out, "200 OK", "text/plain; version=0.0.4");
+		} else if (isPath(n, "/status")) {
+			renderStatus();
+			respond(out, "200 OK", "application/json");
+		} else if (isPath(n, "/")) {
+			text("/metrics Prometheus metrics\n/status Mediators and connections as JSON\n");
+			respond(out, "200 OK", "text/plain");
+		} else {
+			text("Not found\n");
+			respond(out, "404 Not Found", "text/plain");
+		}
+	}
+
+	/**
+	 * Read the request up to the blank line ending its headers or until
+	 * the buffer is full
+	 *
+	 * @return int The number of bytes read
+	 */
+	protected int readRequest(InputStream in) throws IOException {
+		int n = 0;
+		while (n < request.length) {
+			int read = in.read(request, n, request.length - n);
+			if (read < 0) {
+				break;
+			}
+			n += read;
+			if ((n >= 4 && request[n - 4] == '\r' && request[n - 3] == '\n'
+				&& request[n - 2] == '\r' && request[n - 1] == '\n')
+				|| (n >= 2 && request[n - 2] == '\n' && request[n - 1] == '\n')) {
+				break;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Returns true if the request has the text at the offset
+	 */
+	protected boolean matches(int n, int offset, String text) {
+		if (offset + text.length() > n) {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			if (request[offset + i] != text.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the request line of a GET is for the path,
+	 * ignoring any query string
+	 */
+	protected boolean isPath(int n, String path) {
+		int end = 4 + path.length();
+		return matches(n, 4, path) && end < n
+			&& (request[end] == ' ' || request[end] == '?'
+				|| request[end] == '\r' || request[end] == '\n');
+	}
+
+	/**
+	 * Write the headers and the rendered body
+	 */
+	protected void respond(OutputStream out, String status, String type)
+		throws IOException {
+		int pos = put(head, 0, "HTTP/1.0 ");
+		pos = put(head, pos, status);
+		pos = put(head, pos, "\r\nContent-Type: ");
+		pos = put(head, pos, type);
+		pos = put(head, pos, "\r\nContent-Length: ");
+		pos = put(head, pos, length);
+		pos = put(head, pos, "\r\nConnection: close\r\n\r\n");
+		out.write(head, 0, pos);
+		out.write(body, 0, length);
+		out.flush();
+	}
+
+	/**
+	 * Render the metrics in Prometheus text format
+	 */
+	protected void renderMetrics() {
+		length = 0;
+		DirectorMetrics director = registry.getDirectorMetrics();
+		if (director != null) {
+			counter("mw_director_loops_total", "Director passes that distributed messages",
+				director.getLoops());
+			counter("mw_director_messages_total", "Messages the director distributed",
+				director.getMessages());
+			gauge("mw_director_queue_depth", "Messages waiting for the director",
+				director.getQueueDepth());
+			counter("mw_director_queue_dropped_total", "Messages the director queue dropped",
+				director.getQueueDropped());
+			counter("mw_director_duplicates_total", "Messages the director suppressed as duplicates",
+				director.getDuplicates());
+			gauge("mw_director_listeners", "Listening mediators", director.getListeners());
+			family("mw_director_loop_seconds", "Time to distribute one batch", "gauge");
+			loop("last", director.getLastLoopMicros());
+			loop("max", director.getMaxLoopMicros());
+			loop("mean", director.getMeanLoopMicros());
+			family("mw_director_dispatch_latency_seconds",
+				"Time from ingest to dispatch", "summary");
+			for (int p = 0; p < Message.PRIORITIES; p++) {
+				latency("mw_director_dispatch_latency_seconds", null, p,
+					director.getLatency(p));
+			}
+		}
+
+		MediatorMetrics[] mediators = registry.getMediators();
+		for (int f = 0; f < MediatorMetrics.FIGURES; f++) {
+			figure("mw_mediator_", NAMES[f], HELP[f]);
+			for (int i = 0; i < mediators.length; i++) {
+				text("mw_mediator_");
+				text(NAMES[f]);
+				text("{mediator=\"");
+				escaped(mediators[i].getName());
+				text("\"} ");
+				number(mediators[i].get(f));
+				text("\n");
+			}
+		}
+		family("mw_mediator_connected", "Connections open", "gauge");
+		for (int i = 0; i < mediators.length; i++) {
+			text("mw_mediator_connected{mediator=\"");
+			escaped(mediators[i].getName());
+			text("\"} ");
+			number(mediators[i].getConnected());
+			text("\n");
+		}
+		family("mw_mediator_write_latency_seconds", "Time from ingest to write", "summary");
+		for (int i = 0; i < mediators.length; i++) {
+			for (int p = 0; p < Message.PRIORITIES; p++) {
+				scratch.clear();
+				mediators[i].collectLatency(p, scratch);
+				latency("mw_mediator_write_latency_seconds", mediators[i].getName(),
+					p, scratch);
+			}
+		}
+
+		for (int f = 0; f < MediatorMetrics.FIGURES; f++) {
+			figure("mw_connection_", NAMES[f], HELP[f]);
+			for (int i = 0; i < mediators.length; i++) {
+				MediatorMetrics[] children = mediators[i].getChildren();
+				for (int j = 0; j < children.length; j++) {
+					text("mw_connection_");
+					text(NAMES[f]);
+					text("{mediator=\"");
+					escaped(mediators[i].getName());
+					text("\",connection=\"");
+					escaped(children[j].getName());
+					text("\"} ");
+					number(children[j].get(f));
+					text("\n");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Render the mediators, their connections and queue depths as JSON
+	 */
+	protected void renderStatus() {
+		length = 0;
+		text("{\"director\":");
+		DirectorMetrics director = registry.getDirectorMetrics();
+		if (director == null) {
+			text("null");
+		} else {
+			text("{\"loops\":");
+			number(director.getLoops());
+			text(",\"messages\":");
+			number(director.getMessages());
+			text(",\"queueDepth\":");
+			number(director.getQueueDepth());
+			text(",\"queueDropped\":");
+			number(director.getQueueDropped());
+			text(",\"duplicates\":");
+			number(director.getDuplicates());
+			text(",\"listeners\":");
+			number(director.getListeners());
+			text("}");
+		}
+		text(",\"mediators\":[");
+		MediatorMetrics[] mediators = registry.getMediators();
+		for (int i = 0; i < mediators.length; i++) {
+			if (i > 0) {
+				text(",");
+			}
+			json(mediators[i]);
+			text(",\"connections\":[");
+			MediatorMetrics[] children = mediators[i].getChildren();
+			for (int j = 0; j < children.length; j++) {
+				if (j > 0) {
+					text(",");
+				}
+				json(children[j]);
+				text("}");
+			}
+			text("]}");
+		}
+		text("]}\n");
+	}
+
+	/**
+	 * Write the figures of a mediator or connection as an unclosed JSON
+	 * object
+	 */
+	protected void json(MediatorMetrics metrics) {
+		text("{\"name\":\"");
+		escaped(metrics.getName());
+		text("\",\"connected\":");
+		number(metrics.getConnected());
+		for (int f = 0; f < MediatorMetrics.FIGURES; f++) {
+			text(",\"");
+			text(KEYS[f]);
+			text("\":");
+			number(metrics.get(f));
+		}
+		text(",\"lastActivity\":");
+		number(metrics.getLastActivity());
+	}
+
+	/**
+	 * Write the HELP and TYPE lines of a metric
+	 */
+	protected void family(String name, String help, String type) {
+		text("# HELP ");
+		text(name);
+		text(" ");
+		text(help);
+		text("\n# TYPE ");
+		text(name);
+		text(" ");
+		text(type);
+		text("\n");
+	}
+
+	/**
+	 * Write the HELP and TYPE lines of a mediator or connection figure
+	 */
+	protected void family(String prefix, String name, String help, String type) {
+		text("# HELP ");
+		text(prefix);
+		text(name);
+		text(" ");
+		text(help);
+		text("\n# TYPE ");
+		text(prefix);
+		text(name);
+		text(" ");
+		text(type);
+		text("\n");
+	}
+
+	/**
+	 * Write the HELP and TYPE lines of a figure, working out the type
+	 * from its name
+	 */
+	protected void figure(String prefix, String name, String help) {
+		family(prefix, name, help, name.endsWith("_total") ? "counter" : "gauge");
+	}
+
+	/**
+	 * Write an unlabelled counter
+	 */
+	protected void counter(String name, String help, long value) {
+		family(name, help, "counter");
+		text(name);
+		text(" ");
+		number(value);
+		text("\n");
+	}
+
+	/**
+	 * Write an unlabelled gauge
+	 */
+	protected void gauge(String name, String help, long value) {
+		family(name, help, "gauge");
+		text(name);
+		text(" ");
+		number(value);
+		text("\n");
+	}
+
+	/**
+	 * Write one director loop time
+	 */
+	protected void loop(String stat, long micros) {
+		text("mw_director_loop_seconds{stat=\"");
+		text(stat);
+		text("\"} ");
+		seconds(micros);
+		text("\n");
+	}
+
+	/**
+	 * Write the quantiles and count of a latency histogram as a summary
+	 *
+	 * @param name The metric name
+	 * @param mediator The mediator label or null for none
+	 * @param priority The priority class
+	 * @param histogram The latencies
+	 */
+	protected void latency(String name, String mediator, int priority,
+		LatencyHistogram histogram) {
+		for (int q = 0; q < FRACTIONS.length; q++) {
+			text(name);
+			labels(mediator, priority);
+			text(",quantile=\"");
+			text(QUANTILES[q]);
+			text("\"} ");
+			seconds(histogram.percentile(FRACTIONS[q]));
+			text("\n");
+		}
+		text(name);
+		text("_count");
+		labels(mediator, priority);
+		text("} ");
+		number(histogram.getCount());
+		text("\n");
+	}
+
+	/**
+	 * Write the opening brace, mediator and priority labels of a sample
+	 */
+	protected void labels(String mediator, int priority) {
+		text("{");
+		if (mediator != null) {
+			text("mediator=\"");
+			escaped(mediator);
+			text("\",");
+		}
+		text("priority=\"");
+		text(PRIORITIES[priority]);
+		text("\"");
+	}
+
+	/**
+	 * Append ASCII text to the body
+	 */
+	protected void text(String s) {
+		ensure(s.length());
+		length = put(body, length, s);
+	}
+
+	/**
+	 * Append a name to the body escaped for a label value or JSON string
+	 */
+	protected void escaped(String s) {
+		ensure(s.length() * 2);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				body[length++] = '\\';
+				body[length++] = (byte) c;
+			} else if (c < ' ' || c > '~') {
+				body[length++] = '?';
+			} else {
+				body[length++] = (byte) c;
+			}
+		}
+	}
+
+	/**
+	 * Append a decimal number to the body
+	 */
+	protected void number(long value) {
+		ensure(20);
+		length = put(body, length, value);
+	}
+
+	/**
+	 * Append microseconds to the body as seconds with six decimals
+	 */
+	protected void seconds(long micros) {
+		number(micros / 1000000);
+		ensure(7);
+		body[length++] = '.';
+		long fraction = micros % 1000000;
+		for (long d = 100000; d > 0; d /= 10) {
+			body[length++] = (byte) ('0' + fraction / d % 10);
+		}
+	}
+
+	/**
+	 * Grow the body so n more bytes fit
+	 */
+	protected void ensure(int n) {
+		if (length + n > body.length) {
+			byte[] b = new byte[Math.max(body.length * 2, length + n)];
+			System.arraycopy(body, 0, b, 0, length);
+			body = b;
+		}
+	}
+
+	/**
+	 * Write ASCII text into a buffer
+	 *
+	 * @return int The position after the text
+	 */
+	protected static int put(byte[] b, int pos, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			b[pos++] = (byte) s.charAt(i);
+		}
+		return pos;
+	}
+
+	/**
+	 * Write a decimal number into a buffer
+	 *
+	 * @return int The position after the number
+	 */
+	protected static int put(byte[] b, int pos, long value) {
+		if (value < 0) {
+			b[pos++] = '-';
+			value = -value;
+		}
+		int start = pos;
+		do {
+			b[pos++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+		for (int i = start, j = pos - 1; i < j; i++, j--) {
+			byte t = b[i];
+			b[i] = b[j];
+			b[j] = t;
+		}
+		return pos;
+	}
+
+	/**
+	 * Returns the port being listened on
+	 *
+	 * @return int
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+}
@@ -5,6 +5,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.StringTokenizer;
 
@@ -74,6 +75,33 @@ public class NMEAFileConnection implements SingleConnectionLayer {
 			return abyte;
 		}
 		
+		/**
+		 * Blocking reads wait until the next line is due and then
+		 * return at most that line
+		 */
+		public int read(byte[] b, int off, int len) throws IOException {
+			long wait = tstamp + delay - System.currentTimeMillis();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			int n = 0;
+			while (n < len) {
+				int abyte = read();
+				if (abyte == -1) {
+					return n == 0 ? -1 : n;
+				}
+				b[off + n++] = (byte) abyte;
+				if (abyte == '\n') {
+					break;
+				}
+			}
+			return n;
+		}
+
 		public void close() throws IOException {
 			actualstream.close();
 		}
@@ -0,0 +1,146 @@
+package mw.server.plugin.connection;
+
+import mw.server.connection.SelectableConnectionLayer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.StringTokenizer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author thuss
+ *
+ * Server Socket Connection Layer for many clients. Instead of a thread
+ * per client the connections are spread over a few selector threads
+ * (eventloops) with non-blocking writes, and each connection buffers at
+ * most writebuffer bytes so a slow client only loses its own data.
+ * 
+ * Parameters: port=8080:eventloops=2:writebuffer=4096
+ */
+public class NioServerSocketConnection implements SelectableConnectionLayer {
+	
+	protected static Logger log = Logger.getLogger(NioServerSocketConnection.class);
+
+	/**
+	 * The listening channel
+	 */
+	protected ServerSocketChannel serverchannel;
+
+	/**
+	 * Number of selector threads
+	 */
+	protected int eventloops = 2;
+
+	/**
+	 * Size of each connection's write buffer in bytes
+	 */
+	protected int writebuffer = 4096;
+
+	/**
+	 * Connection parameters
+	 */
+	protected String params;
+
+	/**
+	 * @see mw.server.connection.ConnectionLayer#openConnection()
+	 */
+	public void openConnection() throws IOException {
+		
+		// Set the default values
+		int port = 8080;
+
+		// Get the parameters
+		if (params != null) {
+			StringTokenizer strtok = new StringTokenizer(params, ":");
+			StringTokenizer strtok2 = null;
+			String badparam = null;
+			while (strtok.hasMoreTokens()) {
+				String nexttok = strtok.nextToken();
+				strtok2 = new StringTokenizer(nexttok, "=");
+				if (strtok2.countTokens() == 2) {
+					String param = strtok2.nextToken();
+					try {
+						int value = Integer.parseInt(strtok2.nextToken());
+						if (param.equalsIgnoreCase("port")) {
+							port = value;
+						} else if (param.equalsIgnoreCase("eventloops")
+							&& value > 0) {
+							eventloops = value;
+						} else if (param.equalsIgnoreCase("writebuffer")
+							&& value > 0) {
+							writebuffer = value;
+						} else {
+							badparam = nexttok;
+						}
+					} catch (NumberFormatException e) {
+						badparam = nexttok;
+					}
+				} else {
+					badparam = nexttok;
+				}
+
+				// Show warning message
+				if (badparam != null) {
+					String msg =
+						"WARNING: "
+							+ this.getClass().getName()
+							+ " ignoring unrecognized parameter "
+							+ badparam;
+					log.warn(msg);
+					badparam = null;
+				}
+			}
+		}
+
+		serverchannel = ServerSocketChannel.open();
+		serverchannel.socket().setReuseAddress(true);
+		// Allow a burst of clients connecting at once
+		serverchannel.socket().bind(new InetSocketAddress(port), 1024);
+	}
+
+	/**
+	 * @see mw.server.connection.MultiConnectionLayer#getServerSocket()
+	 */
+	public ServerSocket getServerSocket() {
+		return serverchannel == null ? null : serverchannel.socket();
+	}
+
+	/**
+	 * @see mw.server.connection.SelectableConnectionLayer#getServerSocketChannel()
+	 */
+	public ServerSocketChannel getServerSocketChannel() {
+		return serverchannel;
+	}
+
+	/**
+	 * @see mw.server.connection.SelectableConnectionLayer#getEventLoops()
+	 */
+	public int getEventLoops() {
+		return eventloops;
+	}
+
+	/**
+	 * @see mw.server.connection.SelectableConnectionLayer#getWriteBufferSize()
+	 */
+	public int getWriteBufferSize() {
+		return writebuffer;
+	}
+
+	/**
+	 * @see mw.server.connection.ConnectionLayer#closeConnection()
+	 */
+	public void closeConnection() throws IOException {
+		if (serverchannel != null)
+			serverchannel.close();
+	}
+
+	/**
+	 * @see mw.server.connection.ConnectionLayer#setParameters(String)
+	 */
+	public void setParameters(String params) {
+		this.params = params;
+	}
+}
@@ -46,6 +46,16 @@ public class SerialPortConnection implements SingleConnectionLayer {
 	 */
 	protected String params;
 
+	/**
+	 * The baud rate the port was opened with
+	 */
+	protected int baud = 4800;
+
+	/**
+	 * Bits on the wire per byte (start, data, parity and stop bits)
+	 */
+	protected int framebits = 10;
+
 	/**
 	 * @see mw.server.connection.SingleConnectionLayer#openConnection()
 	 */
@@ -106,6 +116,15 @@ public class SerialPortConnection implements SingleConnectionLayer {
 			}
 		}
 
+		try {
+			baud = Integer.parseInt(baudrate);
+			framebits = 1 + Integer.parseInt(bitsperchar) + 
+				(parity.equalsIgnoreCase("N") ? 0 : 1) + Integer.parseInt(stopbits);
+		} catch (NumberFormatException e) {
+			log.warn("WARNING: " + this.getClass().getName() + 
+				" can't work out the line speed from " + params);
+		}
+
 		try {
 			jcp = new JavaCommProxy(comm, baudrate);
 			fis = ((JavaCommProxy)jcp).getInputStream();
@@ -137,6 +156,16 @@ public class SerialPortConnection implements SingleConnectionLayer {
 		this.params = params;
 	}
 
+	/**
+	 * Returns how many bytes per second fit on the wire at the configured
+	 * baud rate, e.g. 480 at 4800 baud 8N1.
+	 * 
+	 * @return int Bytes per second
+	 */
+	public int getBytesPerSecond() {
+		return baud / framebits;
+	}
+
 	/**
 	 * @see mw.server.connection.SingleConnectionLayer#getInputStream()
 	 */
@@ -0,0 +1,33 @@
+package mw.server.plugin.decoder;
+
+import mw.server.decoder.SentenceRecord;
+import mw.server.plugin.message.NMEAMessage;
+
+/**
+ * @author thuss
+ *
+ * Decodes $--GGA,hhmmss.ss,llll.ll,a,yyyyy.yy,a,x,xx,x.x,x.x,M,x.x,M,x.x,xxxx
+ * into a GGARecord
+ */
+public class GGADecoder extends NMEADecoder {
+
+	/**
+	 * @see mw.server.decoder.SentenceDecoder#decode(NMEAMessage, SentenceRecord)
+	 */
+	public SentenceRecord decode(NMEAMessage msg, SentenceRecord reuse) {
+		if (msg.getFieldCount() < 10) {
+			return null;
+		}
+		GGARecord rec = reuse instanceof GGARecord ? (GGARecord) reuse 
+			: new GGARecord();
+		rec.time = time(msg, 1);
+		rec.latitude = position(msg, 2, 'S');
+		rec.longitude = position(msg, 4, 'W');
+		rec.fixquality = msg.getFieldInt(6, 0);
+		rec.satellites = msg.getFieldInt(7, -1);
+		rec.hdop = msg.getFieldDouble(8, Double.NaN);
+		rec.altitude = msg.getFieldDouble(9, Double.NaN);
+		rec.geoidseparation = msg.getFieldDouble(11, Double.NaN);
+		return rec;
+	}
+}
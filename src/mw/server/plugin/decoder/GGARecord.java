@@ -0,0 +1,124 @@
+package mw.server.plugin.decoder;
+
+import mw.server.decoder.SentenceRecord;
+
+/**
+ * @author thuss
+ *
+ * GPS fix data from a GGA sentence
+ */
+public class GGARecord implements SentenceRecord {
+
+	/**
+	 * Seconds since midnight UTC
+	 */
+	protected double time;
+
+	/**
+	 * Latitude in decimal degrees, negative for south
+	 */
+	protected double latitude;
+
+	/**
+	 * Longitude in decimal degrees, negative for west
+	 */
+	protected double longitude;
+
+	/**
+	 * Fix quality, 0 for no fix, 1 for GPS, 2 for DGPS and so on
+	 */
+	protected int fixquality;
+
+	/**
+	 * Number of satellites in use, -1 if missing
+	 */
+	protected int satellites;
+
+	/**
+	 * Horizontal dilution of precision
+	 */
+	protected double hdop;
+
+	/**
+	 * Antenna altitude above mean sea level in meters
+	 */
+	protected double altitude;
+
+	/**
+	 * Height of the geoid above the WGS84 ellipsoid in meters
+	 */
+	protected double geoidseparation;
+
+	/**
+	 * Returns seconds since midnight UTC
+	 * @return double
+	 */
+	public double getTime() {
+		return time;
+	}
+
+	/**
+	 * Returns the latitude in decimal degrees, negative for south
+	 * @return double
+	 */
+	public double getLatitude() {
+		return latitude;
+	}
+
+	/**
+	 * Returns the longitude in decimal degrees, negative for west
+	 * @return double
+	 */
+	public double getLongitude() {
+		return longitude;
+	}
+
+	/**
+	 * Returns the fix quality, 0 for no fix
+	 * @return int
+	 */
+	public int getFixQuality() {
+		return fixquality;
+	}
+
+	/**
+	 * Returns the number of satellites in use, -1 if missing
+	 * @return int
+	 */
+	public int getSatellites() {
+		return satellites;
+	}
+
+	/**
+	 * Returns the horizontal dilution of precision
+	 * @return double
+	 */
+	public double getHdop() {
+		return hdop;
+	}
+
+	/**
+	 * Returns the altitude above mean sea level in meters
+	 * @return double
+	 */
+	public double getAltitude() {
+		return altitude;
+	}
+
+	/**
+	 * Returns the height of the geoid above the ellipsoid in meters
+	 * @return double
+	 */
+	public double getGeoidSeparation() {
+		return geoidseparation;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "GGA time=" + time + " lat=" + latitude + " lon=" + longitude
+			+ " quality=" + fixquality + " sats=" + satellites + " hdop=" 
+			+ hdop + " alt=" + altitude + " geoid=" + geoidseparation;
+	}
+}
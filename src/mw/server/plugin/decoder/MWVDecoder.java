@@ -0,0 +1,36 @@
+package mw.server.plugin.decoder;
+
+import mw.server.decoder.SentenceRecord;
+import mw.server.plugin.message.NMEAMessage;
+
+/**
+ * @author thuss
+ *
+ * Decodes $--MWV,x.x,a,x.x,a,A into an MWVRecord, converting the speed
+ * from K (km/h), M (m/s) or N (knots) to knots
+ */
+public class MWVDecoder extends NMEADecoder {
+
+	/**
+	 * @see mw.server.decoder.SentenceDecoder#decode(NMEAMessage, SentenceRecord)
+	 */
+	public SentenceRecord decode(NMEAMessage msg, SentenceRecord reuse) {
+		if (msg.getFieldCount() < 5) {
+			return null;
+		}
+		MWVRecord rec = reuse instanceof MWVRecord ? (MWVRecord) reuse 
+			: new MWVRecord();
+		rec.angle = msg.getFieldDouble(1, Double.NaN);
+		rec.relative = msg.getFieldChar(2) == 'R';
+		double speed = msg.getFieldDouble(3, Double.NaN);
+		char units = msg.getFieldChar(4);
+		if (units == 'K') {
+			speed /= 1.852;
+		} else if (units == 'M') {
+			speed *= 3600 / 1852.0;
+		}
+		rec.speed = speed;
+		rec.valid = msg.getFieldChar(5) == 'A';
+		return rec;
+	}
+}
@@ -0,0 +1,71 @@
+package mw.server.plugin.decoder;
+
+import mw.server.decoder.SentenceRecord;
+
+/**
+ * @author thuss
+ *
+ * Wind speed and angle from an MWV sentence
+ */
+public class MWVRecord implements SentenceRecord {
+
+	/**
+	 * Wind angle in degrees, 0 to 360
+	 */
+	protected double angle;
+
+	/**
+	 * True for relative (apparent) wind, false for true wind
+	 */
+	protected boolean relative;
+
+	/**
+	 * Wind speed in knots, converted from the sentence's units
+	 */
+	protected double speed;
+
+	/**
+	 * True if the status is A (valid)
+	 */
+	protected boolean valid;
+
+	/**
+	 * Returns the wind angle in degrees
+	 * @return double
+	 */
+	public double getAngle() {
+		return angle;
+	}
+
+	/**
+	 * Returns true for relative wind, false for true wind
+	 * @return boolean
+	 */
+	public boolean isRelative() {
+		return relative;
+	}
+
+	/**
+	 * Returns the wind speed in knots
+	 * @return double
+	 */
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * Returns true if the data is valid
+	 * @return boolean
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "MWV angle=" + angle + (relative ? " relative" : " true") 
+			+ " speed=" + speed + " valid=" + valid;
+	}
+}
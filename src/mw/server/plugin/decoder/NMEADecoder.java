@@ -0,0 +1,142 @@
+package mw.server.plugin.decoder;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import mw.server.decoder.DecoderRegistry;
+import mw.server.decoder.SentenceDecoder;
+import mw.server.decoder.SentenceRecord;
+import mw.server.metrics.Clock;
+import mw.server.plugin.message.NMEAMessage;
+import mw.server.plugin.message.PooledNMEAMessageHandler;
+
+/**
+ * @author thuss
+ *
+ * Base class for the decoders of standard NMEA 0183 sentences with
+ * helpers for the field formats they share. Missing or empty fields
+ * decode as Double.NaN, or -1 for counts.
+ */
+public abstract class NMEADecoder implements SentenceDecoder {
+
+	/**
+	 * Read a UTC time field (hhmmss.ss)
+	 * 
+	 * @param msg The sentence
+	 * @param i The field index
+	 * @return double Seconds since midnight UTC or NaN
+	 */
+	protected static double time(NMEAMessage msg, int i) {
+		double v = msg.getFieldDouble(i, Double.NaN);
+		if (Double.isNaN(v)) {
+			return v;
+		}
+		int t = (int) v;
+		return (t / 10000) * 3600 + (t / 100 % 100) * 60 + t % 100 + (v - t);
+	}
+
+	/**
+	 * Read a latitude or longitude field (dddmm.mmmm) and the hemisphere
+	 * field after it
+	 * 
+	 * @param msg The sentence
+	 * @param i The field index of the value
+	 * @param negative The hemisphere letter that makes it negative (S or W)
+	 * @return double Decimal degrees or NaN
+	 */
+	protected static double position(NMEAMessage msg, int i, char negative) {
+		double v = msg.getFieldDouble(i, Double.NaN);
+		if (Double.isNaN(v)) {
+			return v;
+		}
+		int degrees = (int) (v / 100);
+		double value = degrees + (v - degrees * 100) / 60;
+		return msg.getFieldChar(i + 1) == negative ? -value : value;
+	}
+
+	/**
+	 * Test method which decodes the sentences of a sample log, printing
+	 * the first record of each type, and times the first getRecord of a
+	 * sentence against the cached ones after it.
+	 * 
+	 * @param args Optional sample file (default samples/rpnnmea.log)
+	 */
+	public static void main(String[] args) throws Exception {
+		DecoderRegistry registry = DecoderRegistry.getInstance();
+		registry.register("RMC", new RMCDecoder());
+		registry.register("GGA", new GGADecoder());
+		registry.register("MWV", new MWVDecoder());
+		registry.register("VHW", new VHWDecoder());
+
+		String file = args.length > 0 ? args[0] : "samples/rpnnmea.log";
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		List lines = new ArrayList();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.length() > 0) {
+				lines.add(line.getBytes());
+			}
+		}
+		reader.close();
+		byte[][] sentences = (byte[][]) lines.toArray(new byte[lines.size()][]);
+
+		PooledNMEAMessageHandler mh = new PooledNMEAMessageHandler();
+		List seen = new ArrayList();
+		for (int i = 0; i < sentences.length; i++) {
+			NMEAMessage msg = (NMEAMessage) mh.createMessage(1, "Test", 
+				sentences[i], 0, sentences[i].length);
+			SentenceRecord rec = msg.getRecord();
+			if (rec != null && !seen.contains(rec.getClass())) {
+				seen.add(rec.getClass());
+				System.out.println(new String(sentences[i]));
+				System.out.println("  " + rec);
+			}
+			msg.release();
+		}
+
+		int rounds = Math.max(1, 1000000 / sentences.length);
+		int total = rounds * sentences.length;
+		// Time whole runs of messages rather than single calls, which are
+		// shorter than the clock can measure, a run at a time so they all
+		// fit in the message pool
+		NMEAMessage[] msgs = new NMEAMessage[1024];
+		for (int pass = 0; pass < 3; pass++) {
+			long first = 0;
+			long cached = 0;
+			int decoded = 0;
+			for (int r = 0; r < rounds; r++) {
+				for (int at = 0; at < sentences.length; at += msgs.length) {
+					int n = Math.min(msgs.length, sentences.length - at);
+					for (int i = 0; i < n; i++) {
+						msgs[i] = (NMEAMessage) mh.createMessage(1, "Test", 
+							sentences[at + i], 0, sentences[at + i].length);
+					}
+					long start = Clock.nanoTime();
+					for (int i = 0; i < n; i++) {
+						if (msgs[i].getRecord() != null) {
+							decoded++;
+						}
+					}
+					long mid = Clock.nanoTime();
+					for (int k = 0; k < 4; k++) {
+						for (int i = 0; i < n; i++) {
+							msgs[i].getRecord();
+						}
+					}
+					cached += Clock.nanoTime() - mid;
+					first += mid - start;
+					for (int i = 0; i < n; i++) {
+						msgs[i].release();
+						msgs[i] = null;
+					}
+				}
+			}
+			System.out.println(total + " sentences (" + decoded + " decoded): "
+				+ "first getRecord " + first / total + "ns, cached " 
+				+ cached / (total * 4L) + "ns, pool allocated " 
+				+ PooledNMEAMessageHandler.getPool().getAllocated());
+		}
+	}
+}
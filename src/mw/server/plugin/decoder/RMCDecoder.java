@@ -0,0 +1,36 @@
+package mw.server.plugin.decoder;
+
+import mw.server.decoder.SentenceRecord;
+import mw.server.plugin.message.NMEAMessage;
+
+/**
+ * @author thuss
+ *
+ * Decodes $--RMC,hhmmss.ss,A,llll.ll,a,yyyyy.yy,a,x.x,x.x,ddmmyy,x.x,a
+ * into an RMCRecord
+ */
+public class RMCDecoder extends NMEADecoder {
+
+	/**
+	 * @see mw.server.decoder.SentenceDecoder#decode(NMEAMessage, SentenceRecord)
+	 */
+	public SentenceRecord decode(NMEAMessage msg, SentenceRecord reuse) {
+		if (msg.getFieldCount() < 10) {
+			return null;
+		}
+		RMCRecord rec = reuse instanceof RMCRecord ? (RMCRecord) reuse 
+			: new RMCRecord();
+		rec.time = time(msg, 1);
+		rec.active = msg.getFieldChar(2) == 'A';
+		rec.latitude = position(msg, 3, 'S');
+		rec.longitude = position(msg, 5, 'W');
+		rec.speed = msg.getFieldDouble(7, Double.NaN);
+		rec.course = msg.getFieldDouble(8, Double.NaN);
+		rec.date = msg.getFieldInt(9, -1);
+		rec.variation = msg.getFieldDouble(10, Double.NaN);
+		if (msg.getFieldChar(11) == 'W') {
+			rec.variation = -rec.variation;
+		}
+		return rec;
+	}
+}
@@ -0,0 +1,124 @@
+package mw.server.plugin.decoder;
+
+import mw.server.decoder.SentenceRecord;
+
+/**
+ * @author thuss
+ *
+ * Recommended minimum navigation information from an RMC sentence
+ */
+public class RMCRecord implements SentenceRecord {
+
+	/**
+	 * Seconds since midnight UTC
+	 */
+	protected double time;
+
+	/**
+	 * True if the status is A (valid), false for V (warning)
+	 */
+	protected boolean active;
+
+	/**
+	 * Latitude in decimal degrees, negative for south
+	 */
+	protected double latitude;
+
+	/**
+	 * Longitude in decimal degrees, negative for west
+	 */
+	protected double longitude;
+
+	/**
+	 * Speed over ground in knots
+	 */
+	protected double speed;
+
+	/**
+	 * Course over ground in degrees true
+	 */
+	protected double course;
+
+	/**
+	 * The date as the number ddmmyy, -1 if missing
+	 */
+	protected int date;
+
+	/**
+	 * Magnetic variation in degrees, negative for west
+	 */
+	protected double variation;
+
+	/**
+	 * Returns seconds since midnight UTC
+	 * @return double
+	 */
+	public double getTime() {
+		return time;
+	}
+
+	/**
+	 * Returns true if the fix is valid
+	 * @return boolean
+	 */
+	public boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * Returns the latitude in decimal degrees, negative for south
+	 * @return double
+	 */
+	public double getLatitude() {
+		return latitude;
+	}
+
+	/**
+	 * Returns the longitude in decimal degrees, negative for west
+	 * @return double
+	 */
+	public double getLongitude() {
+		return longitude;
+	}
+
+	/**
+	 * Returns the speed over ground in knots
+	 * @return double
+	 */
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * Returns the course over ground in degrees true
+	 * @return double
+	 */
+	public double getCourse() {
+		return course;
+	}
+
+	/**
+	 * Returns the date as the number ddmmyy, -1 if missing
+	 * @return int
+	 */
+	public int getDate() {
+		return date;
+	}
+
+	/**
+	 * Returns the magnetic variation in degrees, negative for west
+	 * @return double
+	 */
+	public double getVariation() {
+		return variation;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "RMC time=" + time + " active=" + active + " lat=" + latitude
+			+ " lon=" + longitude + " sog=" + speed + " cog=" + course
+			+ " date=" + date + " var=" + variation;
+	}
+}
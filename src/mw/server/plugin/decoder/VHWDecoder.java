@@ -0,0 +1,31 @@
+package mw.server.plugin.decoder;
+
+import mw.server.decoder.SentenceRecord;
+import mw.server.plugin.message.NMEAMessage;
+
+/**
+ * @author thuss
+ *
+ * Decodes $--VHW,x.x,T,x.x,M,x.x,N,x.x,K into a VHWRecord, using the
+ * km/h speed if the knots field is empty
+ */
+public class VHWDecoder extends NMEADecoder {
+
+	/**
+	 * @see mw.server.decoder.SentenceDecoder#decode(NMEAMessage, SentenceRecord)
+	 */
+	public SentenceRecord decode(NMEAMessage msg, SentenceRecord reuse) {
+		if (msg.getFieldCount() < 6) {
+			return null;
+		}
+		VHWRecord rec = reuse instanceof VHWRecord ? (VHWRecord) reuse 
+			: new VHWRecord();
+		rec.headingtrue = msg.getFieldDouble(1, Double.NaN);
+		rec.headingmagnetic = msg.getFieldDouble(3, Double.NaN);
+		rec.speed = msg.getFieldDouble(5, Double.NaN);
+		if (Double.isNaN(rec.speed)) {
+			rec.speed = msg.getFieldDouble(7, Double.NaN) / 1.852;
+		}
+		return rec;
+	}
+}
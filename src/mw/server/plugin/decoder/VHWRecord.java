@@ -0,0 +1,58 @@
+package mw.server.plugin.decoder;
+
+import mw.server.decoder.SentenceRecord;
+
+/**
+ * @author thuss
+ *
+ * Heading and speed through the water from a VHW sentence
+ */
+public class VHWRecord implements SentenceRecord {
+
+	/**
+	 * Heading in degrees true
+	 */
+	protected double headingtrue;
+
+	/**
+	 * Heading in degrees magnetic
+	 */
+	protected double headingmagnetic;
+
+	/**
+	 * Speed through the water in knots
+	 */
+	protected double speed;
+
+	/**
+	 * Returns the heading in degrees true
+	 * @return double
+	 */
+	public double getHeadingTrue() {
+		return headingtrue;
+	}
+
+	/**
+	 * Returns the heading in degrees magnetic
+	 * @return double
+	 */
+	public double getHeadingMagnetic() {
+		return headingmagnetic;
+	}
+
+	/**
+	 * Returns the speed through the water in knots
+	 * @return double
+	 */
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "VHW true=" + headingtrue + " magnetic=" + headingmagnetic 
+			+ " stw=" + speed;
+	}
+}
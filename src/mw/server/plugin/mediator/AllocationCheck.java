@@ -0,0 +1,253 @@
+package mw.server.plugin.mediator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.log4j.BasicConfigurator;
+import mw.server.connection.SingleConnectionLayer;
+import mw.server.director.MessageDirector;
+import mw.server.message.IngestPool;
+import mw.server.message.Message;
+import mw.server.message.MessageHandler;
+import mw.server.message.MessagePool;
+import mw.server.plugin.message.NMEAMessageHandler;
+import mw.server.plugin.message.PooledNMEAMessageHandler;
+import mw.server.plugin.protocol.RawNMEAProtocol;
+import mw.server.protocol.ProtocolHandler;
+
+/**
+ * @author thuss
+ *
+ * Allocation and leak check of the path a sentence takes from a serial
+ * port to a socket client: the pooled message handler, the director
+ * and a ConnectionDirectorMediator writing raw NMEA. It fails if more
+ * than MAX_BYTES_PER_SENTENCE are allocated per sentence, if a message
+ * isn't released exactly once or if nothing was written.
+ */
+public class AllocationCheck {
+
+	/**
+	 * The most bytes allocated per sentence before the check fails, the
+	 * pooled path allocates next to nothing once warmed up
+	 */
+	protected static final double MAX_BYTES_PER_SENTENCE = 1;
+
+	/**
+	 * A director that lets the check distribute its pending messages
+	 * on the calling thread
+	 */
+	protected static class Director extends MessageDirector {
+
+		/**
+		 * Distribute every pending message now
+		 */
+		public void distribute() {
+			distributeMessages(getPendingMessages());
+		}
+	}
+
+	/**
+	 * Runs the check. This thread reads sentences from an endless
+	 * in memory stream, sends them to a director and distributes them
+	 * to a ConnectionDirectorMediator writing raw NMEA to a null stream
+	 * on its own thread. After a warm up it prints the bytes allocated
+	 * by all threads per sentence, which needs a JVM with the
+	 * com.sun.management.ThreadMXBean extension. Then it runs with
+	 * leak detection on and checks every message went back to the pool.
+	 *
+	 * @param args Optional number of sentences to measure
+	 */
+	public static void main(String[] args) throws Exception {
+		BasicConfigurator.configure();
+		int sentences = 200000;
+		if (args.length > 0) {
+			sentences = Integer.parseInt(args[0]);
+		}
+		// Distinct sentences, so turn duplicate suppression off below
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < 1000; i++) {
+			sb.append("$GPRMC,1234" + i + ",A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W*6A\r\n");
+		}
+		final byte[] block = sb.toString().getBytes();
+		InputStream serial = new InputStream() {
+			int pos = 0;
+			public int read() {
+				int b = block[pos] & 0xff;
+				pos = (pos + 1) % block.length;
+				return b;
+			}
+			public int read(byte[] b, int off, int len) {
+				int n = Math.min(len, block.length - pos);
+				System.arraycopy(block, pos, b, off, n);
+				pos = (pos + n) % block.length;
+				return n;
+			}
+			public int available() {
+				return block.length - pos;
+			}
+		};
+		final long[] written = new long[1];
+		// A client that never sends anything, blocking until it's closed
+		final InputStream idle = new InputStream() {
+			boolean closed = false;
+			public synchronized int read() throws IOException {
+				while (!closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+				return -1;
+			}
+			public synchronized void close() {
+				closed = true;
+				notifyAll();
+			}
+		};
+		final OutputStream socket = new OutputStream() {
+			public void write(int b) {
+				written[0]++;
+			}
+			public void write(byte[] b, int off, int len) {
+				written[0] += len;
+			}
+		};
+		SingleConnectionLayer cl = new SingleConnectionLayer() {
+			public void openConnection() {
+			}
+			public void closeConnection() {
+			}
+			public void setParameters(String params) {
+			}
+			public InputStream getInputStream() {
+				return idle;
+			}
+			public OutputStream getOutputStream() {
+				return socket;
+			}
+		};
+
+		Director director = new Director();
+		Map features = new HashMap();
+		features.put("director", "dedupwindow=0");
+		director.configure(features);
+		ConnectionDirectorMediator client = new ConnectionDirectorMediator();
+		client.setDedupWindow(0);
+		client.setQueueSize(2048);
+		client.setParameters(director.getNewMediatorId(), "Client", cl, 
+			new RawNMEAProtocol(), new NMEAMessageHandler(), director);
+		new Thread(client).start();
+		while (director.getListenerCount() == 0) {
+			Thread.sleep(10);
+		}
+
+		RawNMEAProtocol ph = new RawNMEAProtocol();
+		ph.setLinediscard(false);
+		ph.startProtocol(serial, null);
+		MessageHandler mh = new PooledNMEAMessageHandler();
+		int id = director.getNewMediatorId();
+		pump(director, client, ph, mh, id, 50000);
+		long before = allocatedBytes();
+		long start = System.currentTimeMillis();
+		pump(director, client, ph, mh, id, sentences);
+		long after = allocatedBytes();
+		long millis = System.currentTimeMillis() - start;
+
+		// Every message must find its way back to the pool
+		MessagePool pool = PooledNMEAMessageHandler.getPool();
+		pool.setLeakDetection(true);
+		pump(director, client, ph, mh, id, 10000);
+		while (client.getQueueDepth() > 0) {
+			Thread.sleep(1);
+		}
+		// Give the client time to write the last message it took
+		Thread.sleep(200);
+		client.setTerminate(true);
+		int leaks = pool.checkLeaks();
+		// Once the handler is closed so must every ingest buffer
+		mh.close();
+		IngestPool ingest = IngestPool.getInstance();
+		long buffers = ingest.getAllocated() - ingest.getFree();
+
+		System.out.println(sentences + " sentences in " + millis + "ms, " + 
+			written[0] + " bytes written, " + 
+			ingest.getAllocated() + " ingest buffers and " + 
+			pool.getAllocated() + " messages allocated");
+		double perSentence = 0;
+		if (before < 0) {
+			System.out.println("This JVM can't count allocated bytes");
+		} else {
+			perSentence = (after - before) / (double) sentences;
+			System.out.println("Allocated " + perSentence + " bytes per sentence");
+		}
+		System.out.println(leaks + " messages not released, " + 
+			pool.getDoubleReleases() + " released twice, " + buffers + 
+			" ingest buffers not returned");
+		if (leaks > 0 || pool.getDoubleReleases() > 0 || buffers != 0
+			|| written[0] == 0
+			|| perSentence > MAX_BYTES_PER_SENTENCE) {
+			System.out.println("FAILED");
+		} else {
+			System.out.println("PASSED");
+		}
+	}
+
+	/**
+	 * Read sentences, send them to the director and distribute them,
+	 * waiting for the client to write every 1024 of them
+	 */
+	protected static void pump(Director director, 
+		ConnectionDirectorMediator client, ProtocolHandler ph, 
+		MessageHandler mh, int id, int sentences) throws Exception {
+		for (int i = 0; i < sentences; i++) {
+			int length = ph.readIncomingSlice(false);
+			Message msg = mh.createMessage(id, "Serial", 
+				ph.getIncomingBuffer(), ph.getIncomingOffset(), length);
+			if (msg != null) {
+				director.sendMessage(msg);
+			}
+			if ((i & 63) == 63) {
+				director.distribute();
+			}
+			// Let the client catch up so its queue never overflows
+			if ((i & 1023) == 1023) {
+				while (client.getQueueDepth() > 0) {
+					Thread.sleep(1);
+				}
+			}
+		}
+		director.distribute();
+	}
+
+	/**
+	 * Returns the bytes allocated so far by every live thread, or -1 if
+	 * the JVM can't tell. Looked up by reflection so the server still
+	 * builds for older JREs.
+	 */
+	protected static long allocatedBytes() {
+		try {
+			Class mxbean = Class.forName("java.lang.management.ThreadMXBean");
+			Object threads = Class.forName("java.lang.management.ManagementFactory")
+				.getMethod("getThreadMXBean", new Class[0]).invoke(null, new Object[0]);
+			long[] ids = (long[]) mxbean.getMethod("getAllThreadIds", new Class[0])
+				.invoke(threads, new Object[0]);
+			Method allocated = Class.forName("com.sun.management.ThreadMXBean")
+				.getMethod("getThreadAllocatedBytes", new Class[] { long[].class });
+			long[] bytes = (long[]) allocated.invoke(threads, new Object[] { ids });
+			long total = 0;
+			for (int i = 0; i < bytes.length; i++) {
+				if (bytes[i] > 0) {
+					total += bytes[i];
+				}
+			}
+			return total;
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package mw.server.plugin.mediator;
+
+/**
+ * @author thuss
+ *
+ * Runs a mediator's blocking read loop on its own thread while the
+ * mediator's thread waits for messages to write.
+ */
+public class BlockingReader implements Runnable {
+
+	/**
+	 * The mediator to read for
+	 */
+	protected ConnectionDirectorMediator mediator;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param mediator The mediator to read for
+	 */
+	public BlockingReader(ConnectionDirectorMediator mediator) {
+		this.mediator = mediator;
+	}
+
+	/**
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		mediator.readBlocking();
+	}
+}
@@ -0,0 +1,55 @@
+package mw.server.plugin.mediator;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @author thuss
+ *
+ * InputStream over the bytes a selector read into a ByteBuffer, so
+ * protocol handlers can parse a channel the same way they parse a
+ * socket stream. It never blocks: once the buffer is used up
+ * available() is 0 and read() returns -1.
+ */
+public class BufferInputStream extends InputStream {
+
+	/**
+	 * The buffer, flipped for reading
+	 */
+	protected ByteBuffer buffer;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param buffer The buffer to read from
+	 */
+	public BufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * @see java.io.InputStream#read()
+	 */
+	public int read() {
+		return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+	}
+
+	/**
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	public int read(byte[] b, int off, int len) {
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		len = Math.min(len, buffer.remaining());
+		buffer.get(b, off, len);
+		return len;
+	}
+
+	/**
+	 * @see java.io.InputStream#available()
+	 */
+	public int available() {
+		return buffer.remaining();
+	}
+}
@@ -0,0 +1,72 @@
+package mw.server.plugin.mediator;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @author thuss
+ *
+ * OutputStream that fills a connection's fixed size write buffer.
+ * Writes that don't fit are discarded and flag an overflow, so the
+ * caller can undo the partly written frame and count it as dropped
+ * instead of growing the buffer for a slow client.
+ */
+public class BufferOutputStream extends OutputStream {
+
+	/**
+	 * The buffer being filled
+	 */
+	protected ByteBuffer buffer;
+
+	/**
+	 * Set when a write didn't fit
+	 */
+	protected boolean overflow = false;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param buffer The buffer to fill
+	 */
+	public BufferOutputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * @see java.io.OutputStream#write(int)
+	 */
+	public void write(int b) {
+		if (buffer.hasRemaining()) {
+			buffer.put((byte) b);
+		} else {
+			overflow = true;
+		}
+	}
+
+	/**
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	public void write(byte[] b, int off, int len) {
+		if (buffer.remaining() >= len) {
+			buffer.put(b, off, len);
+		} else {
+			overflow = true;
+		}
+	}
+
+	/**
+	 * Returns whether a write didn't fit since the last reset
+	 * 
+	 * @return boolean
+	 */
+	public boolean isOverflow() {
+		return overflow;
+	}
+
+	/**
+	 * Clear the overflow flag
+	 */
+	public void resetOverflow() {
+		overflow = false;
+	}
+}
@@ -0,0 +1,291 @@
+package mw.server.plugin.mediator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import mw.server.director.MessageDirector;
+import mw.server.message.Message;
+import mw.server.message.MessageHandler;
+import mw.server.metrics.MediatorMetrics;
+import mw.server.protocol.ProtocolHandler;
+
+/**
+ * @author thuss
+ *
+ * One client connection served by a SelectorLoop. It has its own
+ * sender id, protocol handler and fixed size read and write buffers;
+ * the protocol handler reads from and writes to the buffers through
+ * streams, and the loop moves the bytes to and from the channel without
+ * blocking. Only the loop thread that owns the client may use it.
+ */
+public class ChannelClient {
+
+	/**
+	 * The client's channel
+	 */
+	protected SocketChannel channel;
+
+	/**
+	 * The channel's registration with the loop's selector
+	 */
+	protected SelectionKey key;
+
+	/**
+	 * The sender id of messages from this client
+	 */
+	protected int id;
+
+	/**
+	 * The sender name of messages from this client
+	 */
+	protected String name;
+
+	/**
+	 * The protocol handler for this client
+	 */
+	protected ProtocolHandler protocolhandler;
+
+	/**
+	 * Bytes read from the channel, flipped for reading
+	 */
+	protected ByteBuffer readbuffer = ByteBuffer.allocate(512);
+
+	/**
+	 * Bytes waiting to be written to the channel
+	 */
+	protected ByteBuffer writebuffer;
+
+	/**
+	 * The stream the protocol handler writes into the write buffer with
+	 */
+	protected BufferOutputStream out;
+
+	/**
+	 * When we last read from or wrote to the client
+	 */
+	protected long lastactivity = System.currentTimeMillis();
+
+	/**
+	 * Messages handed to the protocol handler since it was last flushed
+	 */
+	protected int unflushed = 0;
+
+	/**
+	 * Where the write buffer ended before those messages
+	 */
+	protected int mark = 0;
+
+	/**
+	 * The bytes the protocol handler had written before those messages
+	 */
+	protected long drainstart = 0;
+
+	/**
+	 * Number of messages dropped because the write buffer was full
+	 */
+	protected long dropped = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param channel The connected channel, in non-blocking mode
+	 * @param id The sender id of messages from this client
+	 * @param name The sender name of messages from this client
+	 * @param ph The protocol handler for this client
+	 * @param writebuffersize The size of the write buffer in bytes
+	 */
+	public ChannelClient(SocketChannel channel, int id, String name,
+		ProtocolHandler ph, int writebuffersize) {
+		this.channel = channel;
+		this.id = id;
+		this.name = name;
+		this.protocolhandler = ph;
+		readbuffer.flip();
+		writebuffer = ByteBuffer.allocate(writebuffersize);
+		out = new BufferOutputStream(writebuffer);
+		ph.startProtocol(new BufferInputStream(readbuffer), out);
+	}
+
+	/**
+	 * Read what the client sent and pass each complete message to the
+	 * director. Anything the protocol handler answers (e.g. an RPN
+	 * subscription) is flushed by the loop afterwards.
+	 * 
+	 * @param mh The message handler to create messages with
+	 * @param md The director to send the messages to
+	 * @param metrics What to count the messages into
+	 * @return boolean False if the client closed the connection
+	 * @throws IOException Error reading from the channel
+	 */
+	public boolean read(MessageHandler mh, MessageDirector md, 
+		MediatorMetrics metrics) throws IOException {
+		readbuffer.clear();
+		int nread = channel.read(readbuffer);
+		readbuffer.flip();
+		if (nread < 0) {
+			return false;
+		}
+		lastactivity = System.currentTimeMillis();
+		// The protocol handler keeps partial lines until the rest arrives
+		while (readbuffer.hasRemaining() || protocolhandler.hasIncomingData()) {
+			int length = protocolhandler.readIncomingSlice(false);
+			if (length > 0) {
+				metrics.countIn(length + 2, lastactivity);
+				Message msg = mh.createMessage(id, name, 
+					protocolhandler.getIncomingBuffer(), 
+					protocolhandler.getIncomingOffset(), length);
+				if (msg != null) {
+					md.sendMessage(msg);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Hand a message to the protocol handler, which frames it and may
+	 * batch it with the others written in this drain.
+	 * 
+	 * @param msg The message to write
+	 * @throws IOException Error encoding the message
+	 */
+	public void write(Message msg) throws IOException {
+		if (unflushed++ == 0) {
+			mark = writebuffer.position();
+			drainstart = protocolhandler.getBytesWritten();
+			out.resetOverflow();
+		}
+		protocolhandler.writeOutgoingMessage(msg);
+	}
+
+	/**
+	 * Let the protocol handler flush the frames written since the last
+	 * drain into the write buffer, following its flush policy. If they
+	 * don't fit the client is too slow, so those messages are dropped
+	 * for this client only. Otherwise they are counted as written with
+	 * the bytes the protocol handler framed them into.
+	 * 
+	 * @param metrics What to count the written messages into
+	 * @return long How many milliseconds until held frames are due,
+	 * 0 if none are held
+	 * @throws IOException Error encoding the messages
+	 */
+	protected long endDrain(MediatorMetrics metrics) throws IOException {
+		if (unflushed == 0) {
+			return 0;
+		}
+		long now = System.currentTimeMillis();
+		long due = protocolhandler.flushIdle(now);
+		if (out.isOverflow()) {
+			writebuffer.position(mark);
+			dropped += unflushed;
+			unflushed = 0;
+			return 0;
+		}
+		if (due == 0) {
+			metrics.countOut(unflushed, 
+				protocolhandler.getBytesWritten() - drainstart, now);
+			unflushed = 0;
+		}
+		return due;
+	}
+
+	/**
+	 * Write as much of the write buffer to the channel as it takes, and
+	 * only ask the selector for write readiness while some is left.
+	 * 
+	 * @param metrics What to count the written messages into
+	 * @return long How many milliseconds until frames the protocol
+	 * handler holds back are due, 0 if none are held
+	 * @throws IOException Error writing to the channel
+	 */
+	public long flush(MediatorMetrics metrics) throws IOException {
+		long due = endDrain(metrics);
+		if (writebuffer.position() > 0) {
+			writebuffer.flip();
+			int written = channel.write(writebuffer);
+			if (written > 0) {
+				lastactivity = System.currentTimeMillis();
+				mark = Math.max(0, mark - written);
+			}
+			writebuffer.compact();
+		}
+		int ops = writebuffer.position() > 0
+			? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+			: SelectionKey.OP_READ;
+		if (key.interestOps() != ops) {
+			key.interestOps(ops);
+		}
+		return due;
+	}
+
+	/**
+	 * Returns whether there are messages or bytes waiting to be written
+	 * 
+	 * @return boolean
+	 */
+	public boolean isPending() {
+		return unflushed > 0 || writebuffer.position() > 0;
+	}
+
+	/**
+	 * Stop the protocol and close the channel
+	 */
+	public void close() {
+		protocolhandler.stopProtocol();
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Returns the sender id of messages from this client
+	 * 
+	 * @return int
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Returns when we last read from or wrote to the client
+	 * 
+	 * @return long
+	 */
+	public long getLastActivity() {
+		return lastactivity;
+	}
+
+	/**
+	 * Returns the number of messages dropped for this client
+	 * 
+	 * @return long
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Returns the channel
+	 * 
+	 * @return SocketChannel
+	 */
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Sets the channel's registration with the loop's selector
+	 * 
+	 * @param key The selection key
+	 */
+	public void setKey(SelectionKey key) {
+		this.key = key;
+	}
+}
@@ -1,28 +1,43 @@
 package mw.server.plugin.mediator;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.StringTokenizer;
 
 import org.apache.log4j.Logger;
 
 import mw.server.connection.ConnectionLayer;
 import mw.server.connection.MultiConnectionLayer;
+import mw.server.connection.SelectableConnectionLayer;
 import mw.server.connection.SingleConnectionLayer;
 import mw.server.director.MessageDirector;
 import mw.server.display.DisplayLED;
 import mw.server.mediator.Mediator;
+import mw.server.message.DuplicateFilter;
 import mw.server.message.Message;
 import mw.server.message.MessageHandler;
+import mw.server.metrics.Clock;
+import mw.server.metrics.MediatorMetrics;
+import mw.server.metrics.MetricsRegistry;
+import mw.server.metrics.MetricsSource;
 import mw.server.plugin.connection.SerialPortConnection;
+import mw.server.plugin.message.NMEAMessage;
 import mw.server.plugin.message.NMEAMessageHandler;
 import mw.server.plugin.protocol.RawNMEAProtocol;
+import mw.server.plugin.queue.DropOldestPolicy;
 import mw.server.protocol.ProtocolHandler;
+import mw.server.queue.LatestValueQueue;
+import mw.server.queue.OutboundLanes;
+import mw.server.queue.OutboundQueue;
+import mw.server.queue.OutputScheduler;
+import mw.server.queue.OverflowPolicy;
+import mw.server.queue.RateLimiter;
 
 /**
  * @author thuss
@@ -38,16 +53,28 @@ import mw.server.protocol.ProtocolHandler;
  * 
  * It additionally has support for multipoint connection layers such
  * as a ServerSocket or single point to point connection layers such
- * as a serial port.
+ * as a serial port. Selectable multipoint layers are served by a few
+ * SelectorLoops instead of a mediator thread per connection.
+ * 
+ * A stream connection is served by two threads: a reader that blocks
+ * on the input and sends each message to the director, and the
+ * mediator's own thread that waits for the director to queue messages
+ * and writes everything pending in one go. Neither polls, the writer
+ * only wakes early for work that is due at a known time (a delayed
+ * flush, a held back message or the inactivity timeout).
+ * 
+ * Each mediator started from the configuration registers its metrics
+ * with the MetricsRegistry, and every connection it serves counts into
+ * a child of them.
  */
-public class ConnectionDirectorMediator implements Mediator {
+public class ConnectionDirectorMediator implements Mediator, MetricsSource {
 	
 	protected static Logger log = Logger.getLogger(ConnectionDirectorMediator.class);
 
 	/**
 	 * Flag to terminate the run method
 	 */
-	protected boolean terminate = false;
+	protected volatile boolean terminate = false;
 	
 	/**
 	 * Flag if mediator should auto restart on error
@@ -75,6 +102,17 @@ public class ConnectionDirectorMediator implements Mediator {
 	 */
 	protected int id;
 
+	/**
+	 * When true connections accepted by a multipoint layer run on
+	 * virtual threads (if the JVM has them)
+	 */
+	protected boolean virtual = false;
+
+	/**
+	 * When we last read from the connection
+	 */
+	protected volatile long lastread = 0;
+
 	/**
 	 * Default inactivity timeout in milliseconds.
 	 * Setting to 0 means there is no inactivity timeout
@@ -82,9 +120,85 @@ public class ConnectionDirectorMediator implements Mediator {
 	protected long timeout = 0;
 
 	/**
-	 * Messages received from the director
+	 * Messages received from the director waiting to be written, in
+	 * one lane per priority class
 	 */
-	protected List directormsgs = new ArrayList();
+	protected OutboundLanes outbound = 
+		createQueue(20, new DropOldestPolicy());
+
+	/**
+	 * When true the outbound queue only keeps the latest message of
+	 * each sentence type so slow clients skip stale data
+	 */
+	protected boolean latestvalue = false;
+
+	/**
+	 * The rate limit rules (e.g. GSV<=0.2Hz,MWV<=2Hz) or null for none
+	 */
+	protected String ratelimit = null;
+
+	/**
+	 * True if excess messages are conflated instead of dropped
+	 */
+	protected boolean rateconflate = false;
+
+	/**
+	 * Enforces the rate limits on the messages we write
+	 */
+	protected RateLimiter ratelimiter = null;
+
+	/**
+	 * Budgets writes to the line speed of a serial port, null otherwise
+	 */
+	protected OutputScheduler scheduler = null;
+
+	/**
+	 * A message waiting for the scheduler to allow it on the wire
+	 */
+	protected Message scheduled = null;
+
+	/**
+	 * When the scheduler lets the waiting message on the wire
+	 */
+	protected long scheduledat = 0;
+
+	/**
+	 * Number of low priority messages dropped because the link was busy
+	 */
+	protected long linedrops = 0;
+
+	/**
+	 * When we last logged the link utilization
+	 */
+	protected long lastUtilizationLog = 0;
+
+	/**
+	 * Number of dropped outbound messages already reported in the log
+	 */
+	protected long reportedDrops = 0;
+
+	/**
+	 * When we last checked the outbound queue for drops
+	 */
+	protected long lastDropCheck = 0;
+
+	/**
+	 * Suppresses messages the director already gave us within the 
+	 * dedup window. Off by default since the director already drops
+	 * duplicates from other sources, it's only worth turning on for a
+	 * mediator that needs a longer window than the director's.
+	 */
+	protected DuplicateFilter duplicates = new DuplicateFilter(256, 0);
+
+	/**
+	 * The sentence type codes we subscribe to, null for everything
+	 */
+	protected int[] subscriptions = null;
+
+	/**
+	 * The talker codes we accept, null for every talker
+	 */
+	protected int[] talkers = null;
 
 	/**
 	 * When set to true we will register with the director to receive
@@ -112,6 +226,17 @@ public class ConnectionDirectorMediator implements Mediator {
 	 */
 	protected MessageDirector messagedirector;
 
+	/**
+	 * The loops serving the clients of a selectable connection layer,
+	 * null otherwise
+	 */
+	protected SelectorLoop[] loops = null;
+
+	/**
+	 * What this mediator or connection counts into
+	 */
+	protected MediatorMetrics metrics = null;
+
 	/** 
 	 * The streamconnection
 	 */
@@ -122,6 +247,12 @@ public class ConnectionDirectorMediator implements Mediator {
 	 */
 	public void run() {
 		log.info("Mediator: " + name + " id=" + id + " started");
+		// Connections of a multipoint layer already count into a child
+		boolean root = metrics == null;
+		if (root) {
+			metrics = new MediatorMetrics(name, this);
+			MetricsRegistry.getInstance().register(metrics);
+		}
 		// We use a do loop here since a restartable mediator may need to
 		// be restarted if it has an error
 		do {
@@ -129,6 +260,8 @@ public class ConnectionDirectorMediator implements Mediator {
 				// Determine if it's a single or multipoint connection layer
 				if (connectionlayer instanceof SingleConnectionLayer) {
 					runSingleConnectionLayer();	
+				} else if (connectionlayer instanceof SelectableConnectionLayer) {
+					runSelectableConnectionLayer();
 				} else if (connectionlayer instanceof MultiConnectionLayer) {
 					runMultiConnectionLayer();
 				}
@@ -141,12 +274,32 @@ public class ConnectionDirectorMediator implements Mediator {
 				log.info("Mediator: " + name + " id=" + 
 								   id + " restarting");
 				try { Thread.sleep(500); } catch (Exception e) {}
-				directormsgs.clear();
+				discardPending();
 			}
 		} while (this.isRestart());
+		discardPending();
+		if (root) {
+			MetricsRegistry.getInstance().unregister(metrics);
+		} else {
+			metrics.detach();
+		}
 		log.info("Mediator: " + name + " id=" + id + " stopped");
 	}
 
+	/**
+	 * Release every message still waiting to be written
+	 */
+	protected void discardPending() {
+		outbound.clear();
+		if (scheduled != null) {
+			scheduled.release();
+			scheduled = null;
+		}
+		if (ratelimiter != null) {
+			ratelimiter.clear();
+		}
+	}
+
 	/**
 	 * Method runMultiConnectionLayer handles the running of a multiconnection
 	 * layer and determining when the it should switch over to handle an
@@ -173,7 +326,7 @@ public class ConnectionDirectorMediator implements Mediator {
 					Mediator med = cloneForNewThread(sock);
 					// Now start the thread
 					if (med != null) {
-						new Thread(med).start();
+						MediatorThreads.start(med, virtual);
 					}
 					sock = null;
 					med = null;
@@ -198,6 +351,82 @@ public class ConnectionDirectorMediator implements Mediator {
 
 	}
 
+	/**
+	 * Method runSelectableConnectionLayer serves every connection of a
+	 * selectable multipoint layer from a few SelectorLoop threads. We
+	 * register with the director once and hand each message we get to
+	 * every loop, which writes it to all of its clients except the one
+	 * that sent it. Each client gets its own sender id and protocol
+	 * handler, and the queue settings of this mediator apply to each
+	 * loop's queue.
+	 * 
+	 * @throws IOException Error accepting connections
+	 */
+	protected void runSelectableConnectionLayer() throws IOException {
+		SelectableConnectionLayer scl = 
+			(SelectableConnectionLayer) connectionlayer;
+		SelectorLoop[] started = new SelectorLoop[scl.getEventLoops()];
+		try {
+			scl.openConnection();
+			for (int i = 0; i < started.length; i++) {
+				RateLimiter limiter = ratelimit == null 
+					? null : new RateLimiter(ratelimit, rateconflate);
+				MessageHandler mh = (MessageHandler) newInstance(messagehandler);
+				mh.setParameters(messagehandler.getParameters());
+				// Cause inactive connections to timeout after 30 seconds
+				started[i] = new SelectorLoop(name, 
+					createQueue(outbound.getCapacity(), outbound.getPolicy()),
+					limiter, mh, 
+					messagedirector, 30000);
+				started[i].setMetrics(metrics.newChild(name + "_loop" + i, 
+					started[i]));
+				new Thread(started[i]).start();
+			}
+			loops = started;
+			messagedirector.registerMediator(this);
+			ServerSocketChannel ssc = scl.getServerSocketChannel();
+			int next = 0;
+			while (!terminate) {
+				SocketChannel sc = ssc.accept();
+				sc.configureBlocking(false);
+				sc.socket().setTcpNoDelay(true);
+				int newid = messagedirector.getNewMediatorId();
+				ProtocolHandler ph = 
+					(ProtocolHandler) newInstance(protocolhandler);
+				ph.setParameters(protocolhandler.getParameters());
+				started[next].addClient(new ChannelClient(sc, newid, 
+					name + "_" + newid, ph, scl.getWriteBufferSize()));
+				next = (next + 1) % started.length;
+			}
+		} finally {
+			messagedirector.unregisterMediator(this);
+			loops = null;
+			for (int i = 0; i < started.length; i++) {
+				if (started[i] != null) {
+					started[i].setTerminate(true);
+				}
+			}
+			scl.closeConnection();
+			scl = null;
+		}
+	}
+
+	/**
+	 * Create a new instance of a plugin's class
+	 * 
+	 * @param plugin The plugin to copy the class of
+	 * @return Object The new instance
+	 * @throws IOException If the class can't be instantiated
+	 */
+	protected static Object newInstance(Object plugin) throws IOException {
+		try {
+			return plugin.getClass().newInstance();
+		} catch (Exception e) {
+			throw new IOException("Can't create " + 
+				plugin.getClass().getName() + ": " + e);
+		}
+	}
+
 	/**
 	 * Method cloneForNewThread is called when a multiconnectionlayer needs
 	 * to clone itself to handle an actual connection stream. For example
@@ -216,12 +445,23 @@ public class ConnectionDirectorMediator implements Mediator {
 				(ConnectionDirectorMediator) this.getClass().newInstance();
 			ProtocolHandler ph =
 				(ProtocolHandler) protocolhandler.getClass().newInstance();
+			ph.setParameters(protocolhandler.getParameters());
 			MessageHandler mh =
 				(MessageHandler) messagehandler.getClass().newInstance();
+			mh.setParameters(messagehandler.getParameters());
 
 			// Set the necessary values
 			mediator.setSocket(sock);
+			mediator.setDedupWindow(duplicates.getWindow());
+			mediator.latestvalue = latestvalue;
+			mediator.setRateLimit(ratelimit, rateconflate);
+			mediator.setQueueSize(outbound.getCapacity());
+			mediator.setOverflowPolicy(outbound.getPolicy());
+			mediator.subscriptions = subscriptions;
+			mediator.talkers = talkers;
+			mediator.virtual = virtual;
 			int newid = messagedirector.getNewMediatorId();
+			mediator.metrics = metrics.newChild(name + "_" + newid, mediator);
 			mediator.setParameters(
 				newid,
 				name + "_" + newid,
@@ -245,6 +485,11 @@ public class ConnectionDirectorMediator implements Mediator {
 		SingleConnectionLayer scl = (SingleConnectionLayer) connectionlayer;
 		try {
 			scl.openConnection();
+			// Don't write faster than a serial port's line speed
+			if (scl instanceof SerialPortConnection) {
+				scheduler = new OutputScheduler(
+					((SerialPortConnection) scl).getBytesPerSecond());
+			}
 			runOnStreams(scl.getInputStream(), scl.getOutputStream());
 		} finally {
 			scl.closeConnection();
@@ -254,7 +499,10 @@ public class ConnectionDirectorMediator implements Mediator {
 
 	/**
 	 * Method runOnStreamConnection will start the reading/writing
-	 * process of handling data on a stream connection.
+	 * process of handling data on a stream connection. A reader thread
+	 * blocks on the input while this thread writes. When writing ends or
+	 * reading fails the input is closed to unblock the reader and we
+	 * wait for it to finish.
 	 * 
 	 * @throws IOException Error reading/writing to the StreamConnection
 	 */
@@ -264,95 +512,33 @@ public class ConnectionDirectorMediator implements Mediator {
 		try {
 			// Register with the director now that we're ready to roll
 			messagedirector.registerMediator(this);
-			long lastactivity = System.currentTimeMillis();
-			byte[] data = {};
-			List msgs = null;
-			int msgindex = -1;
-			Message msg = null;
-			
-			// Uncomment to enable bps reporting
-			long start = System.currentTimeMillis();
-			long bytecount = 0;
-			
-			while (!terminate) {
-				// Read 1 incoming message but don't block on it
+			metrics.connected();
+			lastread = System.currentTimeMillis();
+			Thread reader = 
+				MediatorThreads.start(new BlockingReader(this), virtual);
+			try {
+				writeMessages();
+			} finally {
+				terminate = true;
 				try {
-					data = protocolhandler.readIncomingData(false);
+					in.close();
 				} catch (IOException e) {
-					terminate = true;
-					break;
-				}
-				if (data.length > 0) {
-					msg = messagehandler.createMessage(id, name, data);
-					// Send message to the director
-					messagedirector.sendMessage(msg);
-					
-					// Uncomment to enable bps reporting
-					float diff = (System.currentTimeMillis() - start) / 1000;
-					bytecount += data.length + 2;
-					if (diff >= 30) {
-						float bps = (bytecount * 8) / diff;
-						log.info(name + " averaged sending " + 
-							bps + "bps");
-						start = System.currentTimeMillis();
-						bytecount = 0;	
-					}
-				}
-				
-				// Now deliver 1 message that is pending (if any)
-				// First check if we need to retrieve a new batch of msgs
-				if (msgindex == -1) {
-					boolean pending = pendingMessages();
-					if (pending) {
-						msgs = getPendingMessages();
-						msgindex = 0;
-					}
-				}
-				
-				// See if we have a message to deliver
-				if (msgindex >= 0 && msgindex < msgs.size()) {
-					msg = (Message) msgs.get(msgindex);
-					msgindex++;
-					// If we're about to send last message, reset to get more
-					if (msgindex == msgs.size()) {
-						msgindex = -1;
-						msgs = null;
-					}
-					try {				
-						protocolhandler.writeOutgoingData(msg.getMessage());
-						// msg.setDelivered(true);
-					} catch (IOException e) {
-						if (name.startsWith("NMEAon")) {
-							log.warn(e);
-						}
-						terminate = true;	
-						break;
-					}
 				}
-
-				// If we had nothing to do
-				if (msg == null) {
-					// If we have an inactivity timeout check it
-					if (timeout > 0) {
-						long inactivity =
-							System.currentTimeMillis() - lastactivity;
-						if (inactivity >= timeout)
-							terminate = true;
-					}
-
-					// Sleep if we had nothing to do before trying again
-					try {
-						Thread.sleep(100);
-					} catch (InterruptedException e) {
-					}
-				} else {
-					// Log our last activity
-					lastactivity = System.currentTimeMillis();
-					// Clear the message for starters
-					msg = null;
+				try {
+					reader.join(1000);
+				} catch (InterruptedException e) {
 				}
 			}
 		} finally {
+			metrics.disconnected();
+			if (duplicates.getSuppressed() > 0) {
+				log.info(name + " suppressed " + duplicates.getSuppressed() + 
+					" duplicate messages");
+			}
+			if (outbound.getConflated() > 0) {
+				log.info(name + " replaced " + outbound.getConflated() + 
+					" stale messages with newer ones");
+			}
 			// If we turned errorlight on earlier, now turn it off
 			if (errorLight) {
 				displayLED.setErrorLight(name, false);
@@ -365,6 +551,136 @@ public class ConnectionDirectorMediator implements Mediator {
 		}
 	}
 
+	/**
+	 * Write messages as the director queues them until we are told to
+	 * terminate, the connection fails or it times out. Each time we wake
+	 * everything pending is written before flushing, then we wait for 
+	 * the next message or the next thing that is due.
+	 */
+	protected void writeMessages() {
+		long lastactivity = lastread;
+		while (!terminate) {
+			boolean wrote = false;
+			long flushdue = 0;
+			try {
+				long now = System.currentTimeMillis();
+				long written = protocolhandler.getBytesWritten();
+				int count = 0;
+				Message outmsg = nextMessage();
+				while (outmsg != null) {
+					if (scheduler == null || mayWrite(outmsg)) {
+						protocolhandler.writeOutgoingMessage(outmsg);
+						metrics.recordWrite(outmsg, Clock.nanoTime());
+						outmsg.release();
+						count++;
+						wrote = true;
+					} else if (scheduled != null) {
+						// The link is busy until the held message fits
+						break;
+					}
+					outmsg = terminate ? null : nextMessage();
+				}
+				// Flush what we wrote now that nothing more is queued
+				flushdue = flushIfIdle();
+				// Count what actually went out, frames held back by the
+				// flush policy are counted once a later pass flushes them
+				written = protocolhandler.getBytesWritten() - written;
+				if (count > 0 || written > 0) {
+					metrics.countOut(count, written, now);
+				}
+			} catch (IOException e) {
+				if (name.startsWith("NMEAon")) {
+					log.warn(e);
+				}
+				break;
+			}
+			checkOverflow();
+
+			long now = System.currentTimeMillis();
+			if (wrote) {
+				lastactivity = now;
+			}
+			lastactivity = Math.max(lastactivity, lastread);
+			if (timeout > 0 && now - lastactivity >= timeout) {
+				break;
+			}
+
+			// Wait for the director to queue a message or until the
+			// earliest thing that is due, if anything is
+			long wait = earliest(flushdue, 
+				timeout > 0 ? lastactivity + timeout - now : 0);
+			if (ratelimiter != null) {
+				wait = earliest(wait, ratelimiter.nextRelease(now) + 1);
+			}
+			if (errorLight) {
+				wait = earliest(wait, lastDropCheck + 1000 - now);
+			}
+			if (scheduled != null) {
+				// The link is busy so queued messages have to wait too
+				outbound.pause(Math.max(1, scheduledat - now));
+			} else {
+				outbound.await(wait);
+			}
+		}
+	}
+
+	/**
+	 * Returns the shorter of two waits where 0 or less means there is
+	 * nothing to wait for
+	 */
+	protected static long earliest(long a, long b) {
+		if (a <= 0) {
+			return Math.max(b, 0);
+		} else if (b <= 0) {
+			return a;
+		}
+		return Math.min(a, b);
+	}
+
+	/**
+	 * Read messages from the connection, blocking until each arrives,
+	 * and send them to the director until the connection ends. Runs on
+	 * the reader thread started by runOnStreams. The end of the input
+	 * only ends reading, a client that just listens may have shut down
+	 * its side and we keep writing until a write fails or times out.
+	 * Any other read error ends the connection. The message handler is
+	 * closed here rather than in runOnStreams since the writer only waits
+	 * so long for us and this thread is the one using it.
+	 */
+	protected void readBlocking() {
+		ProtocolHandler ph = protocolhandler;
+		MessageHandler mh = messagehandler;
+		MessageDirector md = messagedirector;
+		try {
+			while (!terminate) {
+				int length = ph.readIncomingSlice(true);
+				lastread = System.currentTimeMillis();
+				if (length > 0) {
+					metrics.countIn(length + 2, lastread);
+					Message msg = mh.createMessage(id, name, 
+						ph.getIncomingBuffer(), ph.getIncomingOffset(), length);
+					// Send message to the director unless the handler dropped it
+					if (msg != null) {
+						md.sendMessage(msg);
+					}
+				}
+			}
+		} catch (EOFException e) {
+			if (!terminate) {
+				log.info(name + " input ended, still writing");
+			}
+		} catch (IOException e) {
+			// Closing the input to stop us ends up here too
+			if (!terminate) {
+				log.info(name + " read failed: " + e);
+				terminate = true;
+				outbound.wakeup();
+			}
+		} finally {
+			mh.close();
+		}
+	}
+
 	/**
 	 * @see mw.server.mediator.Mediator#setParameters(int, String, ConnectionLayer, ProtocolHandler, MessageHandler, MessageDirector)
 	 */
@@ -387,80 +703,213 @@ public class ConnectionDirectorMediator implements Mediator {
 	/** 
 	 * This method gets called by the Director when a message
 	 * needs to go out and gets put on our queue of outgoing 
-	 * messages.
+	 * messages. If our dedup window is on, messages we already got from
+	 * another source within it are dropped. Otherwise it is queued in
+	 * the lane for its priority and if that lane is full its overflow
+	 * policy decides what to drop. With a selectable connection layer
+	 * it is queued for every SelectorLoop instead. Each queue gets its
+	 * own reference to the message.
 	 * 
 	 * @param msg The message to be sent
 	 */
 	public void sendMessage(Message msg) {
-		// If we already have the msg pending don't send a dup
-		if (!directormsgs.contains(msg)) {
-			directormsgs.add(msg);
+		// The director only routes subscribed types so check the talker
+		if (talkers != null && !accepts(talkers, msg.getTalkerCode())) {
+			return;
+		}
+		if (duplicates.getWindow() <= 0 
+			|| !duplicates.isDuplicate(msg, System.currentTimeMillis())) {
+			SelectorLoop[] selectorloops = loops;
+			if (selectorloops != null) {
+				for (int i = 0; i < selectorloops.length; i++) {
+					msg.retain();
+					selectorloops[i].offer(msg);
+				}
+			} else {
+				msg.retain();
+				outbound.offer(msg);
+			}
 		}
 	}
 
 	/**
-	 * Get any pending messages. When this method is called the messages 
-	 * returned are removed from the list of pending messages.
+	 * Get the next message to write. A message the rate limiter held
+	 * back goes first once it's allowed, otherwise the highest priority
+	 * queued message the rate limiter lets through.
 	 * 
-	 * @return List Messages pending handling
-	 */
-	protected List getPendingMessages() {
-		// Get the pending messages and allocate new buffer list
-		List pendingmsgs = directormsgs;
-		directormsgs = Collections.synchronizedList(new ArrayList());
-		// Now check if our backlog is growing too large and drop old msgs
-		int maxsize = 20;
-		int psize = pendingmsgs.size();
-		
-		// Check if we have too many and need to drop some
-		if (psize > maxsize) {
-			// We have to drop messages so first thing is to turn
-			// on the error light
+	 * @return Message The message to write or null if there is none
+	 */
+	protected Message nextMessage() {
+		Message msg = scheduled;
+		if (msg != null) {
+			scheduled = null;
+			return msg;
+		}
+		if (ratelimiter == null) {
+			return outbound.poll();
+		}
+		long now = System.currentTimeMillis();
+		msg = ratelimiter.release(now);
+		if (msg == null) {
+			msg = outbound.poll();
+			while (msg != null && !ratelimiter.admit(msg, now)) {
+				msg = outbound.poll();
+			}
+		}
+		return msg;
+	}
+
+	/**
+	 * Let the protocol handler flush what we wrote if nothing more is
+	 * queued, following its flush policy.
+	 * 
+	 * @return long How many milliseconds until waiting data is due to
+	 * be flushed, 0 if nothing is waiting
+	 * @throws IOException Error writing to the stream
+	 */
+	protected long flushIfIdle() throws IOException {
+		if (scheduled == null && outbound.size() == 0) {
+			return protocolhandler.flushIdle(System.currentTimeMillis());
+		}
+		return 0;
+	}
+
+	/**
+	 * Ask the scheduler if a message fits on a serial link now. If not
+	 * a low priority message is dropped and any other is kept to be
+	 * tried again first next time.
+	 * 
+	 * @param msg The message about to be written
+	 * @return boolean True if the message may be written now
+	 */
+	protected boolean mayWrite(Message msg) {
+		// NMEA goes out with a CR LF after it
+		int length = msg.getLength() + 2;
+		long now = System.currentTimeMillis();
+		long delay = scheduler.schedule(length, msg.getPriority(), now);
+		if (delay == 0) {
+			return true;
+		}
+		if (msg.getPriority() == Message.PRIORITY_LOW) {
+			msg.release();
+			linedrops++;
+		} else {
+			scheduled = msg;
+			scheduledat = now + delay;
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether the outbound queue dropped messages since we last
+	 * looked, at most once a second. Drops turn the error light on and
+	 * it goes off again once the client has caught up.
+	 */
+	protected void checkOverflow() {
+		long now = System.currentTimeMillis();
+		if (now - lastDropCheck < 1000) {
+			return;
+		}
+		lastDropCheck = now;
+		if (scheduler != null && now - lastUtilizationLog >= 30000) {
+			log.info(name + " link at " + scheduler.getUtilization() + 
+				"% of " + scheduler.getBytesPerSecond() + " bytes/s, " + 
+				linedrops + " low priority messages dropped");
+			lastUtilizationLog = now;
+		}
+		long dropped = outbound.getDropped();
+		if (dropped != reportedDrops) {
+			// We had to drop messages so turn on the error light
 			errorLight = true;
 			displayLED.setErrorLight(name, true);
-			
-			// Now make sure we don't drop mandatory messages
-			Message msg = null;
-			List mustsend = new ArrayList();
-			for (int i = 0; i < psize - maxsize; i++) {
-				msg = (Message)pendingmsgs.get(i);
-				if (msg.isMandatory()) {
-					mustsend.add(msg);
-				}
-			}
-			
-			// To avoid infinite sending of mandatory messages
-			// we must drop even mandatory messages if there are
-			// too many
-			if (mustsend.size() > maxsize) {
-				// Truncate the mustsend list
-				mustsend.subList(0, mustsend.size() - maxsize).clear();
-			}
-			
-			// Now combine the remaining pendingmsgs and mustsend list
-			pendingmsgs = pendingmsgs.subList(psize - maxsize, psize);
-			pendingmsgs.addAll(0, mustsend);
-			
-			log.warn(name + " has too many ("+psize+") pending messages: sending " + 
-					pendingmsgs.size());
-		} else if (errorLight) {
+			log.warn(name + " has too many pending messages: dropped " + 
+					(dropped - reportedDrops) + " (lanes of " + 
+					outbound.getCapacity() + ")");
+			reportedDrops = dropped;
+		} else if (errorLight && outbound.size() == 0) {
 			// We turned it on earlier and now we must turn it off
 			displayLED.setErrorLight(name, false);
+			errorLight = false;
 		}
-		return pendingmsgs;
 	}
 
-	/** 
-	 * Check whether we have messages pending.
+	/**
+	 * Returns the number of messages waiting in the outbound queue
 	 * 
-	 * @return boolean True if we have messages pending
+	 * @return int
 	 */
-	protected boolean pendingMessages() {
-		if (directormsgs.size() > 0) {
-			return true;
-		} else {
-			return false;
+	public int getQueueDepth() {
+		return outbound.size();
+	}
+
+	/**
+	 * Returns the number of messages the outbound queue dropped
+	 * 
+	 * @return long
+	 */
+	public long getQueueDropped() {
+		return outbound.getDropped();
+	}
+
+	/**
+	 * Returns the percentage of a serial link's line speed used
+	 * recently, or -1 if we don't write to a serial port
+	 * 
+	 * @return int
+	 */
+	public int getLinkUtilization() {
+		return scheduler == null ? -1 : scheduler.getUtilization();
+	}
+
+	/**
+	 * Returns the number of low priority messages dropped because
+	 * the serial link was busy
+	 * 
+	 * @return long
+	 */
+	public long getLineDrops() {
+		return linedrops;
+	}
+
+	/**
+	 * Returns the number of messages the rate limits dropped
+	 * 
+	 * @return long
+	 */
+	public long getRateLimited() {
+		return ratelimiter == null ? 0 : ratelimiter.getDropped();
+	}
+
+	/**
+	 * @see mw.server.metrics.MetricsSource#getBadSentences()
+	 */
+	public long getBadSentences() {
+		return countBad(messagehandler);
+	}
+
+	/**
+	 * Count the lines an NMEA message handler found bad
+	 * 
+	 * @param mh The message handler
+	 * @return long The number of bad lines, 0 for other handlers
+	 */
+	protected static long countBad(MessageHandler mh) {
+		if (!(mh instanceof NMEAMessageHandler)) {
+			return 0;
 		}
+		NMEAMessageHandler nmh = (NMEAMessageHandler) mh;
+		return nmh.getCount(NMEAMessage.QUALITY_BAD_CHECKSUM) 
+			+ nmh.getCount(NMEAMessage.QUALITY_TRUNCATED) 
+			+ nmh.getCount(NMEAMessage.QUALITY_NOT_NMEA);
+	}
+
+	/**
+	 * Returns the metrics this mediator or connection counts into
+	 * 
+	 * @return MediatorMetrics
+	 */
+	public MediatorMetrics getMetrics() {
+		return metrics;
 	}
 
 	/**
@@ -497,6 +946,7 @@ public class ConnectionDirectorMediator implements Mediator {
 	 */
 	public void setTerminate(boolean terminate) {
 		this.terminate = terminate;
+		outbound.wakeup();
 	}
 
 	/**
@@ -590,6 +1040,133 @@ public class ConnectionDirectorMediator implements Mediator {
 		this.timeout = timeout;
 	}
 
+	/**
+	 * Returns the number of duplicate messages this mediator suppressed
+	 * 
+	 * @return long
+	 */
+	public long getSuppressed() {
+		return duplicates.getSuppressed();
+	}
+
+	/**
+	 * @see mw.server.mediator.Mediator#getSubscriptions()
+	 */
+	public int[] getSubscriptions() {
+		return subscriptions;
+	}
+
+	/**
+	 * @see mw.server.mediator.Mediator#setSubscriptions(String)
+	 */
+	public void setSubscriptions(String types) {
+		subscriptions = null;
+		if (types != null) {
+			StringTokenizer strtok = new StringTokenizer(types, ", ");
+			subscriptions = new int[strtok.countTokens()];
+			for (int i = 0; i < subscriptions.length; i++) {
+				subscriptions[i] = NMEAMessage.typeCode(strtok.nextToken());
+			}
+		}
+	}
+
+	/**
+	 * @see mw.server.mediator.Mediator#setTalkers(String)
+	 */
+	public void setTalkers(String talkerlist) {
+		talkers = null;
+		if (talkerlist != null) {
+			StringTokenizer strtok = new StringTokenizer(talkerlist, ", ");
+			talkers = new int[strtok.countTokens()];
+			for (int i = 0; i < talkers.length; i++) {
+				talkers[i] = NMEAMessage.talkerCode(strtok.nextToken());
+			}
+		}
+	}
+
+	/**
+	 * Check if a code is in a list of codes
+	 * 
+	 * @param codes The list of codes
+	 * @param code The code to look for
+	 * @return boolean True if the code is in the list
+	 */
+	protected static boolean accepts(int[] codes, int code) {
+		for (int i = 0; i < codes.length; i++) {
+			if (codes[i] == code) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @see mw.server.mediator.Mediator#setQueueSize(int)
+	 */
+	public void setQueueSize(int capacity) {
+		outbound = createQueue(capacity, outbound.getPolicy());
+	}
+
+	/**
+	 * @see mw.server.mediator.Mediator#setOverflowPolicy(OverflowPolicy)
+	 */
+	public void setOverflowPolicy(OverflowPolicy policy) {
+		outbound = createQueue(outbound.getCapacity(), policy);
+	}
+
+	/**
+	 * @see mw.server.mediator.Mediator#setQueueMode(String)
+	 */
+	public void setQueueMode(String mode) {
+		latestvalue = mode.equalsIgnoreCase("latest");
+		outbound = createQueue(outbound.getCapacity(), outbound.getPolicy());
+	}
+
+	/**
+	 * @see mw.server.mediator.Mediator#setRateLimit(String, boolean)
+	 */
+	public void setRateLimit(String rules, boolean conflate) {
+		ratelimit = rules;
+		rateconflate = conflate;
+		ratelimiter = null;
+		if (rules != null) {
+			ratelimiter = new RateLimiter(rules, conflate);
+		}
+	}
+
+	/**
+	 * Create the outbound lanes for the current queue mode
+	 * 
+	 * @param capacity The size of each lane
+	 * @param policy The overflow policy
+	 * @return OutboundLanes The new lanes
+	 */
+	protected OutboundLanes createQueue(int capacity, OverflowPolicy policy) {
+		OutboundQueue[] lanes = new OutboundQueue[Message.PRIORITIES];
+		for (int i = 0; i < lanes.length; i++) {
+			if (latestvalue) {
+				lanes[i] = new LatestValueQueue(capacity, policy);
+			} else {
+				lanes[i] = new OutboundQueue(capacity, policy);
+			}
+		}
+		return new OutboundLanes(lanes);
+	}
+
+	/**
+	 * @see mw.server.mediator.Mediator#setThreads(String)
+	 */
+	public void setThreads(String mode) {
+		virtual = mode.equalsIgnoreCase("virtual");
+	}
+
+	/**
+	 * @see mw.server.mediator.Mediator#setDedupWindow(long)
+	 */
+	public void setDedupWindow(long window) {
+		duplicates.setWindow(window);
+	}
+
 	/**
 	 * Returns the connectionlayer.
 	 * 
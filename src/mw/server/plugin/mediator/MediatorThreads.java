@@ -0,0 +1,108 @@
+package mw.server.plugin.mediator;
+
+import java.lang.reflect.Method;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author thuss
+ *
+ * Starts mediator threads either as platform threads or, on a JVM that
+ * has them, as virtual threads. Virtual threads are looked up by
+ * reflection so the server still runs on older JREs, where asking for
+ * them falls back to platform threads with a warning. They are only used
+ * from Java 24 on: before that a virtual thread waiting on a monitor,
+ * as every connection's writer does while idle, pins its carrier thread
+ * and a few hundred idle clients would starve all the others.
+ */
+public class MediatorThreads {
+
+	protected static Logger log = Logger.getLogger(MediatorThreads.class);
+
+	/**
+	 * The first Java release whose virtual threads can wait on a monitor
+	 * without pinning their carrier thread
+	 */
+	protected static final int VIRTUAL_RELEASE = 24;
+
+	/**
+	 * Thread.startVirtualThread(Runnable) or null if the JVM lacks it or
+	 * is older than VIRTUAL_RELEASE
+	 */
+	protected static Method startVirtual = findStartVirtual();
+
+	/**
+	 * Whether we already warned that virtual threads are missing
+	 */
+	protected static boolean warned = false;
+
+	/**
+	 * Start a thread running the runnable
+	 * 
+	 * @param r What to run
+	 * @param virtual True to use a virtual thread if the JVM has them
+	 * @return Thread The started thread
+	 */
+	public static Thread start(Runnable r, boolean virtual) {
+		if (virtual && startVirtual != null) {
+			try {
+				return (Thread) startVirtual.invoke(null, new Object[] { r });
+			} catch (Exception e) {
+				log.warn(e);
+			}
+		} else if (virtual && !warned) {
+			warned = true;
+			log.warn("Virtual threads need Java " + VIRTUAL_RELEASE + 
+				" or later, " +
+				"using platform threads");
+		}
+		Thread thread = new Thread(r);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Returns whether the JVM has virtual threads we can use
+	 * 
+	 * @return boolean
+	 */
+	public static boolean isVirtualAvailable() {
+		return startVirtual != null;
+	}
+
+	/**
+	 * Look up Thread.startVirtualThread(Runnable) if the JVM is recent
+	 * enough
+	 */
+	protected static Method findStartVirtual() {
+		if (getRelease() < VIRTUAL_RELEASE) {
+			return null;
+		}
+		try {
+			return Thread.class.getMethod("startVirtualThread", 
+				new Class[] { Runnable.class });
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the Java release we run on, e.g. 4 for 1.4 or 21, or 0 if
+	 * it can't be worked out
+	 */
+	protected static int getRelease() {
+		String version = System.getProperty("java.specification.version", "");
+		if (version.startsWith("1.")) {
+			version = version.substring(2);
+		}
+		int dot = version.indexOf('.');
+		if (dot >= 0) {
+			version = version.substring(0, dot);
+		}
+		try {
+			return Integer.parseInt(version);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
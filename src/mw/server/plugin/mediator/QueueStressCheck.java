@@ -0,0 +1,196 @@
+package mw.server.plugin.mediator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+
+import mw.server.connection.SingleConnectionLayer;
+import mw.server.director.MessageDirector;
+import mw.server.director.MessageQueue;
+import mw.server.message.Message;
+import mw.server.plugin.message.NMEAMessageHandler;
+import mw.server.plugin.protocol.RawNMEAProtocol;
+
+/**
+ * @author thuss
+ *
+ * Stress check of the director's MessageQueue which runs many
+ * ConnectionDirectorMediator producers against one director, each
+ * reading uniquely numbered sentences from an in memory stream, and
+ * checks that every sentence comes out of the director exactly once and
+ * in order. Sentences rejected by a full ring are counted per producer,
+ * so a gap in a producer's sentences must be covered by its drops and
+ * its delivered plus dropped sentences must add up to what it sent.
+ */
+public class QueueStressCheck {
+
+	protected static Logger log = Logger.getLogger(QueueStressCheck.class);
+
+	/**
+	 * A director that counts the sentences a full ring rejects for each
+	 * producer and lets the check drain its queue
+	 */
+	protected static class Director extends MessageDirector {
+
+		/**
+		 * Sentences rejected for each producer, producer p has id p + 1
+		 */
+		protected int[] dropped;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param producers The number of producers
+		 */
+		public Director(int producers) {
+			dropped = new int[producers];
+		}
+
+		/**
+		 * @see mw.server.director.MessageDirector#sendMessage(Message)
+		 */
+		public void sendMessage(Message msg) {
+			if (!messages.offer(msg)) {
+				dropped[msg.getSenderId() - 1]++;
+				msg.release();
+			}
+		}
+
+		/**
+		 * Returns the queue the producers offer to
+		 *
+		 * @return MessageQueue
+		 */
+		public MessageQueue getQueue() {
+			return messages;
+		}
+	}
+
+	/**
+	 * Runs the check.
+	 *
+	 * @param args Optional producers, sentences per producer and ring size
+	 * (0 for one big enough for every sentence)
+	 */
+	public static void main(String[] args) {
+		BasicConfigurator.configure();
+		int producers = 32;
+		int sentences = 5000;
+		// By default the ring holds everything so nothing may be dropped,
+		// pass a smaller ring to check drops are accounted for
+		int capacity = 0;
+		if (args.length > 2) {
+			producers = Integer.parseInt(args[0]);
+			sentences = Integer.parseInt(args[1]);
+			capacity = Integer.parseInt(args[2]);
+		}
+		if (capacity <= 0) {
+			capacity = producers * sentences;
+		}
+		Director director = new Director(producers);
+		Map features = new HashMap();
+		features.put("director", "queuesize=" + capacity);
+		director.configure(features);
+		int[] dropped = director.dropped;
+		// Producer p gets mediator id p + 1
+		director.getNewMediatorId();
+		ConnectionDirectorMediator[] meds =
+			new ConnectionDirectorMediator[producers];
+		for (int p = 0; p < producers; p++) {
+			// The first line is discarded by RawNMEA just like a serial port
+			StringBuffer data = new StringBuffer("$GPXXX,partial\r\n");
+			for (int i = 0; i < sentences; i++) {
+				data.append("$GPXXX," + p + "," + i + "*00\r\n");
+			}
+			final InputStream in =
+				new ByteArrayInputStream(data.toString().getBytes());
+			final OutputStream out = new ByteArrayOutputStream();
+			SingleConnectionLayer cl = new SingleConnectionLayer() {
+				public void openConnection() {
+				}
+				public void closeConnection() {
+				}
+				public void setParameters(String params) {
+				}
+				public InputStream getInputStream() {
+					return in;
+				}
+				public OutputStream getOutputStream() {
+					return out;
+				}
+			};
+			meds[p] = new ConnectionDirectorMediator();
+			meds[p].setParameters(director.getNewMediatorId(), "Producer" + p,
+				cl, new RawNMEAProtocol(), new NMEAMessageHandler(), director);
+		}
+		for (int p = 0; p < producers; p++) {
+			new Thread(meds[p]).start();
+		}
+
+		// Act as the director thread and check what comes out
+		int expected = producers * sentences;
+		int[] next = new int[producers];
+		int[] delivered = new int[producers];
+		int received = 0;
+		int errors = 0;
+		List pending = new ArrayList();
+		long deadline = System.currentTimeMillis() + 60000;
+		while (received + director.getQueueDropped() < expected
+			&& System.currentTimeMillis() < deadline) {
+			director.getQueue().waitForMessages();
+			pending.clear();
+			director.getQueue().drainTo(pending);
+			for (int i = 0; i < pending.size(); i++) {
+				byte[] line = ((Message) pending.get(i)).getMessage();
+				// Parse $GPXXX,<producer>,<seq>*00
+				int pos = 7;
+				int p = 0;
+				while (line[pos] != ',') {
+					p = p * 10 + line[pos++] - '0';
+				}
+				pos++;
+				int seq = 0;
+				while (line[pos] != '*') {
+					seq = seq * 10 + line[pos++] - '0';
+				}
+				// Each producer's sentences must arrive once and in order,
+				// and every one skipped so far must have been dropped
+				if (seq < next[p]) {
+					log.warn("Duplicate: " + new String(line));
+					errors++;
+				} else if (seq - delivered[p] > dropped[p]) {
+					log.warn("Lost " + (seq - delivered[p] - dropped[p]) 
+						+ " before: " + new String(line));
+					errors++;
+				}
+				next[p] = seq + 1;
+				delivered[p]++;
+				received++;
+			}
+		}
+		for (int p = 0; p < producers; p++) {
+			meds[p].setTerminate(true);
+			if (delivered[p] + dropped[p] != sentences) {
+				log.warn("Producer" + p + " sent " + sentences + ", received " 
+					+ delivered[p] + ", dropped " + dropped[p]);
+				errors++;
+			}
+		}
+		log.info(producers + " producers sent " + expected + ", received "
+			+ received + ", dropped (ring full) "
+			+ director.getQueueDropped() + ", errors " + errors);
+		if (errors > 0 || received + director.getQueueDropped() != expected) {
+			log.warn("FAILED");
+		} else {
+			log.info("PASSED");
+		}
+	}
+}
@@ -0,0 +1,415 @@
+package mw.server.plugin.mediator;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import mw.server.director.MessageDirector;
+import mw.server.message.Message;
+import mw.server.message.MessageHandler;
+import mw.server.metrics.Clock;
+import mw.server.metrics.MediatorMetrics;
+import mw.server.metrics.MetricsSource;
+import mw.server.queue.OutboundLanes;
+import mw.server.queue.RateLimiter;
+
+/**
+ * @author thuss
+ *
+ * Serves a share of a SelectableConnectionLayer's clients from one
+ * thread. The mediator offers each message it gets from the director
+ * to every loop's queue, and the loop encodes it into the write buffer
+ * of each of its clients except the one that sent it, then writes the
+ * buffers out without blocking. Incoming data is read when the selector
+ * says it is ready, so an idle loop just waits in select.
+ */
+public class SelectorLoop implements Runnable, MetricsSource {
+
+	protected static Logger log = Logger.getLogger(SelectorLoop.class);
+
+	/**
+	 * The name of the mediator the loop serves clients for
+	 */
+	protected String name;
+
+	/**
+	 * The selector for this loop's channels
+	 */
+	protected Selector selector;
+
+	/**
+	 * Clients accepted but not yet registered with the selector
+	 */
+	protected List pending = new ArrayList();
+
+	/**
+	 * The clients served by this loop
+	 */
+	protected List clients = new ArrayList();
+
+	/**
+	 * Messages waiting to be written to the clients
+	 */
+	protected OutboundLanes outbound;
+
+	/**
+	 * Enforces the rate limits, null for none
+	 */
+	protected RateLimiter ratelimiter;
+
+	/**
+	 * Creates messages from what the clients send
+	 */
+	protected MessageHandler messagehandler;
+
+	/**
+	 * The director to send the clients' messages to
+	 */
+	protected MessageDirector messagedirector;
+
+	/**
+	 * Inactivity timeout in milliseconds, 0 for none
+	 */
+	protected long timeout;
+
+	/**
+	 * Set once the loop has been woken up to drain its queue
+	 */
+	protected volatile boolean awake = false;
+
+	/**
+	 * Flag to terminate the run method
+	 */
+	protected volatile boolean terminate = false;
+
+	/**
+	 * What the loop counts its clients' traffic into
+	 */
+	protected MediatorMetrics metrics = new MediatorMetrics("SelectorLoop", this);
+
+	/**
+	 * Number of dropped messages already reported in the log
+	 */
+	protected volatile long reportedDrops = 0;
+
+	/**
+	 * Messages dropped for clients that have since disconnected
+	 */
+	protected long closedDrops = 0;
+
+	/**
+	 * How long until a client's held frames are due, 0 for none
+	 */
+	protected long nextdue = 0;
+
+	/**
+	 * When we last checked for timeouts and drops
+	 */
+	protected long lastCheck = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param name The name of the mediator
+	 * @param outbound The queue of messages for the clients
+	 * @param ratelimiter The rate limits or null for none
+	 * @param mh Creates messages from what the clients send
+	 * @param md The director to send the clients' messages to
+	 * @param timeout Inactivity timeout in milliseconds, 0 for none
+	 * @throws IOException Error opening the selector
+	 */
+	public SelectorLoop(String name, OutboundLanes outbound,
+		RateLimiter ratelimiter, MessageHandler mh, MessageDirector md,
+		long timeout) throws IOException {
+		this.name = name;
+		this.outbound = outbound;
+		this.ratelimiter = ratelimiter;
+		this.messagehandler = mh;
+		this.messagedirector = md;
+		this.timeout = timeout;
+		selector = Selector.open();
+	}
+
+	/**
+	 * Hand a newly accepted client to this loop. Called from the
+	 * mediator's accepting thread.
+	 * 
+	 * @param client The client
+	 */
+	public void addClient(ChannelClient client) {
+		synchronized (pending) {
+			pending.add(client);
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * Queue a message for the clients and wake the loop if it is
+	 * waiting in select. Called from the director's thread.
+	 * 
+	 * @param msg The message
+	 */
+	public void offer(Message msg) {
+		outbound.offer(msg);
+		if (!awake) {
+			awake = true;
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		try {
+			while (!terminate) {
+				selector.select(nextdue > 0 ? nextdue : 1000);
+				registerPending();
+				Iterator keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = (SelectionKey) keys.next();
+					keys.remove();
+					handle(key);
+				}
+				// Cleared before draining so a message offered from now
+				// on wakes the next select
+				awake = false;
+				deliver();
+				check();
+			}
+		} catch (IOException e) {
+			log.warn(e);
+		} finally {
+			for (int i = 0; i < clients.size(); i++) {
+				((ChannelClient) clients.get(i)).close();
+				metrics.disconnected();
+			}
+			clients.clear();
+			outbound.clear();
+			messagehandler.close();
+			if (ratelimiter != null) {
+				ratelimiter.clear();
+			}
+			metrics.detach();
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Register the clients handed to us since the last select
+	 * 
+	 * @throws IOException Error registering a channel
+	 */
+	protected void registerPending() throws IOException {
+		synchronized (pending) {
+			for (int i = 0; i < pending.size(); i++) {
+				ChannelClient client = (ChannelClient) pending.get(i);
+				client.setKey(client.getChannel().register(
+					selector, SelectionKey.OP_READ, client));
+				clients.add(client);
+				metrics.connected();
+			}
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Read from or write to a client the selector says is ready,
+	 * closing it if the connection is gone.
+	 * 
+	 * @param key The ready key
+	 */
+	protected void handle(SelectionKey key) {
+		ChannelClient client = (ChannelClient) key.attachment();
+		try {
+			if (key.isReadable() 
+				&& !client.read(messagehandler, messagedirector, metrics)) {
+				close(client);
+				return;
+			}
+			if (key.isValid()) {
+				client.flush(metrics);
+			}
+		} catch (IOException e) {
+			close(client);
+		}
+	}
+
+	/**
+	 * Encode every queued message for every client except its sender,
+	 * releasing it once all have it, then start writing each client's
+	 * buffer and note when the first frames held back by a flush policy
+	 * are due.
+	 */
+	protected void deliver() {
+		long now = System.currentTimeMillis();
+		Message msg = nextMessage();
+		while (msg != null) {
+			for (int i = 0; i < clients.size(); i++) {
+				ChannelClient client = (ChannelClient) clients.get(i);
+				if (msg.getSenderId() != client.getId()) {
+					try {
+						client.write(msg);
+						metrics.recordWrite(msg, Clock.nanoTime());
+					} catch (IOException e) {
+						log.warn(e);
+					}
+				}
+			}
+			msg.release();
+			msg = nextMessage();
+		}
+		nextdue = 0;
+		for (int i = clients.size() - 1; i >= 0; i--) {
+			ChannelClient client = (ChannelClient) clients.get(i);
+			if (client.isPending()) {
+				try {
+					long due = client.flush(metrics);
+					if (due > 0 && (nextdue == 0 || due < nextdue)) {
+						nextdue = due;
+					}
+				} catch (IOException e) {
+					close(client);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the next message to write, applying the rate limits
+	 * 
+	 * @return Message The message or null if there is none
+	 */
+	protected Message nextMessage() {
+		if (ratelimiter == null) {
+			return outbound.poll();
+		}
+		long now = System.currentTimeMillis();
+		Message msg = ratelimiter.release(now);
+		if (msg == null) {
+			msg = outbound.poll();
+			while (msg != null && !ratelimiter.admit(msg, now)) {
+				msg = outbound.poll();
+			}
+		}
+		return msg;
+	}
+
+	/**
+	 * Once a second close clients that were inactive too long and
+	 * log how many messages were dropped for slow clients.
+	 */
+	protected void check() {
+		long now = System.currentTimeMillis();
+		if (now - lastCheck < 1000) {
+			return;
+		}
+		lastCheck = now;
+		long dropped = outbound.getDropped() + closedDrops;
+		for (int i = clients.size() - 1; i >= 0; i--) {
+			ChannelClient client = (ChannelClient) clients.get(i);
+			dropped += client.getDropped();
+			if (timeout > 0 && now - client.getLastActivity() >= timeout) {
+				close(client);
+			}
+		}
+		if (dropped != reportedDrops) {
+			log.warn(name + " dropped " + (dropped - reportedDrops) + 
+				" messages for slow clients");
+			reportedDrops = dropped;
+		}
+	}
+
+	/**
+	 * Close a client and stop serving it
+	 * 
+	 * @param client The client
+	 */
+	protected void close(ChannelClient client) {
+		closedDrops += client.getDropped();
+		client.close();
+		clients.remove(client);
+		metrics.disconnected();
+	}
+
+	/**
+	 * Returns the number of clients served by this loop
+	 * 
+	 * @return int
+	 */
+	public int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * Sets the metrics the loop counts into, a child of the mediator's
+	 * 
+	 * @param metrics The metrics
+	 */
+	public void setMetrics(MediatorMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @see mw.server.metrics.MetricsSource#getQueueDepth()
+	 */
+	public int getQueueDepth() {
+		return outbound.size();
+	}
+
+	/**
+	 * Includes messages dropped for clients whose write buffer was full,
+	 * as of the last check
+	 * @see mw.server.metrics.MetricsSource#getQueueDropped()
+	 */
+	public long getQueueDropped() {
+		return reportedDrops;
+	}
+
+	/**
+	 * The mediator suppresses duplicates before they reach the loop
+	 * @see mw.server.metrics.MetricsSource#getSuppressed()
+	 */
+	public long getSuppressed() {
+		return 0;
+	}
+
+	/**
+	 * @see mw.server.metrics.MetricsSource#getRateLimited()
+	 */
+	public long getRateLimited() {
+		return ratelimiter == null ? 0 : ratelimiter.getDropped();
+	}
+
+	/**
+	 * @see mw.server.metrics.MetricsSource#getLineDrops()
+	 */
+	public long getLineDrops() {
+		return 0;
+	}
+
+	/**
+	 * @see mw.server.metrics.MetricsSource#getBadSentences()
+	 */
+	public long getBadSentences() {
+		return ConnectionDirectorMediator.countBad(messagehandler);
+	}
+
+	/**
+	 * Sets the terminate flag and wakes the loop
+	 * 
+	 * @param terminate The terminate to set
+	 */
+	public void setTerminate(boolean terminate) {
+		this.terminate = terminate;
+		selector.wakeup();
+	}
+}
@@ -1,13 +1,511 @@
 package mw.server.plugin.message;
 
+import mw.server.decoder.DecoderRegistry;
+import mw.server.decoder.SentenceDecoder;
+import mw.server.decoder.SentenceRecord;
 import mw.server.message.Message;
 
 /**
  * @author thuss
  *
- * This is a container for an NMEA message
+ * This is a container for an NMEA message. The talker id and sentence
+ * type (e.g. GP and RMC in $GPRMC) are packed into ints when the message
+ * is set so routing doesn't need to build Strings.
+ * 
+ * Fields are read by index, field 0 being the address (e.g. $GPRMC) and
+ * the checksum not counting as a field. The first field read finds all
+ * the commas and keeps their positions on the message, and the fields
+ * are parsed straight from the message bytes into ints and doubles, so
+ * routers and filters can look inside a sentence without allocating.
+ * Fields past the last one read as empty.
+ * 
+ * getRecord decodes the sentence into a typed record with the decoder
+ * registered for its type the first time it is called and caches it on
+ * the message, so every consumer of the sentence shares one decode.
  */
 public class NMEAMessage extends Message {
 
+	/**
+	 * Quality of a sentence whose checksum matched, or that has none
+	 * where none is required
+	 */
+	public static final int QUALITY_VALID = 0;
 
+	/**
+	 * Quality of a sentence whose checksum didn't match
+	 */
+	public static final int QUALITY_BAD_CHECKSUM = 1;
+
+	/**
+	 * Quality of a sentence cut off in or before its checksum
+	 */
+	public static final int QUALITY_TRUNCATED = 2;
+
+	/**
+	 * Quality of a line that isn't an NMEA sentence at all
+	 */
+	public static final int QUALITY_NOT_NMEA = 3;
+
+	/**
+	 * The packed sentence type (e.g. RMC)
+	 */
+	protected int typecode;
+
+	/**
+	 * The packed talker id (e.g. GP)
+	 */
+	protected int talkercode;
+
+	/**
+	 * What the message handler found checking the sentence (e.g.
+	 * QUALITY_VALID)
+	 */
+	protected int quality = QUALITY_VALID;
+
+	/**
+	 * Where each field starts in the buffer, followed by the position
+	 * one past the end of the last field. Kept for the next content of
+	 * a pooled message.
+	 */
+	protected int[] fields = null;
+
+	/**
+	 * Number of fields, -1 until the first field is read
+	 */
+	protected volatile int fieldcount = -1;
+
+	/**
+	 * The record decoded from the sentence. Kept for the next content of
+	 * a pooled message so the decoder can refill it.
+	 */
+	protected SentenceRecord record = null;
+
+	/**
+	 * True if record holds the decode of the current sentence
+	 */
+	protected boolean hasrecord = false;
+
+	/**
+	 * True once the current sentence has been through its decoder
+	 */
+	protected volatile boolean decoded = false;
+
+	/**
+	 * Powers of ten for scaling parsed decimals
+	 */
+	protected static final double[] SCALE = new double[19];
+
+	static {
+		SCALE[0] = 1;
+		for (int i = 1; i < SCALE.length; i++) {
+			SCALE[i] = SCALE[i - 1] * 10;
+		}
+	}
+
+	/**
+	 * Works out the talker id and sentence type of the new message.
+	 * @see mw.server.message.Message#parse()
+	 */
+	protected void parse() {
+		// $ or ! followed by a 2 char talker and 3 char sentence type
+		int o = offset;
+		if (length >= 6 && (message[o] == '$' || message[o] == '!')) {
+			talkercode = ((message[o + 1] & 0xff) << 8) | (message[o + 2] & 0xff);
+			typecode = ((message[o + 3] & 0xff) << 16) | ((message[o + 4] & 0xff) << 8)
+				| (message[o + 5] & 0xff);
+		} else {
+			talkercode = 0;
+			typecode = 0;
+		}
+		fieldcount = -1;
+		quality = QUALITY_VALID;
+		decoded = false;
+	}
+
+	/**
+	 * Check a sentence in one pass, XORing everything between the $ or !
+	 * and the * and comparing it with the two hex digits after the *.
+	 * 
+	 * @param data The array holding the sentence
+	 * @param off Where the sentence starts
+	 * @param len The length of the sentence without its line end
+	 * @param required True if a sentence without a checksum is truncated
+	 * @return int The quality, e.g. QUALITY_VALID
+	 */
+	public static int checkSentence(byte[] data, int off, int len, 
+		boolean required) {
+		if (len < 6 || (data[off] != '$' && data[off] != '!')) {
+			return QUALITY_NOT_NMEA;
+		}
+		int end = off + len;
+		int sum = 0;
+		int i = off + 1;
+		for (; i < end; i++) {
+			byte b = data[i];
+			if (b == '*') {
+				break;
+			}
+			sum ^= b;
+		}
+		if (i == end) {
+			return required ? QUALITY_TRUNCATED : QUALITY_VALID;
+		}
+		if (end - i < 3) {
+			return QUALITY_TRUNCATED;
+		}
+		int hi = hexDigit(data[i + 1]);
+		int lo = hexDigit(data[i + 2]);
+		if (hi < 0 || lo < 0 || ((hi << 4) | lo) != (sum & 0xff)) {
+			return QUALITY_BAD_CHECKSUM;
+		}
+		return QUALITY_VALID;
+	}
+
+	/**
+	 * Returns the value of a hex digit or -1
+	 */
+	protected static int hexDigit(byte b) {
+		if (b >= '0' && b <= '9') {
+			return b - '0';
+		} else if (b >= 'A' && b <= 'F') {
+			return b - 'A' + 10;
+		} else if (b >= 'a' && b <= 'f') {
+			return b - 'a' + 10;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns what the message handler found checking the sentence
+	 * 
+	 * @return int The quality, e.g. QUALITY_VALID
+	 */
+	public int getQuality() {
+		return quality;
+	}
+
+	/**
+	 * Sets what the message handler found checking the sentence
+	 * 
+	 * @param quality The quality, e.g. QUALITY_BAD_CHECKSUM
+	 */
+	public void setQuality(int quality) {
+		this.quality = quality;
+	}
+
+	/**
+	 * Returns whether the sentence passed its checks
+	 * 
+	 * @return boolean
+	 */
+	public boolean isValid() {
+		return quality == QUALITY_VALID;
+	}
+
+	/**
+	 * Find the fields the first time one is read. Threads writing the
+	 * same message to different clients may race to do it, so it is
+	 * done once under the message's monitor.
+	 * 
+	 * @return int The number of fields
+	 */
+	protected int index() {
+		int count = fieldcount;
+		if (count < 0) {
+			synchronized (this) {
+				count = fieldcount;
+				if (count < 0) {
+					count = split();
+					fieldcount = count;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Record where each field starts, up to the checksum
+	 * 
+	 * @return int The number of fields
+	 */
+	protected int split() {
+		int end = offset + length;
+		int stop = end;
+		int commas = 0;
+		for (int i = offset; i < end; i++) {
+			if (message[i] == ',') {
+				commas++;
+			} else if (message[i] == '*') {
+				stop = i;
+				break;
+			}
+		}
+		if (fields == null || fields.length < commas + 2) {
+			fields = new int[Math.max(24, commas + 2)];
+		}
+		int n = 0;
+		fields[n++] = offset;
+		for (int i = offset; i < stop; i++) {
+			if (message[i] == ',') {
+				fields[n++] = i + 1;
+			}
+		}
+		fields[n] = stop + 1;
+		return n;
+	}
+
+	/**
+	 * Returns the number of fields including the address
+	 * 
+	 * @return int
+	 */
+	public int getFieldCount() {
+		return index();
+	}
+
+	/**
+	 * Returns where a field starts in getBuffer()
+	 * 
+	 * @param i The field index, 0 being the address
+	 * @return int The offset, or the end of the message if there is no
+	 * such field
+	 */
+	public int getFieldOffset(int i) {
+		if (i < 0 || i >= index()) {
+			return offset + length;
+		}
+		return fields[i];
+	}
+
+	/**
+	 * Returns the length of a field
+	 * 
+	 * @param i The field index, 0 being the address
+	 * @return int The length, 0 if the field is empty or missing
+	 */
+	public int getFieldLength(int i) {
+		if (i < 0 || i >= index()) {
+			return 0;
+		}
+		return fields[i + 1] - fields[i] - 1;
+	}
+
+	/**
+	 * Returns whether a field is empty or missing
+	 * 
+	 * @param i The field index
+	 * @return boolean
+	 */
+	public boolean isFieldEmpty(int i) {
+		return getFieldLength(i) == 0;
+	}
+
+	/**
+	 * Returns the first character of a field, e.g. the A or V of a
+	 * status field or the R or T of MWV
+	 * 
+	 * @param i The field index
+	 * @return char The character or 0 if the field is empty
+	 */
+	public char getFieldChar(int i) {
+		if (getFieldLength(i) == 0) {
+			return 0;
+		}
+		return (char) (message[fields[i]] & 0xff);
+	}
+
+	/**
+	 * Returns whether a field holds exactly the given text
+	 * 
+	 * @param i The field index
+	 * @param text The text, e.g. "A"
+	 * @return boolean
+	 */
+	public boolean fieldEquals(int i, String text) {
+		int len = getFieldLength(i);
+		if (len != text.length()) {
+			return false;
+		}
+		int start = fields[i];
+		for (int j = 0; j < len; j++) {
+			if ((message[start + j] & 0xff) != text.charAt(j)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a field as an integer. A decimal part is cut off, so this
+	 * also reads the whole number of e.g. a UTC time field.
+	 * 
+	 * @param i The field index
+	 * @param dflt The value if the field is empty or not a number
+	 * @return int
+	 */
+	public int getFieldInt(int i, int dflt) {
+		int len = getFieldLength(i);
+		if (len == 0) {
+			return dflt;
+		}
+		int p = fields[i];
+		int end = p + len;
+		boolean negative = message[p] == '-';
+		if (negative || message[p] == '+') {
+			p++;
+		}
+		if (p == end || message[p] == '.') {
+			return dflt;
+		}
+		int value = 0;
+		for (; p < end && message[p] != '.'; p++) {
+			int digit = message[p] - '0';
+			if (digit < 0 || digit > 9) {
+				return dflt;
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parse a field as a decimal number
+	 * 
+	 * @param i The field index
+	 * @param dflt The value if the field is empty or not a number
+	 * (e.g. Double.NaN)
+	 * @return double
+	 */
+	public double getFieldDouble(int i, double dflt) {
+		int len = getFieldLength(i);
+		if (len == 0) {
+			return dflt;
+		}
+		int p = fields[i];
+		int end = p + len;
+		boolean negative = message[p] == '-';
+		if (negative || message[p] == '+') {
+			p++;
+		}
+		long mantissa = 0;
+		int scale = 0;
+		boolean digits = false;
+		boolean fraction = false;
+		for (; p < end; p++) {
+			int b = message[p];
+			if (b >= '0' && b <= '9') {
+				digits = true;
+				// Digits past the precision of a long are dropped
+				if (mantissa < 100000000000000000L) {
+					mantissa = mantissa * 10 + b - '0';
+					if (fraction) {
+						scale++;
+					}
+				} else if (!fraction) {
+					return dflt;
+				}
+			} else if (b == '.' && !fraction) {
+				fraction = true;
+			} else {
+				return dflt;
+			}
+		}
+		if (!digits) {
+			return dflt;
+		}
+		double value = mantissa / SCALE[scale];
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Returns the sentence decoded into a record by the decoder
+	 * registered for its type. The first call decodes it, under the
+	 * message's monitor since threads writing the message to different
+	 * clients may race, and later calls return the same record. The
+	 * record is only valid while a reference to the message is held.
+	 * 
+	 * @return SentenceRecord The record, or null if the sentence failed
+	 * its checks, there is no decoder for its type or it couldn't be
+	 * decoded
+	 */
+	public SentenceRecord getRecord() {
+		if (!decoded) {
+			synchronized (this) {
+				if (!decoded) {
+					hasrecord = false;
+					SentenceDecoder decoder = isValid() 
+						? DecoderRegistry.getInstance().lookup(typecode) : null;
+					if (decoder != null) {
+						SentenceRecord rec = decoder.decode(this, record);
+						if (rec != null) {
+							record = rec;
+							hasrecord = true;
+						}
+					}
+					decoded = true;
+				}
+			}
+		}
+		return hasrecord ? record : null;
+	}
+
+	/**
+	 * @see mw.server.message.Message#getTypeCode()
+	 */
+	public int getTypeCode() {
+		return typecode;
+	}
+
+	/**
+	 * @see mw.server.message.Message#getTalkerCode()
+	 */
+	public int getTalkerCode() {
+		return talkercode;
+	}
+
+	/**
+	 * Pack a sentence type such as RMC the same way getTypeCode does
+	 * @param type The 3 character sentence type
+	 * @return int The type code
+	 */
+	public static int typeCode(String type) {
+		if (type.length() != 3) {
+			throw new IllegalArgumentException("Not an NMEA sentence type: " + type);
+		}
+		return ((type.charAt(0) & 0xff) << 16) | ((type.charAt(1) & 0xff) << 8)
+			| (type.charAt(2) & 0xff);
+	}
+
+	/**
+	 * Pack a talker id such as GP the same way getTalkerCode does
+	 * @param talker The 2 character talker id
+	 * @return int The talker code
+	 */
+	public static int talkerCode(String talker) {
+		if (talker.length() != 2) {
+			throw new IllegalArgumentException("Not an NMEA talker id: " + talker);
+		}
+		return ((talker.charAt(0) & 0xff) << 8) | (talker.charAt(1) & 0xff);
+	}
+
+	/**
+	 * Test method which prints the fields of a sentence
+	 * @param args Optional sentence to split
+	 */
+	public static void main(String[] args) {
+		String sentence = 
+			"$GPRMC,123519.00,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W*6A";
+		if (args.length > 0) {
+			sentence = args[0];
+		}
+		NMEAMessage msg = new NMEAMessage();
+		msg.setMessage(sentence.getBytes());
+		for (int i = 0; i < msg.getFieldCount(); i++) {
+			System.out.println(i + ": '" + new String(msg.getBuffer(), 
+				msg.getFieldOffset(i), msg.getFieldLength(i)) + "' int=" + 
+				msg.getFieldInt(i, -1) + " double=" + 
+				msg.getFieldDouble(i, Double.NaN) + " char=" + 
+				msg.getFieldChar(i));
+		}
+	}
 }
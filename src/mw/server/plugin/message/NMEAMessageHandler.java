@@ -1,24 +1,322 @@
 package mw.server.plugin.message;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import mw.server.message.IngestBuffer;
+import mw.server.message.IngestPool;
 import mw.server.message.Message;
 import mw.server.message.MessageHandler;
 
+import org.apache.log4j.Logger;
+
 /**
  * @author thuss
  *
- * Message handler for creating NMEA Message
+ * Message handler for creating NMEA Message. Sentences read from a
+ * connection are copied back to back into pooled ingest buffers, so a
+ * sentence costs no array of its own. Each mediator thread has its own
+ * handler, so the buffer being filled needs no locking.
+ * 
+ * Each sentence is checked on the way in (see NMEAMessage.checkSentence)
+ * and counted as valid, bad checksum, truncated or not NMEA. With
+ * checksum=tag (the default) every sentence is passed on with its
+ * quality, with checksum=drop only valid ones are, and checksum=off
+ * skips the check. required=true treats a sentence without a checksum
+ * as truncated. The counters are per handler, so per serial port or
+ * socket connection (or per event loop of an NIO socket), and are
+ * logged at most once a minute when bad lines came in.
+ * 
+ * Parameters: checksum=tag:required=false
  */
 public class NMEAMessageHandler implements MessageHandler {
 
+	protected static Logger log = Logger.getLogger(NMEAMessageHandler.class);
+
+	/**
+	 * Don't check sentences
+	 */
+	public static final int CHECKSUM_OFF = 0;
+
+	/**
+	 * Check sentences and pass them all on with their quality
+	 */
+	public static final int CHECKSUM_TAG = 1;
+
+	/**
+	 * Check sentences and drop the ones that aren't valid
+	 */
+	public static final int CHECKSUM_DROP = 2;
+
+	/**
+	 * The ingest buffer sentences are being copied into
+	 */
+	protected IngestBuffer current = null;
+
+	/**
+	 * The parameter string
+	 */
+	protected String params = null;
+
+	/**
+	 * What to do with sentences that fail the check
+	 */
+	protected int checksum = CHECKSUM_TAG;
+
+	/**
+	 * True if sentences must have a checksum
+	 */
+	protected boolean required = false;
+
+	/**
+	 * Number of sentences checked of each quality, indexed by quality
+	 */
+	protected long[] counts = new long[4];
+
+	/**
+	 * Number of bad lines when the counters were last logged
+	 */
+	protected long reportedbad = 0;
+
+	/**
+	 * When the counters were last logged
+	 */
+	protected long lastreport = 0;
+
 	/**
 	 * @see mw.server.message.MessageHandler#createMessage(int, String, byte[])
 	 */
 	public Message createMessage(int sender_id, String sender_name, byte[] content) {
-		Message message = new NMEAMessage();
+		int quality = check(sender_name, content, 0, content.length);
+		if (quality < 0) {
+			return null;
+		}
+		NMEAMessage message = (NMEAMessage) newMessage();
 		message.setSenderId(sender_id);
 		message.setSenderName(sender_name);
 		message.setMessage(content);
+		message.setQuality(quality);
 		return message;
 	}
 
+	/**
+	 * @see mw.server.message.MessageHandler#createMessage(int, String, byte[], int, int)
+	 */
+	public Message createMessage(int sender_id, String sender_name, 
+		byte[] buffer, int offset, int length) {
+		IngestPool pool = IngestPool.getInstance();
+		if (length > pool.getSize()) {
+			byte[] content = new byte[length];
+			System.arraycopy(buffer, offset, content, 0, length);
+			return createMessage(sender_id, sender_name, content);
+		}
+		int quality = check(sender_name, buffer, offset, length);
+		if (quality < 0) {
+			return null;
+		}
+		int at = current == null ? -1 : current.append(buffer, offset, length);
+		if (at < 0) {
+			// Let go of the full buffer, its messages keep it until released
+			if (current != null) {
+				current.release();
+			}
+			current = pool.acquire();
+			at = current.append(buffer, offset, length);
+		}
+		NMEAMessage message = (NMEAMessage) newMessage();
+		message.setSenderId(sender_id);
+		message.setSenderName(sender_name);
+		message.setMessage(current, at, length);
+		message.setQuality(quality);
+		return message;
+	}
+
+	/**
+	 * Give the ingest buffer back, messages still using it keep it until
+	 * they are released.
+	 * @see mw.server.message.MessageHandler#close()
+	 */
+	public void close() {
+		if (current != null) {
+			current.release();
+			current = null;
+		}
+	}
+
+	/**
+	 * Check and count a sentence
+	 * 
+	 * @return int The quality of the sentence, or -1 to drop it
+	 */
+	protected int check(String sender_name, byte[] buffer, int offset, 
+		int length) {
+		if (checksum == CHECKSUM_OFF) {
+			return NMEAMessage.QUALITY_VALID;
+		}
+		int quality = NMEAMessage.checkSentence(buffer, offset, length, required);
+		counts[quality]++;
+		if (quality != NMEAMessage.QUALITY_VALID) {
+			report(sender_name);
+			if (checksum == CHECKSUM_DROP) {
+				return -1;
+			}
+		}
+		return quality;
+	}
+
+	/**
+	 * Log the counters if bad lines came in since they were last logged,
+	 * at most once a minute
+	 */
+	protected void report(String sender_name) {
+		long now = System.currentTimeMillis();
+		if (now - lastreport < 60000) {
+			return;
+		}
+		long bad = counts[NMEAMessage.QUALITY_BAD_CHECKSUM] + 
+			counts[NMEAMessage.QUALITY_TRUNCATED] + 
+			counts[NMEAMessage.QUALITY_NOT_NMEA];
+		if (bad != reportedbad) {
+			log.warn(sender_name + " received " + 
+				counts[NMEAMessage.QUALITY_VALID] + " valid, " + 
+				counts[NMEAMessage.QUALITY_BAD_CHECKSUM] + " bad checksum, " + 
+				counts[NMEAMessage.QUALITY_TRUNCATED] + " truncated and " + 
+				counts[NMEAMessage.QUALITY_NOT_NMEA] + " non NMEA lines" + 
+				(checksum == CHECKSUM_DROP ? ", bad lines dropped" : ""));
+			reportedbad = bad;
+			lastreport = now;
+		}
+	}
+
+	/**
+	 * Returns an empty message holding one reference
+	 * 
+	 * @return Message
+	 */
+	protected Message newMessage() {
+		return new NMEAMessage();
+	}
+
+	/**
+	 * Returns the number of sentences checked of a quality
+	 * 
+	 * @param quality The quality, e.g. NMEAMessage.QUALITY_BAD_CHECKSUM
+	 * @return long
+	 */
+	public long getCount(int quality) {
+		return counts[quality];
+	}
+
+	/**
+	 * @see mw.server.message.MessageHandler#getParameters()
+	 */
+	public String getParameters() {
+		return params;
+	}
+
+	/**
+	 * @see mw.server.message.MessageHandler#setParameters(String)
+	 */
+	public void setParameters(String params) {
+		this.params = params;
+		if (params == null) {
+			return;
+		}
+		StringTokenizer strtok = new StringTokenizer(params, ":");
+		while (strtok.hasMoreTokens()) {
+			String nexttok = strtok.nextToken();
+			StringTokenizer strtok2 = new StringTokenizer(nexttok, "=");
+			if (strtok2.countTokens() != 2 || 
+				!setParameter(strtok2.nextToken(), strtok2.nextToken())) {
+				log.warn("WARNING: " + this.getClass().getName() + 
+					" ignoring unrecognized parameter " + nexttok);
+			}
+		}
+	}
+
+	/**
+	 * Set one parameter
+	 * 
+	 * @param param The parameter name
+	 * @param value The value
+	 * @return boolean False if the parameter or value isn't recognized
+	 */
+	protected boolean setParameter(String param, String value) {
+		if (param.equalsIgnoreCase("checksum")) {
+			if (value.equalsIgnoreCase("off")) {
+				checksum = CHECKSUM_OFF;
+			} else if (value.equalsIgnoreCase("tag")) {
+				checksum = CHECKSUM_TAG;
+			} else if (value.equalsIgnoreCase("drop")) {
+				checksum = CHECKSUM_DROP;
+			} else {
+				return false;
+			}
+		} else if (param.equalsIgnoreCase("required")) {
+			required = value.equalsIgnoreCase("true");
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Benchmark of the ingress check. Reads the sentences of a sample log
+	 * and times checking them and creating messages from them, with the
+	 * check off and on.
+	 * 
+	 * @param args Optional sample file (default samples/rpnnmea.log)
+	 */
+	public static void main(String[] args) throws Exception {
+		String file = args.length > 0 ? args[0] : "samples/rpnnmea.log";
+		BufferedReader reader = 
+			new BufferedReader(new FileReader(file));
+		List lines = new ArrayList();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.length() > 0) {
+				lines.add(line.getBytes());
+			}
+		}
+		reader.close();
+		byte[][] sentences = (byte[][]) lines.toArray(new byte[lines.size()][]);
+		int rounds = Math.max(1, 2000000 / sentences.length);
+		int total = rounds * sentences.length;
+
+		for (int pass = 0; pass < 3; pass++) {
+			long start = System.currentTimeMillis();
+			int valid = 0;
+			for (int r = 0; r < rounds; r++) {
+				for (int i = 0; i < sentences.length; i++) {
+					if (NMEAMessage.checkSentence(sentences[i], 0, 
+						sentences[i].length, false) == NMEAMessage.QUALITY_VALID) {
+						valid++;
+					}
+				}
+			}
+			long checkms = System.currentTimeMillis() - start;
+
+			long[] ms = new long[2];
+			for (int mode = 0; mode < 2; mode++) {
+				PooledNMEAMessageHandler mh = new PooledNMEAMessageHandler();
+				mh.setParameters(mode == 0 ? "checksum=off" : "checksum=tag");
+				start = System.currentTimeMillis();
+				for (int r = 0; r < rounds; r++) {
+					for (int i = 0; i < sentences.length; i++) {
+						Message msg = mh.createMessage(1, "Bench", sentences[i], 
+							0, sentences[i].length);
+						msg.release();
+					}
+				}
+				ms[mode] = System.currentTimeMillis() - start;
+			}
+			System.out.println(total + " sentences (" + valid + " valid): check " + 
+				checkms * 1000000 / total + "ns, createMessage " + 
+				ms[0] * 1000000 / total + "ns without and " + 
+				ms[1] * 1000000 / total + "ns with the check");
+		}
+	}
 }
@@ -0,0 +1,37 @@
+package mw.server.plugin.message;
+
+import mw.server.message.Message;
+import mw.server.message.MessagePool;
+
+/**
+ * @author thuss
+ *
+ * NMEA message handler that takes its messages from a pool shared by
+ * every mediator using it, instead of allocating one per sentence. A
+ * message goes back to the pool once the director and every client
+ * queue it was handed to have released it, so together with the
+ * pooled ingest buffers a sentence read from a port costs no garbage.
+ */
+public class PooledNMEAMessageHandler extends NMEAMessageHandler {
+
+	/**
+	 * The messages shared by every pooled NMEA handler
+	 */
+	protected static MessagePool pool = new MessagePool(NMEAMessage.class, 4096);
+
+	/**
+	 * @see mw.server.plugin.message.NMEAMessageHandler#newMessage()
+	 */
+	protected Message newMessage() {
+		return pool.acquire();
+	}
+
+	/**
+	 * Returns the pool the handlers take their messages from
+	 * 
+	 * @return MessagePool
+	 */
+	public static MessagePool getPool() {
+		return pool;
+	}
+}
@@ -1,70 +1,419 @@
 package mw.server.plugin.protocol;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import mw.server.message.Message;
 
 /**
  * @author thuss
  *
  * This class implements the Rose Point Navigation protocol handle
  * both SUBSCRIBE and NOTIFY requests
+ * 
+ * For clients that accept several sentences in one NOTIFY body the
+ * maxbatch parameter packs up to that many sentences written before
+ * a flush into one NOTIFY, so the headers are sent once per batch.
+ * The flush policy decides how long a batch may wait (e.g.
+ * maxbatch=20:flush=delay:maxdelay=200). A batch holds up to maxbytes
+ * and its NOTIFY is written straight into the output buffer.
  */
 public class RPNProtocol extends RawNMEAProtocol {
 
-	protected boolean subscribed = false;
+	/**
+	 * The NOTIFY header up to the content length
+	 */
+	protected static final byte[] NOTIFY = ("NOTIFY the-source HTTP/1.1\r\n"
+		+ "Content-Type: text/nmea0183\r\n"
+		+ "Content-Length: ").getBytes();
+
+	/**
+	 * The request line of a subscription starts with this
+	 */
+	protected static final byte[] SUBSCRIBE = "SUBSCRIBE".getBytes();
+
+	/**
+	 * Set by the reading thread once the client has subscribed, which
+	 * lets the writing thread start sending
+	 */
+	protected volatile boolean subscribed = false;
+
+	/**
+	 * True while we are reading the headers of a SUBSCRIBE request
+	 */
+	protected boolean inheaders = false;
+
+	/**
+	 * Most sentences packed into one NOTIFY, 1 turns batching off
+	 */
+	protected int maxbatch = 1;
+
+	/**
+	 * The body of the NOTIFY being batched
+	 */
+	protected byte[] batch = null;
+
+	/**
+	 * Number of bytes in the batch
+	 */
+	protected int batchcount = 0;
+
+	/**
+	 * Number of sentences in the batch
+	 */
+	protected int batchsentences = 0;
+
+	/**
+	 * When the first sentence of the batch was written
+	 */
+	protected long batchsince = 0;
 
 	/**
 	 * Constructor.
 	 */
 	public RPNProtocol() {
 		setLinediscard(false);
+		// Requests are HTTP headers, not NMEA sentences
+		framer.setResync(false);
+	}
+
+	/**
+	 * Size the batch now that every parameter is set
+	 * 
+	 * @see mw.server.protocol.ProtocolHandler#startProtocol(InputStream, OutputStream)
+	 */
+	public void startProtocol(InputStream in, OutputStream out) {
+		super.startProtocol(in, out);
+		int size = Math.max(maxbytes, 1024);
+		if (maxbatch <= 1) {
+			batch = null;
+		} else if (batch == null || batch.length != size) {
+			batch = new byte[size];
+		}
+		batchcount = 0;
+		batchsentences = 0;
 	}
 
 	/**
 	 * This method currently doesn't return anything, however, it must
-	 * be called because it handles the RPN Subscription request.
+	 * be called because it handles the RPN Subscription request. The
+	 * request is parsed a line per call so it never waits for the rest
+	 * of the headers, which lets it run on a non-blocking channel.
 	 * 
-	 * @see mw.server.protocol.ProtocolHandler#readIncomingData(boolean)
+	 * @see mw.server.protocol.ProtocolHandler#readIncomingSlice(boolean)
 	 */
-	public byte[] readIncomingData(boolean blocking) throws IOException {
-		byte[] incoming = new byte[0];
-		byte[] inc = super.readIncomingData(blocking);
+	public int readIncomingSlice(boolean blocking) throws IOException {
+		int length = super.readIncomingSlice(blocking);
 		// If we have a successful subscription don't waste time parsing anymore
-		if (inc.length > 0 && !subscribed) {
-			String line = new String(inc);
-			if (line.startsWith("SUBSCRIBE")) {
-				String aline = null;
-				// Now that we have the subscribe loop until we
-				// get an empty line (just CRLF);
-				do {
-					aline = new String(super.readIncomingData(true));
-					if (aline.length() == 0)
-						break;
-				} while (aline.length() > 0);
-				String rpnmessage = "HTTP/1.1 200 OK\r\n\r\n";
-				out.write(rpnmessage.getBytes());
-				subscribed = true;
+		if (lineread && !subscribed) {
+			if (inheaders) {
+				// The headers end with an empty line (just CRLF)
+				if (length == 0) {
+					String rpnmessage = "HTTP/1.1 200 OK\r\n\r\n";
+					out.write(rpnmessage.getBytes());
+					subscribed = true;
+					inheaders = false;
+				}
+			} else if (startsWith(incoming, incomingoffset, length, SUBSCRIBE)) {
+				inheaders = true;
 			}
 		}
-		return incoming;
+		return -1;
 	}
 
 	/**
-	 * Outgoing data is always surrounded by http rpn NOTIFY message
+	 * Returns whether a line starts with a prefix, without building a
+	 * String from it
+	 */
+	protected static boolean startsWith(byte[] data, int off, int len, 
+		byte[] prefix) {
+		if (len < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[off + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Outgoing data is always surrounded by http rpn NOTIFY message,
+	 * and buffered until the flush policy flushes it
 	 * 
 	 * @see mw.server.protocol.ProtocolHandler#writeOutgoingData(byte[])
 	 */
 	public void writeOutgoingData(byte[] outgoing) throws IOException {
-		// We won't start sending data until they have subscribed
-		if (!subscribed)
+		if (batch != null) {
+			addToBatch(outgoing, 0, outgoing.length);
+		} else {
+			writeFrame(encodeFrame(outgoing));
+		}
+	}
+
+	/**
+	 * Each sentence is its own NOTIFY, encoded once and shared by every
+	 * RPN client. When batching, the sentence is copied straight from
+	 * the message into the NOTIFY body.
+	 * 
+	 * @see mw.server.protocol.ProtocolHandler#writeOutgoingMessage(Message)
+	 */
+	public void writeOutgoingMessage(Message msg) throws IOException {
+		if (batch == null) {
+			writeSharedFrame(msg);
+		} else {
+			addToBatch(msg.getBuffer(), msg.getOffset(), msg.getLength());
+		}
+	}
+
+	/**
+	 * We won't start sending data until they have subscribed
+	 * 
+	 * @see mw.server.protocol.ProtocolHandler#writeFrame(byte[])
+	 */
+	protected void writeFrame(byte[] frame) throws IOException {
+		if (subscribed) {
+			super.writeFrame(frame);
+		}
+	}
+
+	/**
+	 * Add a sentence and its CR LF to the NOTIFY body, closing the batch
+	 * when it is full
+	 * 
+	 * @param data The array holding the sentence
+	 * @param off Where the sentence starts
+	 * @param len The length of the sentence
+	 * @throws IOException Error writing to the StreamConnection
+	 */
+	protected void addToBatch(byte[] data, int off, int len) throws IOException {
+		if (!subscribed) {
+			return;
+		}
+		if (batchcount + len + 2 > batch.length) {
+			closeBatch();
+		}
+		if (len + 2 > batch.length) {
+			writeNotify(data, off, len, false);
 			return;
-		String rpnmessage =
-			"NOTIFY the-source HTTP/1.1\r\n"
-				+ "Content-Type: text/nmea0183\r\n"
-				+ "Content-Length: "
-				+ outgoing.length
-				+ "\r\n\r\n";
-		out.write(rpnmessage.getBytes());
-		out.write(outgoing);
-		out.write("\r\n".getBytes());
+		}
+		if (batchcount == 0) {
+			batchsince = System.currentTimeMillis();
+		}
+		System.arraycopy(data, off, batch, batchcount, len);
+		batchcount += len;
+		batch[batchcount++] = '\r';
+		batch[batchcount++] = '\n';
+		if (++batchsentences >= maxbatch) {
+			closeBatch();
+		}
+	}
+
+	/**
+	 * Write the batched sentences as one NOTIFY
+	 * 
+	 * @throws IOException Error writing to the StreamConnection
+	 */
+	protected void closeBatch() throws IOException {
+		if (batchcount > 0) {
+			// Empty the batch first, writing the frame may flush and get here again
+			int count = batchcount;
+			batchcount = 0;
+			batchsentences = 0;
+			// The body already ends in CR LF, which ends the frame
+			writeNotify(batch, 0, count - 2, true);
+		}
+	}
+
+	/**
+	 * Write a NOTIFY straight into the output buffer, the same bytes
+	 * encodeFrame builds but without a frame array per batch
+	 * 
+	 * @param data The array holding the NOTIFY body
+	 * @param off Where the body starts
+	 * @param len The length of the body
+	 * @param ended True if CR LF already follows the body in the array
+	 * @throws IOException Error writing to the StreamConnection
+	 */
+	protected void writeNotify(byte[] data, int off, int len, boolean ended)
+		throws IOException {
+		append(NOTIFY);
+		int divisor = 1;
+		while (divisor <= len / 10) {
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10) {
+			append('0' + len / divisor % 10);
+		}
+		append('\r');
+		append('\n');
+		append('\r');
+		append('\n');
+		if (ended) {
+			append(data, off, len + 2);
+		} else {
+			append(data, off, len);
+			append('\r');
+			append('\n');
+		}
+		frameComplete();
+	}
+
+	/**
+	 * @see mw.server.protocol.ProtocolHandler#flushOutgoingData()
+	 */
+	public void flushOutgoingData() throws IOException {
+		if (batch != null) {
+			closeBatch();
+		}
+		super.flushOutgoingData();
+	}
+
+	/**
+	 * A batch waits like any buffered frame, for the flush policy
+	 * 
+	 * @see mw.server.protocol.ProtocolHandler#flushIdle(long)
+	 */
+	public long flushIdle(long now) throws IOException {
+		if (batchcount > 0) {
+			long due = flushpolicy == FLUSH_DELAY ? batchsince + maxdelay - now : 0;
+			if (due > 0) {
+				return due;
+			}
+			closeBatch();
+		}
+		return super.flushIdle(now);
+	}
+
+	/**
+	 * Build the NOTIFY header, data and line end straight into one array,
+	 * which unbatched clients share through the frame cached on the
+	 * message
+	 * 
+	 * @param data The array holding the NOTIFY body
+	 * @param off Where the body starts
+	 * @param len The length of the body
+	 * @return byte[] The framed NOTIFY
+	 */
+	protected byte[] encodeFrame(byte[] data, int off, int len) {
+		int digits = 1;
+		for (int n = len; n >= 10; n /= 10) {
+			digits++;
+		}
+		byte[] frame = new byte[NOTIFY.length + digits + 4 + len + 2];
+		System.arraycopy(NOTIFY, 0, frame, 0, NOTIFY.length);
+		int pos = NOTIFY.length + digits;
+		for (int n = len, i = pos - 1; i >= NOTIFY.length; n /= 10, i--) {
+			frame[i] = (byte) ('0' + n % 10);
+		}
+		frame[pos++] = '\r';
+		frame[pos++] = '\n';
+		frame[pos++] = '\r';
+		frame[pos++] = '\n';
+		System.arraycopy(data, off, frame, pos, len);
+		pos += len;
+		frame[pos++] = '\r';
+		frame[pos] = '\n';
+		return frame;
+	}
+
+	/**
+	 * @see mw.server.protocol.ProtocolHandler#setParameter(String, String)
+	 */
+	protected boolean setParameter(String param, String value) {
+		if (param.equalsIgnoreCase("maxbatch")) {
+			try {
+				maxbatch = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			return true;
+		}
+		return super.setParameter(param, value);
+	}
+
+	/**
+	 * Batch sentences of different lengths with a few batch sizes, so
+	 * batches are closed both by their count and by running past
+	 * maxbytes while the output buffer is part full, and check every
+	 * NOTIFY is framed right and every sentence comes out exactly once.
+	 * Also check the batch size doesn't depend on the parameter order.
+	 */
+	public static void main(String[] args) throws Exception {
+		String[] sentences = { "$IIGLL,4832.242,N,12249.506,W,202644,A,D*47",
+			"$IIRMC,202644,A,4832.242,N,12249.506,W,9.3,314.0,220603,19,E,D*34",
+			"$IIMWV,286.5,R,7.9,N,A*3A", "$IIVHW,,T,,M,8.29,N,15.35,K*64",
+			"$IIGGA,202645,4832.242,N,12249.506,W,2,08,1,-14,M,,,1,*36" };
+		int count = 10000;
+		String[] params = { "maxbatch=1", "maxbatch=16", "maxbatch=100", 
+			"maxbatch=20:maxbytes=4000", "maxbytes=4000:maxbatch=20" };
+		boolean passed = true;
+		for (int p = 0; p < params.length; p++) {
+			ByteArrayOutputStream socket = new ByteArrayOutputStream();
+			RPNProtocol rpn = new RPNProtocol();
+			rpn.setParameters(params[p]);
+			rpn.startProtocol(new ByteArrayInputStream(
+				"SUBSCRIBE /nmea HTTP/1.1\r\nHost: test\r\n\r\n".getBytes()), socket);
+			for (int i = 0; i < 3 && !rpn.subscribed; i++) {
+				rpn.readIncomingSlice(true);
+			}
+			int written;
+			try {
+				for (int i = 0; i < count; i++) {
+					rpn.writeOutgoingData(sentences[i % sentences.length].getBytes());
+				}
+				rpn.flushOutgoingData();
+				written = countSentences(socket.toByteArray());
+			} catch (StackOverflowError e) {
+				written = -1;
+			}
+			int size = rpn.batch == null ? 0 : rpn.batch.length;
+			System.out.println(params[p] + ": " + count + " sentences in, " + 
+				written + " out, batch of " + size + " bytes");
+			passed = passed && written == count
+				&& (rpn.maxbatch == 1 || size == Math.max(rpn.maxbytes, 1024));
+		}
+		System.out.println(passed ? "PASSED" : "FAILED");
+	}
+
+	/**
+	 * Walk the NOTIFYs written after the subscription reply, checking
+	 * each body is as long as its Content-Length says, and count the
+	 * sentences in them
+	 * 
+	 * @param out What was written
+	 * @return int The number of sentences, or -1 if a NOTIFY is broken
+	 */
+	protected static int countSentences(byte[] out) {
+		String text = new String(out);
+		String reply = "HTTP/1.1 200 OK\r\n\r\n";
+		String header = new String(NOTIFY);
+		if (!text.startsWith(reply)) {
+			return -1;
+		}
+		int sentences = 0;
+		int pos = reply.length();
+		while (pos < text.length()) {
+			int body = text.indexOf("\r\n\r\n", pos);
+			if (!text.startsWith(header, pos) || body < 0) {
+				return -1;
+			}
+			int length = Integer.parseInt(text.substring(pos + header.length(), body));
+			body += 4;
+			if (!text.startsWith("\r\n", body + length)) {
+				return -1;
+			}
+			for (int i = body; i < body + length; i++) {
+				if (text.charAt(i) == '$') {
+					sentences++;
+				}
+			}
+			pos = body + length + 2;
+		}
+		return sentences;
 	}
 }
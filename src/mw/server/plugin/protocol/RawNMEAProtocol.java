@@ -1,8 +1,9 @@
 package mw.server.plugin.protocol;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
+import mw.server.message.Message;
+import mw.server.protocol.LineFramer;
 import mw.server.protocol.ProtocolHandler;
 
 /**
@@ -14,9 +15,9 @@ import mw.server.protocol.ProtocolHandler;
 public class RawNMEAProtocol extends ProtocolHandler {
 
 	/**
-	 * Place we store a line of nmea data as we read it
+	 * Splits the input into lines, at most 512 bytes long
 	 */
-	protected ByteArrayOutputStream nmealine = new ByteArrayOutputStream();
+	protected LineFramer framer = new LineFramer(512);
 		
 	/** 
 	 * When set to true the first line ever received will be discarded.
@@ -25,6 +26,12 @@ public class RawNMEAProtocol extends ProtocolHandler {
 	 */
 	protected boolean linediscard = true;
 
+	/**
+	 * True if the last read returned a complete line, which tells an
+	 * empty line apart from no data
+	 */
+	protected boolean lineread = false;
+
 	/** 
 	 * Reads exactly one line and returns it, or returns an
 	 * empty 0 length byte array if no messages were pending
@@ -33,56 +40,80 @@ public class RawNMEAProtocol extends ProtocolHandler {
 	 * @return byte[] A line of raw NMEA data
 	 */
 	public byte[] readIncomingData(boolean blocking) throws IOException {
-		byte[] incoming = {};
-		if (!blocking && in.available() == 0) return incoming;
-		
-		// Get as much data as we can
-		boolean eol = false;
-		int abyte = 0;
-		do {
-			abyte = in.read();
-			if (abyte == '\n') {
-				eol = true;
-			} else if (abyte == '\r') {
-				// Do nothing
-			} else if (abyte == -1) {
-				Thread.dumpStack();
-			} else {
-				nmealine.write(abyte);
-			}
-		} while ((in.available() > 0 || blocking) && !eol);
+		int length = readIncomingSlice(blocking);
+		if (length <= 0) {
+			return new byte[0];
+		}
+		byte[] line = new byte[length];
+		System.arraycopy(incoming, incomingoffset, line, 0, length);
+		return line;
+	}
+
+	/**
+	 * The line is left in the framer's buffer
+	 * 
+	 * @see mw.server.protocol.ProtocolHandler#readIncomingSlice(boolean)
+	 */
+	public int readIncomingSlice(boolean blocking) throws IOException {
+		int length = framer.nextSlice(in, blocking);
+		lineread = length >= 0;
 		
-		// If we have a complete line
-		if (eol) {
-			// This code will only run the first time we get a line
-			// and we do this to discard the first line since it
-			// is almost always a partial and incomplete message when
-			// used via serial port
-			if (linediscard) {
-				linediscard = false;
-				nmealine.reset();
-				return incoming;
-			}
-			
-			incoming = nmealine.toByteArray();
-			nmealine.reset();
-		} else {
-			
+		// This code will only run the first time we get a line
+		// and we do this to discard the first line since it
+		// is almost always a partial and incomplete message when
+		// used via serial port
+		if (lineread && linediscard) {
+			linediscard = false;
+			lineread = false;
+			return -1;
 		}
-		return incoming;
+		incoming = framer.getBuffer();
+		incomingoffset = framer.getLineStart();
+		return length;
+	}
+
+	/**
+	 * @see mw.server.protocol.ProtocolHandler#hasIncomingData()
+	 */
+	public boolean hasIncomingData() {
+		return framer.hasLine();
 	}
 	
 	/**
-	 * Write Raw NMEA data to the StreamConnection
+	 * Write Raw NMEA data to the StreamConnection. The sentence is
+	 * buffered until the flush policy flushes it.
 	 * 
 	 * @param outgoing The outgoing data to write
 	 * @return IOException Error writing data to the stream connection
 	 */
 	public void writeOutgoingData(byte[] outgoing) throws IOException {
-		out.write(outgoing);
+		writeFrame(encodeFrame(outgoing));
+	}
+
+	/**
+	 * The frame is just the sentence and its line end, so it is copied
+	 * straight from the message into the outgoing buffer instead of
+	 * encoding a frame.
+	 * 
+	 * @see mw.server.protocol.ProtocolHandler#writeOutgoingMessage(Message)
+	 */
+	public void writeOutgoingMessage(Message msg) throws IOException {
+		append(msg.getBuffer(), msg.getOffset(), msg.getLength());
+		append('\r');
+		append('\n');
+		frameComplete();
+	}
+
+	/**
+	 * @see mw.server.protocol.ProtocolHandler#encodeFrame(byte[], int, int)
+	 */
+	protected byte[] encodeFrame(byte[] data, int off, int len) {
+		byte[] frame = new byte[len + 2];
+		System.arraycopy(data, off, frame, 0, len);
 		// Since it's NMEA we must include CR (ascii 13) and LF (ascii 10)
-		out.write('\r');
-		out.write('\n');
+		frame[len] = '\r';
+		frame[len + 1] = '\n';
+		return frame;
 	}
 	
 	/**
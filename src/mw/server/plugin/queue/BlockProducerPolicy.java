@@ -0,0 +1,35 @@
+package mw.server.plugin.queue;
+
+import mw.server.message.Message;
+import mw.server.queue.OutboundQueue;
+import mw.server.queue.OverflowPolicy;
+
+/**
+ * @author thuss
+ *
+ * Overflow policy that makes the producer wait for the client to catch
+ * up. The producer is the director thread, so while it waits no other
+ * mediator gets messages either. The wait is therefore capped and the
+ * new message is dropped if the queue is still full afterwards. Only use
+ * this for mediators where losing data is worse than delaying everyone,
+ * such as a local logger.
+ */
+public class BlockProducerPolicy implements OverflowPolicy {
+
+	/**
+	 * The longest time in milliseconds to hold up the producer
+	 */
+	protected long maxwait = 100;
+
+	/**
+	 * @see mw.server.queue.OverflowPolicy#overflow(OutboundQueue, Message)
+	 */
+	public void overflow(OutboundQueue queue, Message msg) {
+		queue.awaitSpace(maxwait);
+		if (queue.size() < queue.getCapacity()) {
+			queue.add(msg);
+		} else {
+			queue.discard(msg);
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package mw.server.plugin.queue;
+
+import mw.server.message.Message;
+import mw.server.queue.OutboundQueue;
+
+/**
+ * @author thuss
+ *
+ * Overflow policy that replaces the oldest queued message of the same
+ * sentence type and talker with the new one, keeping its place in the
+ * queue, so a backed up client gets the latest value instead of stale
+ * ones. If nothing of that type is queued it falls back to dropping the
+ * oldest message like DropOldestPolicy.
+ */
+public class ConflatePolicy extends DropOldestPolicy {
+
+	/**
+	 * @see mw.server.queue.OverflowPolicy#overflow(OutboundQueue, Message)
+	 */
+	public void overflow(OutboundQueue queue, Message msg) {
+		int type = msg.getTypeCode();
+		int talker = msg.getTalkerCode();
+		if (type != 0) {
+			for (int i = 0; i < queue.size(); i++) {
+				Message queued = queue.get(i);
+				if (queued.getTypeCode() == type && queued.getTalkerCode() == talker) {
+					queue.replace(i, msg);
+					return;
+				}
+			}
+		}
+		super.overflow(queue, msg);
+	}
+}
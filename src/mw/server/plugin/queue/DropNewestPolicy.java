@@ -0,0 +1,21 @@
+package mw.server.plugin.queue;
+
+import mw.server.message.Message;
+import mw.server.queue.OutboundQueue;
+import mw.server.queue.OverflowPolicy;
+
+/**
+ * @author thuss
+ *
+ * Overflow policy that keeps what is already queued and drops the new
+ * message.
+ */
+public class DropNewestPolicy implements OverflowPolicy {
+
+	/**
+	 * @see mw.server.queue.OverflowPolicy#overflow(OutboundQueue, Message)
+	 */
+	public void overflow(OutboundQueue queue, Message msg) {
+		queue.discard(msg);
+	}
+}
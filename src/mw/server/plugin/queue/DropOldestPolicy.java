@@ -0,0 +1,30 @@
+package mw.server.plugin.queue;
+
+import mw.server.message.Message;
+import mw.server.queue.OutboundQueue;
+import mw.server.queue.OverflowPolicy;
+
+/**
+ * @author thuss
+ *
+ * Overflow policy that drops the oldest message to make room for the new
+ * one. Mandatory messages (e.g. APB for the autopilot) are skipped over
+ * unless the whole queue is mandatory messages.
+ */
+public class DropOldestPolicy implements OverflowPolicy {
+
+	/**
+	 * @see mw.server.queue.OverflowPolicy#overflow(OutboundQueue, Message)
+	 */
+	public void overflow(OutboundQueue queue, Message msg) {
+		int victim = 0;
+		for (int i = 0; i < queue.size(); i++) {
+			if (!queue.get(i).isMandatory()) {
+				victim = i;
+				break;
+			}
+		}
+		queue.remove(victim);
+		queue.add(msg);
+	}
+}
@@ -0,0 +1,339 @@
+package mw.server.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * @author thuss
+ *
+ * Splits a stream into lines ending in LF (with any CR before it
+ * stripped). The stream is read in chunks into one reusable buffer and
+ * each line is copied out once, instead of a read and an available()
+ * call per byte. nextSlice doesn't copy at all, it returns where the
+ * line is in the buffer, which stays valid until the next call. A line
+ * longer than the maximum length is thrown away up to its line end, so
+ * a stream without newlines can't grow the buffer. With resync on, a
+ * line holding control or non ASCII bytes is thrown away as noise, and
+ * junk in front of a '$' or '!' sentence start is cut off.
+ */
+public class LineFramer {
+
+	/**
+	 * Returned when no complete line is available
+	 */
+	protected static final byte[] EMPTY = {};
+
+	/**
+	 * The chunk buffer, holding bytes from start up to end
+	 */
+	protected byte[] buffer;
+
+	/**
+	 * Index of the first unconsumed byte
+	 */
+	protected int start = 0;
+
+	/**
+	 * Index after the last byte read
+	 */
+	protected int end = 0;
+
+	/**
+	 * Index up to which the buffer was already searched for a line end
+	 */
+	protected int scanned = 0;
+
+	/**
+	 * The longest line accepted, not counting the line end
+	 */
+	protected int maxlength;
+
+	/**
+	 * True while skipping the rest of an overlong line
+	 */
+	protected boolean discarding = false;
+
+	/**
+	 * True to drop noisy lines and resync on sentence starts
+	 */
+	protected boolean resync = true;
+
+	/**
+	 * True if the last call returned a line (which may be empty)
+	 */
+	protected boolean lineread = false;
+
+	/**
+	 * Index in the buffer of the line last returned by nextSlice
+	 */
+	protected int linestart = 0;
+
+	/**
+	 * Number of lines thrown away for being too long
+	 */
+	protected long overruns = 0;
+
+	/**
+	 * Number of lines thrown away as noise
+	 */
+	protected long garbage = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param maxlength The longest line accepted
+	 */
+	public LineFramer(int maxlength) {
+		this.maxlength = maxlength;
+		buffer = new byte[Math.max(1024, maxlength * 2)];
+	}
+
+	/**
+	 * Returns the next line without its line end. When not blocking only
+	 * the bytes that are available are read, and an empty array is
+	 * returned if they don't complete a line.
+	 * 
+	 * @param in The stream to read from
+	 * @param blocking Whether to block until a line arrives
+	 * @return byte[] The line, or an empty array if there is none yet
+	 * @throws IOException Error reading, or EOFException at end of stream
+	 */
+	public byte[] nextLine(InputStream in, boolean blocking) throws IOException {
+		int length = nextSlice(in, blocking);
+		if (length <= 0) {
+			return EMPTY;
+		}
+		byte[] line = new byte[length];
+		System.arraycopy(buffer, linestart, line, 0, length);
+		return line;
+	}
+
+	/**
+	 * Finds the next line without copying it. The line is left in the
+	 * buffer (see getBuffer and getLineStart) until the next call.
+	 * 
+	 * @param in The stream to read from
+	 * @param blocking Whether to block until a line arrives
+	 * @return int The length of the line, or -1 if there is none yet
+	 * @throws IOException Error reading, or EOFException at end of stream
+	 */
+	public int nextSlice(InputStream in, boolean blocking) throws IOException {
+		lineread = false;
+		while (true) {
+			// Look for a line end in what we already have
+			int eol = -1;
+			for (int i = scanned; i < end && eol < 0; i++) {
+				if (buffer[i] == '\n') {
+					eol = i;
+				}
+			}
+			if (eol >= 0) {
+				int from = start;
+				start = eol + 1;
+				scanned = start;
+				if (discarding) {
+					discarding = false;
+					continue;
+				}
+				int length = frame(from, eol);
+				if (length >= 0) {
+					lineread = true;
+					return length;
+				}
+				continue;
+			}
+			scanned = end;
+
+			// No line end, throw away what we have if it is too long
+			if (end - start > maxlength) {
+				if (!discarding) {
+					overruns++;
+				}
+				discarding = true;
+				start = end = scanned = 0;
+			} else if (start > 0) {
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				end -= start;
+				scanned = end;
+				start = 0;
+			}
+
+			// Read another chunk
+			int want = buffer.length - end;
+			if (!blocking) {
+				int available = in.available();
+				if (available <= 0) {
+					return -1;
+				}
+				want = Math.min(want, available);
+			}
+			int nread = in.read(buffer, end, want);
+			if (nread < 0) {
+				throw new EOFException("Connection closed");
+			}
+			end += nread;
+		}
+	}
+
+	/**
+	 * Returns whether a complete line is already buffered, so the next
+	 * call returns it without reading
+	 * 
+	 * @return boolean
+	 */
+	public boolean hasLine() {
+		for (int i = scanned; i < end; i++) {
+			if (buffer[i] == '\n') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether the last call returned a line, telling an empty
+	 * line apart from no line
+	 * 
+	 * @return boolean
+	 */
+	public boolean isLineRead() {
+		return lineread;
+	}
+
+	/**
+	 * Returns the buffer holding the line last returned by nextSlice
+	 * 
+	 * @return byte[]
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Returns where the line last returned by nextSlice starts
+	 * 
+	 * @return int
+	 */
+	public int getLineStart() {
+		return linestart;
+	}
+
+	/**
+	 * Find the line from..to, stripping CRs at the end, and set
+	 * linestart to where it begins
+	 * 
+	 * @return int The length of the line or -1 if it was thrown away
+	 */
+	protected int frame(int from, int to) {
+		while (to > from && buffer[to - 1] == '\r') {
+			to--;
+		}
+		if (resync && to > from) {
+			int sentence = -1;
+			for (int i = from; i < to; i++) {
+				int b = buffer[i] & 0xff;
+				if (b < 0x20 || b > 0x7e) {
+					garbage++;
+					return -1;
+				}
+				if (b == '$' || b == '!') {
+					sentence = i;
+				}
+			}
+			if (sentence > from) {
+				garbage++;
+				from = sentence;
+			}
+		}
+		if (to - from > maxlength) {
+			overruns++;
+			return -1;
+		}
+		linestart = from;
+		return to - from;
+	}
+
+	/**
+	 * Returns the number of lines thrown away for being too long
+	 * 
+	 * @return long
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * Returns the number of lines thrown away or cut as noise
+	 * 
+	 * @return long
+	 */
+	public long getGarbage() {
+		return garbage;
+	}
+
+	/**
+	 * Returns the longest line accepted
+	 * 
+	 * @return int
+	 */
+	public int getMaxLength() {
+		return maxlength;
+	}
+
+	/**
+	 * Sets whether noisy lines are dropped and sentences resynced
+	 * 
+	 * @param resync True to resync
+	 */
+	public void setResync(boolean resync) {
+		this.resync = resync;
+	}
+
+	/**
+	 * Test method which frames a stream with noise, junk in front of a
+	 * sentence, an overlong line and a line without an end, and checks
+	 * only the three good sentences come out, the overlong line counts
+	 * as an overrun and the noise and junk as garbage.
+	 * @param args Command line arguments are ignored
+	 */
+	public static void main(String[] args) {
+		StringBuffer sb = new StringBuffer();
+		sb.append("$GPRMC,1*00\r\n");
+		sb.append("\u0001\u00ff\u00fe\r\n");
+		sb.append("xx$IIMWV,2*00\r\n");
+		for (int i = 0; i < 300; i++) {
+			sb.append('A');
+		}
+		sb.append("\r\n$GPGGA,3*00\r\n$GPGSV,4");
+		byte[] bytes = new byte[sb.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) sb.charAt(i);
+		}
+		String[] expected = { "$GPRMC,1*00", "$IIMWV,2*00", "$GPGGA,3*00" };
+		LineFramer framer = new LineFramer(82);
+		InputStream in = new ByteArrayInputStream(bytes);
+		boolean passed = true;
+		int lines = 0;
+		try {
+			while (true) {
+				String line = new String(framer.nextLine(in, true));
+				System.out.println("Line: " + line);
+				if (lines >= expected.length || !line.equals(expected[lines])) {
+					passed = false;
+				}
+				lines++;
+			}
+		} catch (EOFException e) {
+			System.out.println("End of stream, overruns=" + 
+				framer.getOverruns() + " garbage=" + framer.getGarbage());
+		} catch (IOException e) {
+			e.printStackTrace();
+			passed = false;
+		}
+		passed = passed && lines == expected.length 
+			&& framer.getOverruns() == 1 && framer.getGarbage() == 2;
+		System.out.println(passed ? "PASSED" : "FAILED");
+	}
+}
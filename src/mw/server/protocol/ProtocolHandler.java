@@ -3,14 +3,45 @@ package mw.server.protocol;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.StringTokenizer;
+
+import mw.server.message.Message;
+
+import org.apache.log4j.Logger;
 
 /**
  * @author thuss
  *
  * Protocol handler interface that designates handling a specific protocol
  * through a StreamConnection.
+ * 
+ * Outgoing frames are collected in a buffer and written to the stream
+ * in one write when flushed, according to the flush parameter:
+ * "message" flushes every frame (lowest latency), "drain" (the default)
+ * flushes once the mediator has nothing more to write and "delay" also
+ * waits up to maxdelay milliseconds for more. Any policy flushes as soon
+ * as maxbytes are waiting. 
+ * 
+ * Parameters: flush=drain:maxbytes=1400:maxdelay=20
  */
 public abstract class ProtocolHandler {
+
+	protected static Logger log = Logger.getLogger(ProtocolHandler.class);
+
+	/**
+	 * Flush every frame as soon as it is written
+	 */
+	public static final int FLUSH_MESSAGE = 0;
+
+	/**
+	 * Flush when there is nothing more to write
+	 */
+	public static final int FLUSH_DRAIN = 1;
+
+	/**
+	 * Flush when there is nothing more to write for maxdelay
+	 */
+	public static final int FLUSH_DELAY = 2;
     
     /**
      * The InputStream
@@ -22,6 +53,56 @@ public abstract class ProtocolHandler {
 	 */
 	protected OutputStream out;
 
+	/**
+	 * The parameter string
+	 */
+	protected String params;
+
+	/**
+	 * When to flush the outgoing frames
+	 */
+	protected int flushpolicy = FLUSH_DRAIN;
+
+	/**
+	 * Flush as soon as this many bytes are waiting
+	 */
+	protected int maxbytes = 1400;
+
+	/**
+	 * How long the delay policy waits for more frames in milliseconds
+	 */
+	protected long maxdelay = 20;
+
+	/**
+	 * Outgoing frames waiting to be flushed
+	 */
+	protected byte[] outbuffer = new byte[2048];
+
+	/**
+	 * Number of bytes waiting in the outgoing buffer
+	 */
+	protected int outcount = 0;
+
+	/**
+	 * Number of frame bytes written to the stream, batch framing included
+	 */
+	protected long byteswritten = 0;
+
+	/**
+	 * When the oldest waiting frame was written
+	 */
+	protected long outsince = 0;
+
+	/**
+	 * The array holding the message last returned by readIncomingSlice
+	 */
+	protected byte[] incoming = null;
+
+	/**
+	 * Where in the incoming array the message starts
+	 */
+	protected int incomingoffset = 0;
+
 	/**
 	 * Sets the Streams
 	 * @throws IOException Error opening the StreamConnection
@@ -29,6 +110,7 @@ public abstract class ProtocolHandler {
 	public void startProtocol(InputStream in, OutputStream out) {
 		this.in = in;
 		this.out = out;
+		outcount = 0;
 	}
 	
 	/**
@@ -44,6 +126,50 @@ public abstract class ProtocolHandler {
 	 * @param blocking Whether this read should block until it gets data
 	 */
 	abstract public byte[] readIncomingData(boolean blocking) throws IOException;
+
+	/**
+	 * Reads exactly one message like readIncomingData, but leaves it in
+	 * the protocol's own buffer (see getIncomingBuffer) instead of
+	 * copying it out. The message is only valid until the next read.
+	 * Protocols that can't do that get a copy from readIncomingData.
+	 * 
+	 * @param blocking Whether this read should block until it gets data
+	 * @return int The length of the message, or -1 if none was pending
+	 * @throws IOException Error reading from the StreamConnection
+	 */
+	public int readIncomingSlice(boolean blocking) throws IOException {
+		incoming = readIncomingData(blocking);
+		incomingoffset = 0;
+		return incoming.length > 0 ? incoming.length : -1;
+	}
+
+	/**
+	 * Returns the array holding the message last read by readIncomingSlice
+	 * 
+	 * @return byte[]
+	 */
+	public byte[] getIncomingBuffer() {
+		return incoming;
+	}
+
+	/**
+	 * Returns where the message last read by readIncomingSlice starts
+	 * 
+	 * @return int
+	 */
+	public int getIncomingOffset() {
+		return incomingoffset;
+	}
+
+	/**
+	 * Returns true if a complete message is already buffered, so the
+	 * next non-blocking read returns it without reading the stream
+	 * 
+	 * @return boolean
+	 */
+	public boolean hasIncomingData() {
+		return false;
+	}
 	
 	/**
 	 * Write outgoing data to the OutputStream
@@ -51,4 +177,239 @@ public abstract class ProtocolHandler {
 	 * @throws IOException Error writing to the StreamConnection
 	 */
 	abstract public void writeOutgoingData(byte[] outgoing) throws IOException;
+
+	/**
+	 * Write a message to the OutputStream. The frame is encoded once
+	 * per message and protocol and shared by every client using the
+	 * same protocol.
+	 * @param msg The message to write
+	 * @throws IOException Error writing to the StreamConnection
+	 */
+	public void writeOutgoingMessage(Message msg) throws IOException {
+		writeSharedFrame(msg);
+	}
+
+	/**
+	 * Write the frame of a message cached for this protocol, encoding
+	 * and caching it first if no client did yet
+	 * @param msg The message to write
+	 * @throws IOException Error writing to the StreamConnection
+	 */
+	protected void writeSharedFrame(Message msg) throws IOException {
+		Class protocol = getClass();
+		byte[] frame = msg.getFrame(protocol);
+		if (frame == null) {
+			frame = encodeFrame(msg.getBuffer(), msg.getOffset(), msg.getLength());
+			msg.putFrame(protocol, frame);
+		}
+		writeFrame(frame);
+	}
+
+	/**
+	 * Frame outgoing data for this protocol.
+	 * @param outgoing The data to frame
+	 * @return byte[] The framed bytes
+	 */
+	protected byte[] encodeFrame(byte[] outgoing) {
+		return encodeFrame(outgoing, 0, outgoing.length);
+	}
+
+	/**
+	 * Frame part of an array for this protocol. The frame may be shared
+	 * by many clients so it must only depend on the data.
+	 * @param data The array holding the data to frame
+	 * @param off Where the data starts
+	 * @param len The length of the data
+	 * @return byte[] The framed bytes
+	 */
+	protected byte[] encodeFrame(byte[] data, int off, int len) {
+		byte[] frame = new byte[len];
+		System.arraycopy(data, off, frame, 0, len);
+		return frame;
+	}
+
+	/**
+	 * Queue an encoded frame to be written
+	 * @param frame The framed bytes
+	 * @throws IOException Error writing to the StreamConnection
+	 */
+	protected void writeFrame(byte[] frame) throws IOException {
+		append(frame);
+		frameComplete();
+	}
+
+	/**
+	 * Write every waiting frame to the stream now
+	 * @throws IOException Error writing to the StreamConnection
+	 */
+	public void flushOutgoingData() throws IOException {
+		if (outcount > 0) {
+			int count = outcount;
+			outcount = 0;
+			out.write(outbuffer, 0, count);
+			out.flush();
+			byteswritten += count;
+		}
+	}
+
+	/**
+	 * Returns the number of frame bytes written to the stream so far,
+	 * counting what each protocol actually sends rather than the length
+	 * of the messages. Frames still waiting for a flush aren't counted.
+	 *
+	 * @return long
+	 */
+	public long getBytesWritten() {
+		return byteswritten;
+	}
+
+	/**
+	 * Called by the mediator when it has nothing more to write, to
+	 * flush the waiting frames if the flush policy says so.
+	 * 
+	 * @param now The current time in milliseconds
+	 * @return long 0 if nothing is waiting, otherwise how many
+	 * milliseconds until the waiting frames are due
+	 * @throws IOException Error writing to the StreamConnection
+	 */
+	public long flushIdle(long now) throws IOException {
+		if (outcount > 0) {
+			long due = flushpolicy == FLUSH_DELAY ? outsince + maxdelay - now : 0;
+			if (due > 0) {
+				return due;
+			}
+			flushOutgoingData();
+		}
+		return 0;
+	}
+
+	/**
+	 * Add bytes to the frame being written
+	 * 
+	 * @param data The bytes to add
+	 * @throws IOException Error flushing to make room
+	 */
+	protected void append(byte[] data) throws IOException {
+		append(data, 0, data.length);
+	}
+
+	/**
+	 * Add part of an array to the frame being written
+	 * 
+	 * @param data The bytes to add
+	 * @param off Where in the array to start
+	 * @param len How many bytes to add
+	 * @throws IOException Error flushing to make room
+	 */
+	protected void append(byte[] data, int off, int len) throws IOException {
+		if (outcount + len > outbuffer.length) {
+			flushOutgoingData();
+			if (len > outbuffer.length) {
+				out.write(data, off, len);
+				byteswritten += len;
+				return;
+			}
+		}
+		if (outcount == 0) {
+			outsince = System.currentTimeMillis();
+		}
+		System.arraycopy(data, off, outbuffer, outcount, len);
+		outcount += len;
+	}
+
+	/**
+	 * Add a byte to the frame being written
+	 * 
+	 * @param b The byte to add
+	 * @throws IOException Error flushing to make room
+	 */
+	protected void append(int b) throws IOException {
+		if (outcount == outbuffer.length) {
+			flushOutgoingData();
+		}
+		if (outcount == 0) {
+			outsince = System.currentTimeMillis();
+		}
+		outbuffer[outcount++] = (byte) b;
+	}
+
+	/**
+	 * Called after each frame is complete to flush it if the flush
+	 * policy says so or enough bytes are waiting
+	 * 
+	 * @throws IOException Error writing to the StreamConnection
+	 */
+	protected void frameComplete() throws IOException {
+		if (flushpolicy == FLUSH_MESSAGE || outcount >= maxbytes) {
+			flushOutgoingData();
+		}
+	}
+
+	/**
+	 * Returns the parameter string
+	 * 
+	 * @return String
+	 */
+	public String getParameters() {
+		return params;
+	}
+
+	/**
+	 * The parameter string to pass the protocol handler (e.g.
+	 * flush=delay:maxdelay=50)
+	 * 
+	 * @param params The parameters
+	 */
+	public void setParameters(String params) {
+		this.params = params;
+		if (params == null) {
+			return;
+		}
+		StringTokenizer strtok = new StringTokenizer(params, ":");
+		while (strtok.hasMoreTokens()) {
+			String nexttok = strtok.nextToken();
+			StringTokenizer strtok2 = new StringTokenizer(nexttok, "=");
+			if (strtok2.countTokens() != 2 || 
+				!setParameter(strtok2.nextToken(), strtok2.nextToken())) {
+				log.warn("WARNING: " + this.getClass().getName() + 
+					" ignoring unrecognized parameter " + nexttok);
+			}
+		}
+	}
+
+	/**
+	 * Set one parameter. Subclasses with their own parameters override
+	 * this and pass the ones they don't know on.
+	 * 
+	 * @param param The parameter name
+	 * @param value The value
+	 * @return boolean False if the parameter or value isn't recognized
+	 */
+	protected boolean setParameter(String param, String value) {
+		try {
+			if (param.equalsIgnoreCase("flush")) {
+				if (value.equalsIgnoreCase("message")) {
+					flushpolicy = FLUSH_MESSAGE;
+				} else if (value.equalsIgnoreCase("drain")) {
+					flushpolicy = FLUSH_DRAIN;
+				} else if (value.equalsIgnoreCase("delay")) {
+					flushpolicy = FLUSH_DELAY;
+				} else {
+					return false;
+				}
+			} else if (param.equalsIgnoreCase("maxbytes")) {
+				maxbytes = Integer.parseInt(value);
+				if (maxbytes + 1024 > outbuffer.length) {
+					outbuffer = new byte[maxbytes + 1024];
+				}
+			} else if (param.equalsIgnoreCase("maxdelay")) {
+				maxdelay = Long.parseLong(value);
+			} else {
+				return false;
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return true;
+	}
 }
@@ -0,0 +1,228 @@
+package mw.server.queue;
+
+import mw.server.message.Message;
+import mw.server.plugin.message.NMEAMessage;
+
+/**
+ * @author thuss
+ *
+ * Outbound queue that only keeps the newest message for each talker and
+ * sentence type (and for wind sentences whether they are relative or
+ * true). A newer message replaces the queued one in place, so a client
+ * that fell behind catches up in one pass instead of replaying stale
+ * data and the order sentences go out in stays the same. Messages with
+ * no type are queued like a normal OutboundQueue. The key table is
+ * allocated up front, so nothing is allocated in steady state.
+ */
+public class LatestValueQueue extends OutboundQueue {
+
+	/**
+	 * Sentence type code for MWV which carries an R/T flag
+	 */
+	protected static final int MWV = ('M' << 16) | ('W' << 8) | 'V';
+
+	/**
+	 * The conflation key of the message in each ring slot, 0 for none
+	 */
+	protected long[] slotkeys;
+
+	/**
+	 * Open addressing table of conflation keys, 0 marks an empty entry
+	 */
+	protected long[] keys;
+
+	/**
+	 * The ring slot the key was last queued in
+	 */
+	protected int[] slots;
+
+	/**
+	 * Number of keys in the table
+	 */
+	protected int keycount = 0;
+
+	/**
+	 * Number of queued messages replaced by a newer one with the same
+	 * key, which are not counted as dropped
+	 */
+	protected long conflated = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity The maximum number of messages to hold
+	 * @param policy What to do with new keys offered when full
+	 */
+	public LatestValueQueue(int capacity, OverflowPolicy policy) {
+		super(capacity, policy);
+		slotkeys = new long[capacity];
+		int size = 16;
+		while (size < capacity * 2) {
+			size <<= 1;
+		}
+		keys = new long[size];
+		slots = new int[size];
+	}
+
+	/**
+	 * Replace the queued message with the same key, otherwise queue it.
+	 * A replaced message is counted as conflated rather than dropped
+	 * since that is what this queue is for, not a sign of overflow.
+	 * @see mw.server.queue.OutboundQueue#offer(Message)
+	 */
+	public synchronized void offer(Message msg) {
+		long key = key(msg);
+		if (key != 0) {
+			int entry = find(key);
+			if (keys[entry] == key && isQueued(slots[entry], key)) {
+				conflated++;
+				ring[slots[entry]].release();
+				ring[slots[entry]] = msg;
+				return;
+			}
+		}
+		super.offer(msg);
+	}
+
+	/**
+	 * @see mw.server.queue.OutboundQueue#add(Message)
+	 */
+	public void add(Message msg) {
+		int slot = (head + count) % ring.length;
+		super.add(msg);
+		long key = key(msg);
+		slotkeys[slot] = key;
+		if (key != 0) {
+			remember(key, slot);
+		}
+	}
+
+	/**
+	 * @see mw.server.queue.OutboundQueue#poll()
+	 */
+	public synchronized Message poll() {
+		if (count > 0) {
+			slotkeys[head] = 0;
+		}
+		return super.poll();
+	}
+
+	/**
+	 * @see mw.server.queue.OutboundQueue#replace(int, Message)
+	 */
+	public void replace(int i, Message msg) {
+		super.replace(i, msg);
+		int slot = (head + i) % ring.length;
+		slotkeys[slot] = key(msg);
+		if (slotkeys[slot] != 0) {
+			remember(slotkeys[slot], slot);
+		}
+	}
+
+	/**
+	 * @see mw.server.queue.OutboundQueue#remove(int)
+	 */
+	public void remove(int i) {
+		// Shift the keys along with the messages and repoint the table
+		for (int j = i; j < count - 1; j++) {
+			int to = (head + j) % ring.length;
+			slotkeys[to] = slotkeys[(head + j + 1) % ring.length];
+			if (slotkeys[to] != 0) {
+				remember(slotkeys[to], to);
+			}
+		}
+		slotkeys[(head + count - 1) % ring.length] = 0;
+		super.remove(i);
+	}
+
+	/**
+	 * @see mw.server.queue.OutboundQueue#clear()
+	 */
+	public synchronized void clear() {
+		for (int i = 0; i < slotkeys.length; i++) {
+			slotkeys[i] = 0;
+		}
+		super.clear();
+	}
+
+	/**
+	 * Returns the number of queued messages replaced by a newer one
+	 *
+	 * @return long
+	 */
+	public synchronized long getConflated() {
+		return conflated;
+	}
+
+	/**
+	 * Work out the conflation key of a message from its talker, sentence
+	 * type and for MWV the R/T flag in its second field.
+	 *
+	 * @param msg The message
+	 * @return long The key or 0 if the message can't be conflated
+	 */
+	protected long key(Message msg) {
+		int type = msg.getTypeCode();
+		if (type == 0) {
+			return 0;
+		}
+		int flag = 0;
+		if (type == MWV && msg instanceof NMEAMessage) {
+			flag = ((NMEAMessage) msg).getFieldChar(2);
+		}
+		return ((long) msg.getTalkerCode() << 32) | ((long) type << 8) | flag;
+	}
+
+	/**
+	 * Returns true if the ring slot holds a queued message with the key
+	 */
+	protected boolean isQueued(int slot, long key) {
+		return slotkeys[slot] == key
+			&& (slot - head + ring.length) % ring.length < count;
+	}
+
+	/**
+	 * Returns the table entry holding the key, or the empty entry where
+	 * it would go
+	 */
+	protected int find(long key) {
+		int mask = keys.length - 1;
+		int entry = (int) (key ^ (key >>> 17) ^ (key >>> 32)) & mask;
+		while (keys[entry] != 0 && keys[entry] != key) {
+			entry = (entry + 1) & mask;
+		}
+		return entry;
+	}
+
+	/**
+	 * Record which ring slot a key is queued in. Keys are never removed
+	 * since there are only so many talkers and sentence types, but if
+	 * the table fills up it is rebuilt from what is queued.
+	 */
+	protected void remember(long key, int slot) {
+		int entry = find(key);
+		if (keys[entry] == 0) {
+			if (keycount * 2 >= keys.length) {
+				for (int i = 0; i < keys.length; i++) {
+					keys[i] = 0;
+				}
+				keycount = 0;
+				for (int i = 0; i < count; i++) {
+					int s = (head + i) % ring.length;
+					if (slotkeys[s] != 0 && slotkeys[s] != key) {
+						int e = find(slotkeys[s]);
+						if (keys[e] == 0) {
+							keycount++;
+						}
+						keys[e] = slotkeys[s];
+						slots[e] = s;
+					}
+				}
+				entry = find(key);
+			}
+			keys[entry] = key;
+			keycount++;
+		}
+		slots[entry] = slot;
+	}
+}
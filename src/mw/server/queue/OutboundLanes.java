@@ -0,0 +1,192 @@
+package mw.server.queue;
+
+import mw.server.message.Message;
+
+/**
+ * @author thuss
+ *
+ * One OutboundQueue (lane) per message priority class. Messages are
+ * queued in the lane for their priority and always taken from the
+ * highest priority lane that has any, so steering data never waits
+ * behind bulk traffic and overflow in one lane never drops messages
+ * from another.
+ */
+public class OutboundLanes {
+
+	/**
+	 * The queue for each priority, highest priority first
+	 */
+	protected OutboundQueue[] lanes;
+
+	/**
+	 * Set while the consumer waits for a message
+	 */
+	protected volatile boolean waiting = false;
+
+	/**
+	 * Set by wakeup so a wakeup that comes before the consumer waits
+	 * isn't lost
+	 */
+	protected boolean woken = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param lanes One queue per priority class, highest priority first
+	 */
+	public OutboundLanes(OutboundQueue[] lanes) {
+		this.lanes = lanes;
+	}
+
+	/**
+	 * Queue a message in the lane for its priority
+	 *
+	 * @param msg The message to queue
+	 */
+	public void offer(Message msg) {
+		lanes[msg.getPriority()].offer(msg);
+		if (waiting) {
+			wakeup();
+		}
+	}
+
+	/**
+	 * Wait until a message is queued in any lane, wakeup is called or
+	 * the time passes. Only the consumer may call this.
+	 *
+	 * @param millis The longest time to wait, 0 to wait without a limit
+	 */
+	public synchronized void await(long millis) {
+		// Set before checking so an offer after the check notifies us
+		waiting = true;
+		try {
+			if (size() == 0 && !woken) {
+				wait(millis);
+			}
+		} catch (InterruptedException e) {
+		} finally {
+			waiting = false;
+			woken = false;
+		}
+	}
+
+	/**
+	 * Wait until wakeup is called or the time passes, even if messages
+	 * are queued, e.g. while the link is too busy to write them. Only
+	 * the consumer may call this.
+	 *
+	 * @param millis The longest time to wait, must be more than 0
+	 */
+	public synchronized void pause(long millis) {
+		try {
+			if (!woken) {
+				wait(millis);
+			}
+		} catch (InterruptedException e) {
+		} finally {
+			woken = false;
+		}
+	}
+
+	/**
+	 * Wake the consumer, or if it isn't waiting make its next wait
+	 * return at once
+	 */
+	public synchronized void wakeup() {
+		woken = true;
+		notifyAll();
+	}
+
+	/**
+	 * Remove and return the oldest message of the highest priority lane
+	 * that has one.
+	 *
+	 * @return Message The message or null if all lanes are empty
+	 */
+	public Message poll() {
+		Message msg = null;
+		for (int i = 0; i < lanes.length && msg == null; i++) {
+			msg = lanes[i].poll();
+		}
+		return msg;
+	}
+
+	/**
+	 * Drop everything in every lane without counting it
+	 */
+	public void clear() {
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i].clear();
+		}
+	}
+
+	/**
+	 * Returns the number of messages waiting in every lane
+	 *
+	 * @return int
+	 */
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < lanes.length; i++) {
+			size += lanes[i].size();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the number of messages dropped in every lane
+	 *
+	 * @return long
+	 */
+	public long getDropped() {
+		long dropped = 0;
+		for (int i = 0; i < lanes.length; i++) {
+			dropped += lanes[i].getDropped();
+		}
+		return dropped;
+	}
+
+	/**
+	 * Returns the number of messages replaced by a newer one in every
+	 * latest value lane
+	 *
+	 * @return long
+	 */
+	public long getConflated() {
+		long conflated = 0;
+		for (int i = 0; i < lanes.length; i++) {
+			if (lanes[i] instanceof LatestValueQueue) {
+				conflated += ((LatestValueQueue) lanes[i]).getConflated();
+			}
+		}
+		return conflated;
+	}
+
+	/**
+	 * Returns the queue for a priority class
+	 *
+	 * @param priority The priority class (e.g. Message.PRIORITY_HIGH)
+	 * @return OutboundQueue
+	 */
+	public OutboundQueue getLane(int priority) {
+		return lanes[priority];
+	}
+
+	/**
+	 * Returns the capacity of each lane
+	 *
+	 * @return int
+	 */
+	public int getCapacity() {
+		return lanes[0].getCapacity();
+	}
+
+	/**
+	 * Returns the overflow policy of the lanes
+	 *
+	 * @return OverflowPolicy
+	 */
+	public OverflowPolicy getPolicy() {
+		return lanes[0].getPolicy();
+	}
+}
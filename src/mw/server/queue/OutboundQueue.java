@@ -0,0 +1,216 @@
+package mw.server.queue;
+
+import mw.server.message.Message;
+
+/**
+ * @author thuss
+ *
+ * Bounded queue of messages waiting to be written to one client. The
+ * director thread offers messages and the mediator thread polls them,
+ * and when the queue is full its OverflowPolicy decides what to drop.
+ * The slots are allocated once so a slow client can never grow the heap,
+ * and the queue keeps counters of its depth and drops for reporting.
+ * The queue owns a reference to each message offered to it, which it
+ * releases when the message is dropped or cleared, and which poll hands
+ * on to the caller.
+ */
+public class OutboundQueue {
+
+	/**
+	 * The preallocated slots
+	 */
+	protected Message[] ring;
+
+	/**
+	 * Index of the oldest message
+	 */
+	protected int head = 0;
+
+	/**
+	 * Number of messages in the queue
+	 */
+	protected int count = 0;
+
+	/**
+	 * Number of messages dropped by the overflow policy
+	 */
+	protected long dropped = 0;
+
+	/**
+	 * What to do when the queue is full
+	 */
+	protected OverflowPolicy policy;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity The maximum number of messages to hold
+	 * @param policy What to do with messages offered when full
+	 */
+	public OutboundQueue(int capacity, OverflowPolicy policy) {
+		ring = new Message[capacity];
+		this.policy = policy;
+	}
+
+	/**
+	 * Offer a message to the queue, calling the overflow policy if
+	 * the queue is full.
+	 *
+	 * @param msg The message to queue
+	 */
+	public synchronized void offer(Message msg) {
+		if (count < ring.length) {
+			add(msg);
+		} else {
+			policy.overflow(this, msg);
+		}
+	}
+
+	/**
+	 * Remove and return the oldest message
+	 *
+	 * @return Message The oldest message or null if empty
+	 */
+	public synchronized Message poll() {
+		if (count == 0) {
+			return null;
+		}
+		Message msg = ring[head];
+		ring[head] = null;
+		head = (head + 1) % ring.length;
+		count--;
+		// Let a producer blocked on a full queue know there is room
+		if (count == ring.length - 1) {
+			notifyAll();
+		}
+		return msg;
+	}
+
+	/**
+	 * Add a message to the tail. Only call this with the monitor held
+	 * and room in the queue, e.g. from an OverflowPolicy.
+	 *
+	 * @param msg The message to add
+	 */
+	public void add(Message msg) {
+		ring[(head + count) % ring.length] = msg;
+		count++;
+	}
+
+	/**
+	 * Returns the i'th oldest message. Only call this with the monitor
+	 * held, e.g. from an OverflowPolicy.
+	 *
+	 * @param i Index from the oldest message
+	 * @return Message The message
+	 */
+	public Message get(int i) {
+		return ring[(head + i) % ring.length];
+	}
+
+	/**
+	 * Replace the i'th oldest message in place and count the old one
+	 * as dropped. Only call this with the monitor held.
+	 *
+	 * @param i Index from the oldest message
+	 * @param msg The replacement message
+	 */
+	public void replace(int i, Message msg) {
+		int slot = (head + i) % ring.length;
+		discard(ring[slot]);
+		ring[slot] = msg;
+	}
+
+	/**
+	 * Remove the i'th oldest message, closing the gap, and count it as
+	 * dropped. Only call this with the monitor held.
+	 *
+	 * @param i Index from the oldest message
+	 */
+	public void remove(int i) {
+		discard(get(i));
+		for (; i < count - 1; i++) {
+			ring[(head + i) % ring.length] = ring[(head + i + 1) % ring.length];
+		}
+		ring[(head + count - 1) % ring.length] = null;
+		count--;
+	}
+
+	/**
+	 * Count a message as dropped and release it
+	 *
+	 * @param msg The message being dropped
+	 */
+	public void discard(Message msg) {
+		dropped++;
+		msg.release();
+	}
+
+	/**
+	 * Wait for a poll to make room. Only call this with the monitor held,
+	 * e.g. from an OverflowPolicy.
+	 *
+	 * @param millis The longest time to wait
+	 */
+	public void awaitSpace(long millis) {
+		long deadline = System.currentTimeMillis() + millis;
+		long left = millis;
+		while (count == ring.length && left > 0) {
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				return;
+			}
+			left = deadline - System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Drop everything in the queue without counting it
+	 */
+	public synchronized void clear() {
+		while (count > 0) {
+			ring[head].release();
+			ring[head] = null;
+			head = (head + 1) % ring.length;
+			count--;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Returns the number of messages waiting
+	 *
+	 * @return int
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the maximum number of messages the queue holds
+	 *
+	 * @return int
+	 */
+	public int getCapacity() {
+		return ring.length;
+	}
+
+	/**
+	 * Returns the number of messages dropped by the overflow policy
+	 *
+	 * @return long
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Returns the overflow policy
+	 *
+	 * @return OverflowPolicy
+	 */
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+}
@@ -0,0 +1,134 @@
+package mw.server.queue;
+
+import mw.server.message.Message;
+
+/**
+ * @author thuss
+ *
+ * Budgets the bytes written to a slow link such as a 4800 baud serial
+ * port (about 480 bytes a second) so we never hand the OS more than the
+ * wire can carry and latency can't grow without bound. The budget is a
+ * token bucket of bytes refilled at the line speed and holding at most a
+ * quarter second of data. High and normal priority messages only have
+ * to fit in the bucket, low priority ones are only sent while at least
+ * half the bucket is spare so there is always room for steering data.
+ * The scheduler also measures how close the link runs to saturation.
+ * Only the writing thread may schedule, others may read the saturation.
+ */
+public class OutputScheduler {
+
+	/**
+	 * How many bytes a second the link carries
+	 */
+	protected int bytesPerSecond;
+
+	/**
+	 * The most bytes the bucket holds
+	 */
+	protected double burst;
+
+	/**
+	 * Bytes that may be written now
+	 */
+	protected double budget;
+
+	/**
+	 * When the bucket was last refilled
+	 */
+	protected long refilled;
+
+	/**
+	 * Bytes written in the current measuring window
+	 */
+	protected volatile long windowBytes = 0;
+
+	/**
+	 * When the current measuring window started
+	 */
+	protected volatile long windowStart;
+
+	/**
+	 * Percentage of the line speed used in the last full window
+	 */
+	protected volatile int utilization = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param bytesPerSecond How many bytes a second the link carries
+	 */
+	public OutputScheduler(int bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		// A quarter second but always at least a full NMEA sentence
+		burst = Math.max(bytesPerSecond / 4, 84);
+		budget = burst;
+		refilled = System.currentTimeMillis();
+		windowStart = refilled;
+	}
+
+	/**
+	 * Work out how long a message has to wait before it can be written.
+	 * If it can be written now its bytes are taken from the budget.
+	 *
+	 * @param length The number of bytes the message takes on the wire
+	 * @param priority The priority class of the message
+	 * @param now The current time in milliseconds
+	 * @return long 0 to write now, otherwise milliseconds to wait
+	 */
+	public long schedule(int length, int priority, long now) {
+		budget += (now - refilled) * bytesPerSecond / 1000.0;
+		refilled = now;
+		if (budget > burst) {
+			budget = burst;
+		}
+		// Low priority messages have to leave half the bucket spare
+		double reserve = priority == Message.PRIORITY_LOW ? burst / 2 : 0;
+		double needed = Math.min(length + reserve, burst);
+		if (budget >= needed) {
+			budget -= length;
+			measure(length, now);
+			return 0;
+		}
+		return (long) Math.ceil((needed - budget) * 1000 / bytesPerSecond);
+	}
+
+	/**
+	 * Add written bytes to the saturation measurement, which covers
+	 * windows of 5 seconds
+	 */
+	protected void measure(int length, long now) {
+		long elapsed = now - windowStart;
+		if (elapsed >= 5000) {
+			utilization = (int) (windowBytes * 100000 / (elapsed * bytesPerSecond));
+			windowBytes = 0;
+			windowStart = now;
+		}
+		windowBytes += length;
+	}
+
+	/**
+	 * Returns the percentage of the line speed used in the last 5 seconds.
+	 * A window is only closed by a write, so once it has run past 5
+	 * seconds the link has gone quiet and the bytes written so far are
+	 * spread over the whole time instead, decaying towards 0.
+	 *
+	 * @return int
+	 */
+	public int getUtilization() {
+		long start = windowStart;
+		long elapsed = System.currentTimeMillis() - start;
+		if (elapsed < 5000) {
+			return utilization;
+		}
+		return (int) (windowBytes * 100000 / (elapsed * bytesPerSecond));
+	}
+
+	/**
+	 * Returns how many bytes a second the link carries
+	 *
+	 * @return int
+	 */
+	public int getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+}
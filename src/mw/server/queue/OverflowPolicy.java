@@ -0,0 +1,26 @@
+package mw.server.queue;
+
+import mw.server.message.Message;
+
+/**
+ * @author thuss
+ *
+ * An overflow policy decides what an OutboundQueue does with a message
+ * when the queue is already full, for example drop the oldest message
+ * or drop the new one. Policies are configured by name in the
+ * overflowpolicies section of the configuration file and a single
+ * instance may be shared by many queues, so implementations must not
+ * keep per queue state.
+ */
+public interface OverflowPolicy {
+
+	/**
+	 * Called with the queue's monitor held when msg is offered to a full
+	 * queue. The policy either makes room and adds the message with
+	 * OutboundQueue.add, or drops something with OutboundQueue.discard.
+	 * 
+	 * @param queue The full queue
+	 * @param msg The message being offered
+	 */
+	public void overflow(OutboundQueue queue, Message msg);
+}
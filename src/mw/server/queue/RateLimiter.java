@@ -0,0 +1,199 @@
+package mw.server.queue;
+
+import java.util.StringTokenizer;
+
+import mw.server.message.Message;
+import mw.server.plugin.message.NMEAMessage;
+
+/**
+ * @author thuss
+ *
+ * Limits how often each sentence type is written to one client using a
+ * token bucket per type, configured with rules like "GSV<=0.2Hz,MWV<=2Hz".
+ * Each bucket holds at most one token so the limit decimates the type
+ * to the given rate. Excess sentences are either dropped or, in conflate
+ * mode, the newest one is held and written as soon as its bucket has a
+ * token again. There are only ever a few rules so the buckets are kept
+ * in small arrays that are scanned, and nothing is allocated per message.
+ * Messages that are dropped or replaced are released. Only the mediator
+ * thread writing to the client may use it.
+ */
+public class RateLimiter {
+
+	/**
+	 * The sentence type code of each rule
+	 */
+	protected int[] codes;
+
+	/**
+	 * Tokens added to each bucket per millisecond
+	 */
+	protected double[] rates;
+
+	/**
+	 * Tokens in each bucket, at most 1
+	 */
+	protected double[] tokens;
+
+	/**
+	 * When each bucket was last refilled
+	 */
+	protected long[] refilled;
+
+	/**
+	 * The newest excess message of each type in conflate mode
+	 */
+	protected Message[] held;
+
+	/**
+	 * When true excess messages are held instead of dropped
+	 */
+	protected boolean conflate;
+
+	/**
+	 * Number of messages dropped or replaced because of the limits
+	 */
+	protected long dropped = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param rules Comma separated rules (e.g. GSV<=0.2Hz,MWV<=2Hz)
+	 * @param conflate True to hold the newest excess message of a type
+	 */
+	public RateLimiter(String rules, boolean conflate) {
+		this.conflate = conflate;
+		StringTokenizer strtok = new StringTokenizer(rules, ", ");
+		int n = strtok.countTokens();
+		codes = new int[n];
+		rates = new double[n];
+		tokens = new double[n];
+		refilled = new long[n];
+		held = new Message[n];
+		for (int i = 0; i < n; i++) {
+			String rule = strtok.nextToken();
+			int le = rule.indexOf("<=");
+			if (le < 0) {
+				throw new RuntimeException("Invalid rate limit " + rule
+					+ ", expected e.g. GSV<=0.2Hz");
+			}
+			String hz = rule.substring(le + 2);
+			if (hz.toLowerCase().endsWith("hz")) {
+				hz = hz.substring(0, hz.length() - 2);
+			}
+			codes[i] = NMEAMessage.typeCode(rule.substring(0, le));
+			rates[i] = Double.parseDouble(hz) / 1000;
+			if (!(rates[i] > 0)) {
+				throw new RuntimeException("Invalid rate limit " + rule
+					+ ", the rate must be more than 0Hz");
+			}
+			tokens[i] = 1;
+		}
+	}
+
+	/**
+	 * Check whether a message may be written now, taking a token from
+	 * its bucket if it has a rule.
+	 *
+	 * @param msg The message about to be written
+	 * @param now The current time in milliseconds
+	 * @return boolean True if the message may be written
+	 */
+	public boolean admit(Message msg, long now) {
+		int code = msg.getTypeCode();
+		for (int i = 0; i < codes.length; i++) {
+			if (codes[i] == code) {
+				if (take(i, now)) {
+					return true;
+				}
+				if (conflate) {
+					if (held[i] != null) {
+						held[i].release();
+						dropped++;
+					}
+					held[i] = msg;
+				} else {
+					msg.release();
+					dropped++;
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a held message whose bucket has a token again, if any.
+	 *
+	 * @param now The current time in milliseconds
+	 * @return Message The message to write or null
+	 */
+	public Message release(long now) {
+		for (int i = 0; i < held.length; i++) {
+			if (held[i] != null && take(i, now)) {
+				Message msg = held[i];
+				held[i] = null;
+				return msg;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Work out when the first held message may be written
+	 *
+	 * @param now The current time in milliseconds
+	 * @return long Milliseconds until release returns a message, or -1
+	 * if no message is held
+	 */
+	public long nextRelease(long now) {
+		long next = -1;
+		for (int i = 0; i < held.length; i++) {
+			if (held[i] != null) {
+				double missing = 1 - tokens[i] - (now - refilled[i]) * rates[i];
+				long wait = missing <= 0 ? 0 : (long) Math.ceil(missing / rates[i]);
+				if (next < 0 || wait < next) {
+					next = wait;
+				}
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Refill a bucket for the time passed and take a token if it has one
+	 */
+	protected boolean take(int i, long now) {
+		tokens[i] += (now - refilled[i]) * rates[i];
+		refilled[i] = now;
+		if (tokens[i] > 1) {
+			tokens[i] = 1;
+		}
+		if (tokens[i] >= 1) {
+			tokens[i] -= 1;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Forget any held messages
+	 */
+	public void clear() {
+		for (int i = 0; i < held.length; i++) {
+			if (held[i] != null) {
+				held[i].release();
+				held[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of messages dropped or replaced by the limits
+	 *
+	 * @return long
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+}